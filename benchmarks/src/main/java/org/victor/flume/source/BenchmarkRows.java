@@ -0,0 +1,87 @@
+package org.victor.flume.source;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Rows of a given width as the query engines return them, with the column types of a
+ * typical business table
+ *
+ */
+class BenchmarkRows {
+
+    static final String MIXED = "mixed";
+    static final String STRING = "string";
+    static final String NUMERIC = "numeric";
+
+    private static final int[] MIXED_TYPES = {Types.BIGINT, Types.VARCHAR, Types.TIMESTAMP, Types.DECIMAL,
+            Types.INTEGER, Types.VARCHAR, Types.DOUBLE, Types.VARCHAR};
+
+    final RowHeader header;
+    final Object[][] rows;
+
+    BenchmarkRows(int columns, String types, int count) {
+        Random random = new Random(42);
+        String[] names = new String[columns];
+        int[] sqlTypes = new int[columns];
+        for (int i = 0; i < columns; i++) {
+            names[i] = "column_" + i;
+            if (STRING.equals(types))
+                sqlTypes[i] = Types.VARCHAR;
+            else if (NUMERIC.equals(types))
+                sqlTypes[i] = i % 2 == 0 ? Types.BIGINT : Types.DECIMAL;
+            else
+                sqlTypes[i] = MIXED_TYPES[i % MIXED_TYPES.length];
+        }
+        header = new RowHeader(names, sqlTypes);
+
+        rows = new Object[count][];
+        for (int r = 0; r < count; r++) {
+            Object[] row = new Object[columns];
+            for (int i = 0; i < columns; i++) {
+                row[i] = value(sqlTypes[i], random);
+            }
+            // a few nulls, as in real tables
+            if (columns > 4)
+                row[random.nextInt(columns)] = null;
+            rows[r] = row;
+        }
+    }
+
+    private static Object value(int sqlType, Random random) {
+        switch (sqlType) {
+            case Types.BIGINT:
+                return random.nextLong() >>> 20;
+            case Types.INTEGER:
+                return random.nextInt(100000);
+            case Types.DECIMAL:
+                return BigDecimal.valueOf(random.nextInt(10000000), 2);
+            case Types.DOUBLE:
+                return random.nextDouble() * 1000;
+            case Types.TIMESTAMP:
+                return new Timestamp(1500000000000L + random.nextInt(1000000000));
+            default:
+                char[] chars = new char[8 + random.nextInt(24)];
+                for (int i = 0; i < chars.length; i++) {
+                    chars[i] = (char) ('a' + random.nextInt(26));
+                }
+                return new String(chars);
+        }
+    }
+
+    /**
+     * @return the rows as lists, the shape taken by getAllRows
+     */
+    List<List<Object>> asLists() {
+        List<List<Object>> lists = new ArrayList<List<Object>>(rows.length);
+        for (Object[] row : rows) {
+            lists.add(Arrays.asList(row));
+        }
+        return lists;
+    }
+}
@@ -0,0 +1,85 @@
+package org.victor.flume.source;
+
+import com.alibaba.fastjson.JSON;
+import org.apache.flume.Event;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Row to event conversion done by the source for every row read, with the json encoder in use
+ * and with the map + fastjson path it replaced as a reference, and with the csv encoder of
+ * event.format csv. Run with -prof gc for the allocation rate per row.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventBuilderBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int ROWS = 64;
+
+    @Param({"10", "50", "200"})
+    public int columns;
+
+    @Param({BenchmarkRows.MIXED, BenchmarkRows.STRING, BenchmarkRows.NUMERIC})
+    public String types;
+
+    private BenchmarkRows rows;
+    private EventBuilder eventBuilder, csvEventBuilder;
+    private int next;
+
+    @Setup
+    public void setup() {
+        rows = new BenchmarkRows(columns, types, ROWS);
+        eventBuilder = new EventBuilder();
+        csvEventBuilder = new EventBuilder(new CsvRowEncoder(',', CsvRowEncoder.QUOTING_MINIMAL, false, ""),
+                EventBuilder.PACKING_NONE, 1, 0, null, null);
+    }
+
+    private Object[] nextRow() {
+        next = (next + 1) & (ROWS - 1);
+        return rows.rows[next];
+    }
+
+    @Benchmark
+    public Event build() throws IOException {
+        return eventBuilder.build(rows.header, nextRow());
+    }
+
+    @Benchmark
+    public Event buildCsv() throws IOException {
+        return csvEventBuilder.build(rows.header, nextRow());
+    }
+
+    /**
+     * Rows as hibernate's ALIAS_TO_ENTITY_MAP maps serialized by fastjson, the former path
+     */
+    @Benchmark
+    public byte[] fastjsonMap() {
+        Object[] row = nextRow();
+        Map<String, Object> map = new HashMap<String, Object>(row.length);
+        for (int i = 0; i < row.length; i++) {
+            map.put(rows.header.getName(i), row[i]);
+        }
+        return JSON.toJSONString(map, JsonRowEncoder.FEATURES).getBytes(UTF_8);
+    }
+}
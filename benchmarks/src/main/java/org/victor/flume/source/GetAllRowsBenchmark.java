@@ -0,0 +1,68 @@
+package org.victor.flume.source;
+
+import org.apache.flume.Context;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SQLSourceHelper.getAllRows, converting a result of 100 rows to string arrays
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GetAllRowsBenchmark {
+
+    @Param({"10", "50", "200"})
+    public int columns;
+
+    private File statusDirectory;
+    private SQLSourceHelper sqlSourceHelper;
+    private List<List<Object>> result;
+
+    @Setup
+    public void setup() throws Exception {
+        statusDirectory = Files.createTempDirectory("sql-source-benchmark").toFile();
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("hibernate.connection.url", "jdbc:mysql://host:3306/database");
+        properties.put("status.file.path", statusDirectory.getPath());
+        properties.put("status.file.name", "rows");
+        properties.put("table", "orders");
+        sqlSourceHelper = new SQLSourceHelper(new Context(properties), "rows");
+        result = new BenchmarkRows(columns, BenchmarkRows.MIXED, 100).asLists();
+    }
+
+    @TearDown
+    public void tearDown() {
+        sqlSourceHelper.close();
+        for (File file : statusDirectory.listFiles()) {
+            file.delete();
+        }
+        statusDirectory.delete();
+    }
+
+    @Benchmark
+    public List<String[]> getAllRows() {
+        return sqlSourceHelper.getAllRows(result);
+    }
+}
@@ -0,0 +1,103 @@
+package org.victor.flume.source;
+
+import org.apache.flume.Context;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Statements built by SQLSourceHelper on every poll: the max query, the bulk query and
+ * the incremental query written out, from a custom query or bound as parameters
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBuildingBenchmark {
+
+    private static final String MAX_TIME = "2019-07-04 00:00:00.0";
+
+    private File statusDirectory;
+    private SQLSourceHelper incremental, custom, prepared;
+
+    @Setup
+    public void setup() throws Exception {
+        statusDirectory = Files.createTempDirectory("sql-source-benchmark").toFile();
+
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("hibernate.connection.url", "jdbc:mysql://host:3306/database");
+        properties.put("status.file.path", statusDirectory.getPath());
+        properties.put("table", "orders");
+        properties.put("columns.to.select", "id, customer, amount, status, update_time");
+        properties.put("source.transfer.method", "incrementing");
+        properties.put("time.column", "update_time");
+        properties.put("time.column.type", "string");
+        properties.put("start.from", "2019-07-03 14:52:00");
+        properties.put("custom.condition", "status <> 'deleted'");
+
+        properties.put("status.file.name", "incremental");
+        incremental = new SQLSourceHelper(new Context(properties), "incremental");
+
+        properties.put("status.file.name", "prepared");
+        properties.put("query.prepared", "true");
+        prepared = new SQLSourceHelper(new Context(properties), "prepared");
+
+        properties.put("status.file.name", "custom");
+        properties.put("custom.query", "SELECT o.id, o.amount, c.name FROM orders o JOIN customers c ON o.customer = c.id"
+                + " WHERE o.update_time > '$@$' AND o.update_time <= '$&$'");
+        custom = new SQLSourceHelper(new Context(properties), "custom");
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (SQLSourceHelper helper : new SQLSourceHelper[]{incremental, prepared, custom}) {
+            helper.close();
+        }
+        for (File file : statusDirectory.listFiles()) {
+            file.delete();
+        }
+        statusDirectory.delete();
+    }
+
+    @Benchmark
+    public String maxQuery() {
+        return incremental.maxQuery();
+    }
+
+    @Benchmark
+    public String buildQuery() {
+        return incremental.buildQuery();
+    }
+
+    @Benchmark
+    public String buildIncrementalQuery() {
+        return incremental.buildQuery(MAX_TIME);
+    }
+
+    @Benchmark
+    public String buildCustomQuery() {
+        return custom.buildQuery(MAX_TIME);
+    }
+
+    @Benchmark
+    public QueryStatement preparedStatement() {
+        return prepared.selectStatement(MAX_TIME);
+    }
+}
@@ -0,0 +1,549 @@
+package org.victor.flume.source;
+
+import com.alibaba.fastjson.JSON;
+import com.github.luben.zstd.Zstd;
+import com.opencsv.CSVParser;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.flume.Channel;
+import org.apache.flume.ChannelSelector;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.PollableSource;
+import org.apache.flume.Transaction;
+import org.apache.flume.channel.ChannelProcessor;
+import org.apache.flume.channel.MemoryChannel;
+import org.apache.flume.channel.ReplicatingChannelSelector;
+import org.apache.flume.conf.Configurables;
+import org.victor.flume.metrics.LatencyHistogram;
+import org.xerial.snappy.Snappy;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * End to end load test: a SQLSource polls an embedded H2 database into a MemoryChannel drained
+ * by a consumer thread, then rows/s, bytes/s, poll latency, heap high water mark and freshness
+ * lag are reported, bytes being the event bodies as they enter the channel. Scenarios:
+ * <ul>
+ * <li>backlog: rows already in the table, read incrementally</li>
+ * <li>bulk: rows already in the table, read once by the parallel bulk load</li>
+ * <li>trickle: rows inserted at a steady rate during the run, read incrementally</li>
+ * <li>fullchannel: a backlog into a small channel drained slowly, the source keeps hitting a full channel</li>
+ * </ul>
+ * Arguments are key=value: scenario, rows, columns, value.length, rate (rows/s), duration (s),
+ * capacity, take.batch, consumer.delay (ms per take), idle (s without event ending the run once
+ * the inserts are over and events came), any other key is passed to the source. The incremental
+ * scenarios page with keyset.columns=id unless configured otherwise, so a backlog larger than
+ * max.rows is read without loss.
+ *
+ */
+public class ThroughputHarness {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SOURCE_NAME = "harness";
+
+    private final Map<String, String> settings = new HashMap<String, String>();
+    private final Map<String, String> sourceSettings = new HashMap<String, String>();
+
+    private final String scenario;
+    private final int rows, columns, valueLength, rate, duration, takeBatch, consumerDelay, idle;
+
+    private File directory;
+    private String url;
+    private final AtomicInteger inserted = new AtomicInteger();
+
+    /* written by the consumer */
+    private final BitSet seen = new BitSet();
+    private volatile int delivered, duplicates;
+    private volatile long bytes;
+    private final LatencyHistogram freshness = new LatencyHistogram(1, TimeUnit.DAYS);
+    /* Reader of the last avro schema seen, reused while the schema does not change */
+    private String avroLiteral;
+    private GenericDatumReader<GenericRecord> avroReader;
+    private BinaryDecoder avroDecoder;
+    private GenericRecord avroRecord;
+    /* Column names of the csv rows, from the csv.header header */
+    private CSVParser csvParser;
+    private String csvNamesLine;
+    private String[] csvNames;
+
+    private final LatencyHistogram polls = new LatencyHistogram(1, TimeUnit.DAYS);
+    private volatile boolean running = true;
+
+    ThroughputHarness(String[] args) {
+        for (String arg : args) {
+            String[] keyValue = arg.split("=", 2);
+            if (keyValue.length != 2)
+                throw new IllegalArgumentException("Expected key=value: " + arg);
+            settings.put(keyValue[0], keyValue[1]);
+        }
+        scenario = setting("scenario", "backlog");
+        rows = Integer.parseInt(setting("rows", "trickle".equals(scenario) ? "0" : "1000000"));
+        columns = Math.max(3, Integer.parseInt(setting("columns", "10")));
+        valueLength = Integer.parseInt(setting("value.length", "16"));
+        rate = Integer.parseInt(setting("rate", "1000"));
+        duration = Integer.parseInt(setting("duration", "trickle".equals(scenario) ? "30" : "600"));
+        takeBatch = Integer.parseInt(setting("take.batch", "1000"));
+        consumerDelay = Integer.parseInt(setting("consumer.delay", "fullchannel".equals(scenario) ? "5" : "0"));
+        idle = Integer.parseInt(setting("idle", "10"));
+        sourceSettings.putAll(settings);
+    }
+
+    private String setting(String key, String defaultValue) {
+        String value = settings.remove(key);
+        return value != null ? value : defaultValue;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new ThroughputHarness(args).run();
+        System.exit(0);
+    }
+
+    void run() throws Exception {
+        directory = Files.createTempDirectory("sql-source-harness").toFile();
+        url = "jdbc:h2:" + new File(directory, "db").getAbsolutePath();
+        try {
+            Connection connection = DriverManager.getConnection(url);
+            try {
+                createTable(connection);
+                long start = System.nanoTime();
+                insert(connection, rows, 0);
+                System.out.printf("seeded %d rows of %d columns in %.1f s%n", rows, columns, seconds(start));
+            } finally {
+                connection.close();
+            }
+            measure();
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private void createTable(Connection connection) throws SQLException {
+        StringBuilder ddl = new StringBuilder("CREATE TABLE rows_table (id BIGINT PRIMARY KEY, ts TIMESTAMP, inserted_at BIGINT");
+        for (int i = 3; i < columns; i++) {
+            ddl.append(", value_").append(i).append(" VARCHAR(").append(valueLength).append(')');
+        }
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute(ddl.append(')').toString());
+            statement.execute("CREATE INDEX rows_table_ts ON rows_table (ts)");
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Insert rows with strictly increasing ts, so a poll never misses a row committed later
+     * with the time of a row already read
+     */
+    private long insert(Connection connection, int count, long lastTime) throws SQLException {
+        StringBuilder sql = new StringBuilder("INSERT INTO rows_table VALUES (?, ?, ?");
+        for (int i = 3; i < columns; i++) {
+            sql.append(", ?");
+        }
+        PreparedStatement statement = connection.prepareStatement(sql.append(')').toString());
+        Random random = new Random();
+        char[] value = new char[valueLength];
+        try {
+            for (int r = 0; r < count; r++) {
+                long now = System.currentTimeMillis();
+                lastTime = Math.max(now, lastTime + 1);
+                statement.setLong(1, inserted.incrementAndGet());
+                statement.setTimestamp(2, new Timestamp(lastTime));
+                statement.setLong(3, now);
+                for (int i = 3; i < columns; i++) {
+                    for (int c = 0; c < value.length; c++) {
+                        value[c] = (char) ('a' + random.nextInt(26));
+                    }
+                    statement.setString(i + 1, new String(value));
+                }
+                statement.addBatch();
+                if (r % 1000 == 999)
+                    statement.executeBatch();
+            }
+            statement.executeBatch();
+        } finally {
+            statement.close();
+        }
+        return lastTime;
+    }
+
+    private void measure() throws Exception {
+        int batchSize = Integer.parseInt(sourceSetting("batch.size", "1000"));
+        sourceSetting("max.rows", "10000");
+        sourceSetting("run.query.delay", "trickle".equals(scenario) ? "100" : "10");
+        sourceSetting("hibernate.connection.url", url);
+        sourceSetting("hibernate.connection.driver_class", "org.h2.Driver");
+        sourceSetting("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+        sourceSetting("table", "rows_table");
+        sourceSetting("status.file.path", directory.getPath());
+        sourceSetting("status.file.name", "status");
+        sourceSetting("time.column", "ts");
+        sourceSetting("time.column.type", "string");
+        sourceSetting("start.from", "2000-01-01 00:00:00");
+        if ("bulk".equals(scenario)) {
+            sourceSetting("source.transfer.method", "bulk");
+            sourceSetting("bulk.partition.column", "id");
+        } else {
+            sourceSetting("source.transfer.method", "incrementing");
+            sourceSetting("keyset.columns", "id");
+        }
+
+        Map<String, String> channelSettings = new HashMap<String, String>();
+        channelSettings.put("capacity", setting("capacity", "fullchannel".equals(scenario) ? "1000" : "100000"));
+        channelSettings.put("transactionCapacity", String.valueOf(Math.max(batchSize, takeBatch)));
+        MemoryChannel channel = new MemoryChannel();
+        channel.setName("channel");
+        Configurables.configure(channel, new Context(channelSettings));
+        channel.start();
+
+        ChannelSelector selector = new ReplicatingChannelSelector();
+        selector.setChannels(Collections.<Channel>singletonList(channel));
+        final SQLSource source = new SQLSource();
+        source.setName(SOURCE_NAME);
+        source.setChannelProcessor(new ChannelProcessor(selector));
+        source.configure(new Context(sourceSettings));
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+
+        long start = System.nanoTime();
+        source.start();
+        Thread poller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                poll(source);
+            }
+        }, "harness-poller");
+        poller.start();
+        Thread inserter = null;
+        if ("trickle".equals(scenario)) {
+            inserter = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    trickle();
+                }
+            }, "harness-inserter");
+            inserter.start();
+        }
+
+        consume(channel, inserter, start);
+        double seconds = seconds(start);
+
+        running = false;
+        poller.join();
+        if (inserter != null)
+            inserter.join();
+        source.stop();
+        channel.stop();
+        report(seconds);
+    }
+
+    private String sourceSetting(String key, String defaultValue) {
+        if (!sourceSettings.containsKey(key))
+            sourceSettings.put(key, defaultValue);
+        return sourceSettings.get(key);
+    }
+
+    /**
+     * Call the source as flume's PollableSourceRunner does
+     */
+    private void poll(PollableSource source) {
+        while (running) {
+            long start = System.nanoTime();
+            try {
+                PollableSource.Status status = source.process();
+                polls.recordNanos(System.nanoTime() - start);
+                if (status == PollableSource.Status.BACKOFF)
+                    Thread.sleep(100);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                System.err.println("poll failed: " + e);
+            }
+        }
+    }
+
+    private void trickle() {
+        try {
+            Connection connection = DriverManager.getConnection(url);
+            try {
+                long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(duration);
+                long lastTime = 0;
+                // 10 inserts per second, each of a tenth of the rate
+                int perTick = Math.max(1, rate / 10);
+                long next = System.currentTimeMillis();
+                while (running && System.currentTimeMillis() < end) {
+                    lastTime = insert(connection, perTick, lastTime);
+                    next += 100;
+                    long wait = next - System.currentTimeMillis();
+                    if (wait > 0)
+                        Thread.sleep(wait);
+                }
+            } finally {
+                connection.close();
+            }
+        } catch (Exception e) {
+            System.err.println("insert failed: " + e);
+        }
+    }
+
+    /**
+     * Drain the channel until every row inserted is delivered, nothing came for idle seconds
+     * or the duration is over
+     */
+    private void consume(Channel channel, Thread inserter, long start) throws InterruptedException, IOException {
+        long deadline = start + TimeUnit.SECONDS.toNanos(duration + ("trickle".equals(scenario) ? idle : 0));
+        long lastEvent = System.nanoTime();
+        while (System.nanoTime() < deadline) {
+            if (inserter == null || !inserter.isAlive()) {
+                if (seen.cardinality() >= inserted.get())
+                    return;
+                // the first poll of a wide backlog can take longer than idle
+                if (delivered > 0 && System.nanoTime() - lastEvent > TimeUnit.SECONDS.toNanos(idle))
+                    return;
+            }
+            Transaction transaction = channel.getTransaction();
+            transaction.begin();
+            int taken = 0;
+            try {
+                Event event;
+                while (taken < takeBatch && (event = channel.take()) != null) {
+                    record(event);
+                    taken++;
+                }
+                transaction.commit();
+            } finally {
+                transaction.close();
+            }
+            if (taken > 0)
+                lastEvent = System.nanoTime();
+            if (consumerDelay > 0)
+                Thread.sleep(consumerDelay);
+            else if (taken == 0)
+                Thread.sleep(1);
+        }
+    }
+
+    private void record(Event event) throws IOException {
+        long now = System.currentTimeMillis();
+        byte[] body = event.getBody();
+        bytes += body.length;
+        body = decompress(event.getHeaders().get(EventCompressor.COMPRESSION_HEADER), body);
+        String packing = event.getHeaders().get(EventBuilder.PACKING_HEADER);
+        Schema schema = schema(event.getHeaders().get(AvroRowEncoder.SCHEMA_LITERAL_HEADER));
+        String csvHeader = event.getHeaders().get(CsvRowEncoder.CSV_HEADER);
+        if (csvHeader != null && !csvHeader.equals(csvNamesLine)) {
+            csvNamesLine = csvHeader;
+            // tsv rows are not quoted
+            csvParser = csvHeader.indexOf('\t') >= 0
+                    ? new CSVParser('\t', CSVParser.NULL_CHARACTER, CSVParser.NULL_CHARACTER) : new CSVParser();
+            csvNames = csvParser.parseLine(csvHeader);
+        }
+        if (EventBuilder.PACKING_COLUMNAR.equals(packing)) {
+            recordColumns(body, Integer.parseInt(event.getHeaders().get(EventBuilder.ROWS_HEADER)), now);
+        } else if (EventBuilder.PACKING_NDJSON.equals(packing)) {
+            for (String line : new String(body, UTF_8).split("\n")) {
+                if (csvNames != null)
+                    recordCsv(line, now);
+                else
+                    record(line, now);
+            }
+        } else if (EventBuilder.PACKING_FRAME.equals(packing)) {
+            ByteBuffer frames = ByteBuffer.wrap(body);
+            while (frames.hasRemaining()) {
+                int length = frames.getInt();
+                record(schema, body, frames.position(), length, now);
+                frames.position(frames.position() + length);
+            }
+        } else {
+            record(schema, body, 0, body.length, now);
+        }
+    }
+
+    /**
+     * @return the schema of the avro rows, null for json rows
+     */
+    private Schema schema(String literal) {
+        if (literal == null)
+            return null;
+        if (!literal.equals(avroLiteral)) {
+            avroLiteral = literal;
+            avroReader = new GenericDatumReader<GenericRecord>(new Schema.Parser().parse(literal));
+        }
+        return avroReader.getSchema();
+    }
+
+    private void record(Schema schema, byte[] body, int offset, int length, long now) throws IOException {
+        if (csvNames != null) {
+            recordCsv(new String(body, offset, length, UTF_8), now);
+            return;
+        }
+        if (schema == null) {
+            record(new String(body, offset, length, UTF_8), now);
+            return;
+        }
+        avroDecoder = DecoderFactory.get().binaryDecoder(body, offset, length, avroDecoder);
+        avroRecord = avroReader.read(avroRecord, avroDecoder);
+        Map<String, Object> row = new HashMap<String, Object>();
+        for (Schema.Field field : schema.getFields()) {
+            row.put(field.name(), avroRecord.get(field.pos()));
+        }
+        record(row, now);
+    }
+
+    private static byte[] decompress(String codec, byte[] body) throws IOException {
+        if (EventCompressor.GZIP.equals(codec)) {
+            GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(body));
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length * 8);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+        if (EventCompressor.SNAPPY.equals(codec))
+            return Snappy.uncompress(body);
+        if (EventCompressor.ZSTD.equals(codec))
+            return Zstd.decompress(body, (int) Zstd.decompressedSize(body));
+        return body;
+    }
+
+    /**
+     * Csv rows need event.csv.header for the column names
+     */
+    private void recordCsv(String line, long now) throws IOException {
+        String[] cells = csvParser.parseLine(line);
+        Map<String, Object> row = new HashMap<String, Object>();
+        for (int i = 0; i < csvNames.length; i++) {
+            // only the two bigint columns are read
+            if ("id".equalsIgnoreCase(csvNames[i]) || "inserted_at".equalsIgnoreCase(csvNames[i]))
+                row.put(csvNames[i], Long.valueOf(cells[i]));
+        }
+        record(row, now);
+    }
+
+    /**
+     * Turn the column vectors of a columnar pack back into rows
+     */
+    private void recordColumns(byte[] body, int rows, long now) throws IOException {
+        avroDecoder = DecoderFactory.get().binaryDecoder(body, avroDecoder);
+        avroRecord = avroReader.read(avroRecord, avroDecoder);
+        List<Map<String, Object>> cells = new ArrayList<Map<String, Object>>(rows);
+        for (int row = 0; row < rows; row++) {
+            cells.add(new HashMap<String, Object>());
+        }
+        for (Schema.Field field : avroReader.getSchema().getFields()) {
+            GenericRecord vector = (GenericRecord) avroRecord.get(field.pos());
+            ByteBuffer validity = (ByteBuffer) vector.get("validity");
+            List<?> values = (List<?>) vector.get(vector.getSchema().getField("values") != null ? "values" : "indices");
+            List<?> dictionary = (List<?>) vector.get("dictionary");
+            int next = 0;
+            for (int row = 0; row < rows; row++) {
+                if (validity.remaining() > 0 && (validity.get(validity.position() + (row >> 3)) & (1 << (row & 7))) == 0)
+                    continue;
+                Object value = values.get(next++);
+                cells.get(row).put(field.name(), dictionary == null ? value : dictionary.get((Integer) value));
+            }
+        }
+        for (Map<String, Object> row : cells) {
+            record(row, now);
+        }
+    }
+
+    private void record(String json, long now) {
+        record(JSON.parseObject(json), now);
+    }
+
+    private void record(Map<String, Object> row, long now) {
+        delivered++;
+        Long id = null, insertedAt = null;
+        for (Map.Entry<String, Object> column : row.entrySet()) {
+            if ("id".equalsIgnoreCase(column.getKey()))
+                id = ((Number) column.getValue()).longValue();
+            else if ("inserted_at".equalsIgnoreCase(column.getKey()))
+                insertedAt = ((Number) column.getValue()).longValue();
+        }
+        if (id != null) {
+            if (seen.get(id.intValue()))
+                duplicates++;
+            seen.set(id.intValue());
+        }
+        if (insertedAt != null)
+            freshness.record(TimeUnit.MILLISECONDS.toMicros(now - insertedAt));
+    }
+
+    private void report(double seconds) throws Exception {
+        long heap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                heap += pool.getPeakUsage().getUsed();
+        }
+        int missing = inserted.get() - seen.cardinality();
+
+        System.out.printf("scenario %s, %d columns, %d rows inserted%n", scenario, columns, inserted.get());
+        System.out.printf("delivered %d rows in %.1f s, %d missing, %d duplicates%n", delivered, seconds, missing, duplicates);
+        System.out.printf("throughput %.0f rows/s, %.2f MB/s%n", delivered / seconds, bytes / seconds / (1 << 20));
+        System.out.printf("poll latency p50 %.1f ms, p99 %.1f ms, max %.1f ms (with the delay before the next poll)%n",
+                polls.getPercentile(0.5) / 1000.0, polls.getPercentile(0.99) / 1000.0, polls.getMax() / 1000.0);
+        System.out.printf("p99 max query %d us, fetch %d us, deliver %d us%n",
+                counter("MaxQueryLatencyP99"), counter("FetchLatencyP99"), counter("DeliverLatencyP99"));
+        System.out.printf("heap high water mark %d MB%n", heap >> 20);
+        System.out.printf("freshness lag p50 %d ms, p99 %d ms, max %d ms%n",
+                freshness.getPercentile(0.5) / 1000, freshness.getPercentile(0.99) / 1000, freshness.getMax() / 1000);
+    }
+
+    private long counter(String attribute) throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.apache.flume.source:type=SOURCESQL." + SOURCE_NAME);
+        if (!server.isRegistered(name))
+            return -1;
+        return ((Number) server.getAttribute(name, attribute)).longValue();
+    }
+
+    private static double seconds(long start) {
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,26 @@
+package org.victor.flume.checkpoint;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Keeps the last checkpoint of a source, the json content of its status file, across restarts
+ *
+ */
+public interface CheckpointStore extends Closeable {
+
+    /**
+     * @return the last checkpoint written, null when there is none
+     */
+    String read() throws IOException;
+
+    /**
+     * Replace the checkpoint, durable once the call returns unless the store commits in groups
+     */
+    void write(String checkpoint) throws IOException;
+
+    /**
+     * Move an unreadable checkpoint aside, the next write starts a new one
+     */
+    void backup() throws IOException;
+}
@@ -0,0 +1,86 @@
+package org.victor.flume.checkpoint;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Checkpoint kept as a plain json file. Each checkpoint is written to a temporary file, synced
+ * and renamed over the previous one, a crash leaves either the old or the new checkpoint
+ * complete, never a truncated file.
+ *
+ */
+public class FileCheckpointStore implements CheckpointStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileCheckpointStore.class);
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final File temporary;
+
+    public FileCheckpointStore(File file) {
+        this.file = file;
+        this.temporary = new File(file.getPath() + ".tmp");
+    }
+
+    @Override
+    public String read() throws IOException {
+        if (!file.isFile())
+            return null;
+        return new String(Files.readAllBytes(file.toPath()), UTF_8);
+    }
+
+    @Override
+    public void write(String checkpoint) throws IOException {
+        FileOutputStream out = new FileOutputStream(temporary);
+        try {
+            out.write(checkpoint.getBytes(UTF_8));
+            out.getChannel().force(true);
+        } finally {
+            out.close();
+        }
+
+        try {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        syncDirectory(file.getAbsoluteFile().getParentFile());
+    }
+
+    @Override
+    public void backup() throws IOException {
+        file.renameTo(new File(file.getPath() + ".bak." + System.currentTimeMillis()));
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Make the rename durable, not every platform can open a directory
+     */
+    static void syncDirectory(File directory) {
+        if (directory == null)
+            return;
+        try {
+            FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            LOG.debug("Directory " + directory + " can't be synced", e);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.victor.flume.checkpoint;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Commits the checkpoints of another store at most once per interval, only the last
+ * checkpoint written in the interval reaches the store. <p>
+ * A crash loses the checkpoints of the last interval, the rows read since the previous
+ * committed checkpoint are read again on restart.
+ *
+ */
+public class GroupCommitCheckpointStore implements CheckpointStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GroupCommitCheckpointStore.class);
+
+    private final CheckpointStore store;
+    private final ScheduledExecutorService committer;
+
+    /* Last checkpoint written and not committed yet */
+    private String pending;
+
+    public GroupCommitCheckpointStore(CheckpointStore store, long interval) {
+        this.store = store;
+        this.committer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "sql-source-checkpoint");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        committer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    commit();
+                } catch (IOException e) {
+                    LOG.error("Error committing checkpoint, retried on the next interval", e);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized String read() throws IOException {
+        return pending != null ? pending : store.read();
+    }
+
+    @Override
+    public synchronized void write(String checkpoint) {
+        pending = checkpoint;
+    }
+
+    /**
+     * Write the pending checkpoint to the store
+     */
+    public synchronized void commit() throws IOException {
+        if (pending == null)
+            return;
+        store.write(pending);
+        pending = null;
+    }
+
+    @Override
+    public synchronized void backup() throws IOException {
+        pending = null;
+        store.backup();
+    }
+
+    @Override
+    public void close() throws IOException {
+        committer.shutdown();
+        try {
+            commit();
+        } finally {
+            store.close();
+        }
+    }
+}
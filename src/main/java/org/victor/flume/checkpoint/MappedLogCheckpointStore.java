@@ -0,0 +1,157 @@
+package org.victor.flume.checkpoint;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/**
+ * Checkpoints appended to a memory mapped log, a write costs a copy into the mapping and
+ * the sync of its dirty page instead of a new file. <p>
+ * Each record is its length, the crc32 of its content and the content, the last valid record
+ * is the checkpoint and a record torn by a crash is ignored. A full log is compacted into a
+ * new one holding only the last checkpoint, renamed over the old one. <p>
+ * When the log is empty the checkpoint of the plain json status file is read, so a source
+ * moving to this store resumes where it was.
+ *
+ */
+public class MappedLogCheckpointStore implements CheckpointStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedLogCheckpointStore.class);
+
+    /* record length and crc32 */
+    private static final int RECORD_HEADER = 8;
+    private static final int MIN_SIZE = 4096;
+
+    private final File statusFile;
+    private final File log;
+    private final File compacted;
+    private int size;
+
+    private MappedByteBuffer buffer;
+    private int position;
+    private String last;
+
+    /**
+     * @param statusFile the plain status file, the log is kept next to it with a .log suffix
+     * @param size bytes of the log, it is compacted once full
+     */
+    public MappedLogCheckpointStore(File statusFile, int size) throws IOException {
+        this.statusFile = statusFile;
+        this.log = new File(statusFile.getPath() + ".log");
+        this.compacted = new File(statusFile.getPath() + ".log.tmp");
+        this.size = Math.max(size, MIN_SIZE);
+        open();
+    }
+
+    private void open() throws IOException {
+        buffer = map(log, Math.max(size, (int) Math.min(log.length(), Integer.MAX_VALUE)));
+        position = 0;
+        last = null;
+        CRC32 crc = new CRC32();
+        while (position + RECORD_HEADER <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + RECORD_HEADER + length > buffer.capacity())
+                break;
+            byte[] content = new byte[length];
+            buffer.position(position + RECORD_HEADER);
+            buffer.get(content);
+            crc.reset();
+            crc.update(content, 0, length);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                LOG.warn("Torn checkpoint record at " + position + " of " + log + ", using the previous one");
+                break;
+            }
+            last = new String(content, FileCheckpointStore.UTF_8);
+            position += RECORD_HEADER + length;
+        }
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            // the mapping stays valid once the channel is closed
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    @Override
+    public synchronized String read() throws IOException {
+        if (last == null)
+            return new FileCheckpointStore(statusFile).read();
+        return last;
+    }
+
+    @Override
+    public synchronized void write(String checkpoint) throws IOException {
+        byte[] content = checkpoint.getBytes(FileCheckpointStore.UTF_8);
+        // room for the record and the zero length ending the log
+        int needed = RECORD_HEADER + content.length + 4;
+        if (position + needed > buffer.capacity()) {
+            compact(needed);
+        }
+        append(buffer, position, content);
+        buffer.force();
+        position += RECORD_HEADER + content.length;
+        last = checkpoint;
+    }
+
+    private static void append(MappedByteBuffer buffer, int position, byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+        buffer.position(position + RECORD_HEADER);
+        buffer.put(content);
+        buffer.putInt(0);
+        buffer.putInt(position + 4, (int) crc.getValue());
+        buffer.putInt(position, content.length);
+    }
+
+    /**
+     * Start a new log holding only the last checkpoint, with room for the next one
+     */
+    private void compact(int needed) throws IOException {
+        byte[] content = last != null ? last.getBytes(FileCheckpointStore.UTF_8) : new byte[0];
+        while (size < RECORD_HEADER + content.length + 2 * needed)
+            size *= 2;
+        compacted.delete();
+        MappedByteBuffer next = map(compacted, size);
+        int nextPosition = 0;
+        if (last != null) {
+            append(next, 0, content);
+            nextPosition = RECORD_HEADER + content.length;
+        }
+        next.force();
+
+        try {
+            Files.move(compacted.toPath(), log.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(compacted.toPath(), log.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        FileCheckpointStore.syncDirectory(log.getAbsoluteFile().getParentFile());
+        buffer = next;
+        position = nextPosition;
+        LOG.debug("Checkpoint log " + log + " compacted");
+    }
+
+    @Override
+    public synchronized void backup() throws IOException {
+        log.renameTo(new File(log.getPath() + ".bak." + System.currentTimeMillis()));
+        new FileCheckpointStore(statusFile).backup();
+        open();
+    }
+
+    @Override
+    public synchronized void close() {
+        buffer.force();
+    }
+}
@@ -0,0 +1,112 @@
+package org.victor.flume.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram in microseconds with log-linear buckets: values under 16 have their own
+ * bucket, larger ones fall in one of 8 buckets per power of two, so a percentile is at most
+ * 12.5% above the value measured. <p>
+ * Recording is a few atomic increments without lock. Percentiles cover the current interval
+ * and the previous one, so they follow the recent latencies instead of the whole uptime.
+ *
+ */
+public class LatencyHistogram {
+
+    private static final int LINEAR = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = LINEAR + (64 - 4) * SUB_BUCKETS;
+
+    private final long intervalNanos;
+
+    private volatile Window current = new Window();
+    private volatile Window previous = new Window();
+    private volatile long rotateAt;
+
+    public LatencyHistogram(long interval, TimeUnit unit) {
+        this.intervalNanos = unit.toNanos(interval);
+        this.rotateAt = System.nanoTime() + intervalNanos;
+    }
+
+    public void recordNanos(long nanos) {
+        record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /**
+     * @param micros latency in microseconds
+     */
+    public void record(long micros) {
+        long now = System.nanoTime();
+        if (now - rotateAt >= 0) {
+            rotate(now);
+        }
+        current.record(Math.max(0, micros));
+    }
+
+    private synchronized void rotate(long now) {
+        if (now - rotateAt < 0)
+            return;
+        previous = current;
+        current = new Window();
+        rotateAt = now + intervalNanos;
+    }
+
+    /**
+     * @param quantile between 0 and 1
+     * @return upper bound of the bucket holding the quantile, 0 without samples
+     */
+    public long getPercentile(double quantile) {
+        Window last = previous, recent = current;
+        long total = last.count.get() + recent.count.get();
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += last.buckets.get(i) + recent.buckets.get(i);
+            if (seen >= rank)
+                return Math.min(upperBound(i), Math.max(last.max.get(), recent.max.get()));
+        }
+        return getMax();
+    }
+
+    public long getMax() {
+        return Math.max(previous.max.get(), current.max.get());
+    }
+
+    public long getCount() {
+        return previous.count.get() + current.count.get();
+    }
+
+    static int bucket(long value) {
+        if (value < LINEAR)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < LINEAR)
+            return bucket;
+        int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+        long sub = (bucket - LINEAR) % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    private static class Window {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long micros) {
+            buckets.incrementAndGet(bucket(micros));
+            count.incrementAndGet();
+            long previousMax;
+            while (micros > (previousMax = max.get()) && !max.compareAndSet(previousMax, micros)) {
+            }
+        }
+    }
+}
@@ -13,6 +13,7 @@
 package org.victor.flume.metrics;
 
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.flume.instrumentation.MonitoredCounterGroup;
 
@@ -24,8 +25,32 @@ public class SqlSourceCounter extends MonitoredCounterGroup implements SqlSource
 	private static final String CURRENT_THROUGHPUT = "current_throughput";
 	private static final String MAX_THROUGHPUT = "max_throughput";
 	private static final String EVENT_COUNT = "events_count";
+	private static final String POLL_INTERVAL = "poll_interval";
+	private static final String ROWS_PER_POLL = "rows_per_poll";
+	private static final String BYTES_PER_POLL = "bytes_per_poll";
+	private static final String DELIVERY_RETRIES = "delivery_retries";
+	private static final String BUFFERED_EVENTS = "buffered_events";
+	private static final String SPILLED_BYTES = "spilled_bytes";
+	private static final String CONNECTION_RESETS = "connection_resets";
+	private static final String CONNECTION_REBUILDS = "connection_rebuilds";
+	private static final String CIRCUIT_OPEN = "circuit_open";
+	private static final String RECOVERY_TIME = "recovery_time";
     
-    private static final String[] ATTRIBUTES = {AVERAGE_THROUGHPUT, CURRENT_THROUGHPUT, MAX_THROUGHPUT, EVENT_COUNT};
+    private static final String[] ATTRIBUTES = {AVERAGE_THROUGHPUT, CURRENT_THROUGHPUT, MAX_THROUGHPUT, EVENT_COUNT, POLL_INTERVAL,
+            ROWS_PER_POLL, BYTES_PER_POLL, DELIVERY_RETRIES, BUFFERED_EVENTS,
+            SPILLED_BYTES, CONNECTION_RESETS, CONNECTION_REBUILDS, CIRCUIT_OPEN, RECOVERY_TIME};
+
+    /* Percentiles cover the last one to two minutes */
+    private static final long HISTOGRAM_INTERVAL = 60;
+
+    private final LatencyHistogram maxQueryLatency = new LatencyHistogram(HISTOGRAM_INTERVAL, TimeUnit.SECONDS);
+    private final LatencyHistogram fetchLatency = new LatencyHistogram(HISTOGRAM_INTERVAL, TimeUnit.SECONDS);
+    private final LatencyHistogram serializeLatency = new LatencyHistogram(HISTOGRAM_INTERVAL, TimeUnit.SECONDS);
+    private final LatencyHistogram deliverLatency = new LatencyHistogram(HISTOGRAM_INTERVAL, TimeUnit.SECONDS);
+
+    private final AtomicLong pollBytes = new AtomicLong();
+    /* Time of the last index written to the status file, epoch millis, -1 when it is not a time */
+    private volatile long watermark = -1;
     
     public SqlSourceCounter(String name) {
         super(MonitoredCounterGroup.Type.SOURCE, name, ATTRIBUTES);
@@ -55,6 +80,185 @@ public class SqlSourceCounter extends MonitoredCounterGroup implements SqlSource
     public long getMaxThroughput() {
         return get(MAX_THROUGHPUT);
     }
+
+    @Override
+    public long getPollInterval() {
+        return get(POLL_INTERVAL);
+    }
+
+    public void setPollInterval(long interval) {
+        set(POLL_INTERVAL, interval);
+    }
+
+    @Override
+    public long getRowsPerPoll() {
+        return get(ROWS_PER_POLL);
+    }
+
+    @Override
+    public long getBytesPerPoll() {
+        return get(BYTES_PER_POLL);
+    }
+
+    /**
+     * Account the bytes of the events built in the current poll
+     */
+    public void addPollBytes(long bytes) {
+        pollBytes.addAndGet(bytes);
+    }
+
+    @Override
+    public long getDeliveryRetries() {
+        return get(DELIVERY_RETRIES);
+    }
+
+    public void incrementDeliveryRetries() {
+        increment(DELIVERY_RETRIES);
+    }
+
+    @Override
+    public long getBufferedEvents() {
+        return get(BUFFERED_EVENTS);
+    }
+
+    public void setBufferedEvents(long events) {
+        set(BUFFERED_EVENTS, events);
+    }
+
+    @Override
+    public long getSpilledBytes() {
+        return get(SPILLED_BYTES);
+    }
+
+    public void setSpilledBytes(long bytes) {
+        set(SPILLED_BYTES, bytes);
+    }
+
+    @Override
+    public long getConnectionResets() {
+        return get(CONNECTION_RESETS);
+    }
+
+    public void incrementConnectionResets() {
+        increment(CONNECTION_RESETS);
+    }
+
+    @Override
+    public long getConnectionRebuilds() {
+        return get(CONNECTION_REBUILDS);
+    }
+
+    /**
+     * A factory rebuilt, polls skip the database until the next query succeeds
+     */
+    public void incrementConnectionRebuilds() {
+        increment(CONNECTION_REBUILDS);
+        set(CIRCUIT_OPEN, 1);
+    }
+
+    @Override
+    public long getCircuitOpen() {
+        return get(CIRCUIT_OPEN);
+    }
+
+    @Override
+    public long getRecoveryTime() {
+        return get(RECOVERY_TIME);
+    }
+
+    /**
+     * @param millis from the first failed query to the query succeeding after it
+     */
+    public void setRecoveryTime(long millis) {
+        set(RECOVERY_TIME, millis);
+        set(CIRCUIT_OPEN, 0);
+    }
+
+    @Override
+    public long getWatermarkLag() {
+        long current = watermark;
+        return current < 0 ? -1 : System.currentTimeMillis() - current;
+    }
+
+    public void setWatermark(long millis) {
+        watermark = millis;
+    }
+
+    public void recordMaxQuery(long nanos) {
+        maxQueryLatency.recordNanos(nanos);
+    }
+
+    public void recordFetch(long nanos) {
+        fetchLatency.recordNanos(nanos);
+    }
+
+    public void recordSerialize(long nanos) {
+        serializeLatency.recordNanos(nanos);
+    }
+
+    public void recordDeliver(long nanos) {
+        deliverLatency.recordNanos(nanos);
+    }
+
+    @Override
+    public long getMaxQueryLatencyP50() {
+        return maxQueryLatency.getPercentile(0.5);
+    }
+
+    @Override
+    public long getMaxQueryLatencyP99() {
+        return maxQueryLatency.getPercentile(0.99);
+    }
+
+    @Override
+    public long getMaxQueryLatencyMax() {
+        return maxQueryLatency.getMax();
+    }
+
+    @Override
+    public long getFetchLatencyP50() {
+        return fetchLatency.getPercentile(0.5);
+    }
+
+    @Override
+    public long getFetchLatencyP99() {
+        return fetchLatency.getPercentile(0.99);
+    }
+
+    @Override
+    public long getFetchLatencyMax() {
+        return fetchLatency.getMax();
+    }
+
+    @Override
+    public long getSerializeLatencyP50() {
+        return serializeLatency.getPercentile(0.5);
+    }
+
+    @Override
+    public long getSerializeLatencyP99() {
+        return serializeLatency.getPercentile(0.99);
+    }
+
+    @Override
+    public long getSerializeLatencyMax() {
+        return serializeLatency.getMax();
+    }
+
+    @Override
+    public long getDeliverLatencyP50() {
+        return deliverLatency.getPercentile(0.5);
+    }
+
+    @Override
+    public long getDeliverLatencyP99() {
+        return deliverLatency.getPercentile(0.99);
+    }
+
+    @Override
+    public long getDeliverLatencyMax() {
+        return deliverLatency.getMax();
+    }
     
     
     public void startProcess(){
@@ -63,18 +267,21 @@ public class SqlSourceCounter extends MonitoredCounterGroup implements SqlSource
     
     public void endProcess(int events){
     	
-    	long runningTime = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - getStartTime());
-    	long processTime = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - startProcessTime);
+    	long runningTime = System.currentTimeMillis() - getStartTime();
+    	long processTime = System.currentTimeMillis() - startProcessTime;
     	long throughput = 0L;
     	
+    	// events per second, from milliseconds so polls shorter than a second count
     	if (events > 0 && processTime > 0)
-    		throughput = events/processTime;
-    		if (getMaxThroughput() < throughput)
-    			set(MAX_THROUGHPUT,throughput);
+    		throughput = events * 1000L / processTime;
+    	if (getMaxThroughput() < throughput)
+    		set(MAX_THROUGHPUT,throughput);
     	
     	if (runningTime > 0 && getEventCount() > 0)
-    		set(AVERAGE_THROUGHPUT, (getEventCount()/runningTime));
+    		set(AVERAGE_THROUGHPUT, getEventCount() * 1000L / runningTime);
     	
     	set(CURRENT_THROUGHPUT,throughput);
+    	set(ROWS_PER_POLL, events);
+    	set(BYTES_PER_POLL, pollBytes.getAndSet(0));
     }
 }
@@ -26,4 +26,33 @@ public interface SqlSourceCounterMBean {
     public long getAverageThroughput();
     public long getCurrentThroughput();
     public long getMaxThroughput();
+    public long getPollInterval();
+    public long getRowsPerPoll();
+    public long getBytesPerPoll();
+    /* Retries of the batches the channel refused, and events of these batches still waiting */
+    public long getDeliveryRetries();
+    public long getBufferedEvents();
+    /* Bytes of the batches spilled to disk and not delivered yet, with delivery.spill */
+    public long getSpilledBytes();
+    /* Connections replaced and factories rebuilt after failed queries, 1 while polls skip the database,
+       and milliseconds from the first failure to the next query succeeding */
+    public long getConnectionResets();
+    public long getConnectionRebuilds();
+    public long getCircuitOpen();
+    public long getRecoveryTime();
+    /* Milliseconds between now and the time of the last index written to the status file */
+    public long getWatermarkLag();
+    /* Latencies in microseconds: max query and main query of a poll, serialization and channel put of a batch */
+    public long getMaxQueryLatencyP50();
+    public long getMaxQueryLatencyP99();
+    public long getMaxQueryLatencyMax();
+    public long getFetchLatencyP50();
+    public long getFetchLatencyP99();
+    public long getFetchLatencyMax();
+    public long getSerializeLatencyP50();
+    public long getSerializeLatencyP99();
+    public long getSerializeLatencyMax();
+    public long getDeliverLatencyP50();
+    public long getDeliverLatencyP99();
+    public long getDeliverLatencyMax();
 }
@@ -0,0 +1,420 @@
+package org.victor.flume.source;
+
+import org.apache.flume.conf.ConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.victor.flume.metrics.SqlSourceCounter;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Poll logic shared by the query engines: find the upper bound of the incremental window,
+ * run the selection query and move the current index once rows were read. <p>
+ * Engines only run the statements, database failures are reported as SQLException. Lost
+ * connections, at a query or when the session is opened, make the engine recover its
+ * connection as the {@link ConnectionRecovery} tiers tell, other errors fail the poll.
+ *
+ */
+public abstract class AbstractQueryEngine implements QueryEngine {
+
+	private static final Logger LOG = LoggerFactory.getLogger(AbstractQueryEngine.class);
+
+	protected final SQLSourceHelper sqlSourceHelper;
+	private final WindowSlicer windowSlicer;
+	private final UpperBound upperBound;
+	private final ConnectionRecovery recovery;
+	private SqlSourceCounter sqlSourceCounter;
+
+	protected AbstractQueryEngine(SQLSourceHelper sqlSourceHelper) {
+		this.sqlSourceHelper = sqlSourceHelper;
+		this.windowSlicer = new WindowSlicer(sqlSourceHelper);
+		this.upperBound = new UpperBound(sqlSourceHelper);
+		this.recovery = new ConnectionRecovery(sqlSourceHelper);
+	}
+
+	/**
+	 * @param sqlSourceCounter receives the latencies of the max and main queries
+	 */
+	public void setSqlSourceCounter(SqlSourceCounter sqlSourceCounter) {
+		this.sqlSourceCounter = sqlSourceCounter;
+	}
+
+	@Override
+	public boolean isCatchingUp() {
+		return windowSlicer.isEnabled() && windowSlicer.isCatchingUp();
+	}
+
+	/**
+	 * Prepare the connection used by the next queries
+	 */
+	protected abstract void openSession() throws Exception;
+
+	/**
+	 * Reopen the connection if it was lost since the last poll
+	 */
+	protected abstract void ensureConnected() throws Exception;
+
+	/**
+	 * Drop the connection and open a new one
+	 */
+	protected abstract void resetConnection() throws Exception;
+
+	/**
+	 * Drop the connection and what it came from after repeated failures, the next poll connects
+	 * again once the circuit lets it
+	 */
+	protected abstract void rebuildConnection() throws Exception;
+
+	@Override
+	public boolean isAvailable() {
+		return !recovery.isOpen(System.currentTimeMillis());
+	}
+
+	/**
+	 * Open the session unless the circuit is open, a failure counts as a lost connection
+	 */
+	@Override
+	public final void establishSession() throws Exception {
+		if (!isAvailable())
+			return;
+		try {
+			openSession();
+		} catch (Exception e) {
+			connectionFailed(false);
+			throw e;
+		}
+	}
+
+	/**
+	 * @return first cell of the first row, null if there is none
+	 */
+	protected abstract Object queryValue(QueryStatement statement) throws SQLException;
+
+	/**
+	 * @return max rows read by the statement, 0 for no limit
+	 */
+	protected int maxRows(QueryStatement statement) {
+		return statement.isBounded() ? sqlSourceHelper.getMaxRows() : 0;
+	}
+
+	/**
+	 * Read the whole result of the query, limited to max.rows
+	 */
+	protected abstract QueryResult list(QueryStatement statement) throws SQLException;
+
+	/**
+	 * Read the result of the query, limited to max.rows, handing every row to the handler
+	 */
+	protected abstract void scroll(QueryStatement statement, RowHandler handler) throws SQLException, IOException;
+
+	/**
+	 * Execute the selection query in the database
+	 *
+	 * @return The query result. Each Object is a cell content. <p>
+	 * The cell contents use database types (date,int,string...),
+	 * keep in mind in case of future conversions/castings.
+	 * @throws InterruptedException
+	 */
+	@Override
+	public QueryResult executeQuery() throws Exception {
+
+		QueryResult result = QueryResult.empty();
+		if (isCircuitOpen())
+			return result;
+		connect();
+
+		String maxTime = queryMaxTime();
+		if (maxTime == null) {
+			return result;
+		}
+
+		String upperBound = upperBound(maxTime);
+		try {
+			QueryStatement statement = sqlSourceHelper.selectStatement(upperBound);
+			LOG.info("执行sql:" + statement);
+			long start = System.nanoTime();
+			result = list(statement);
+			if (sqlSourceCounter != null)
+				sqlSourceCounter.recordFetch(System.nanoTime() - start);
+			recovered();
+			LOG.info("开始时间:" + sqlSourceHelper.getCurrentIndex() + ",截止时间:" + upperBound + ",数据量: " + String.valueOf(result.size()));
+		} catch (SQLException e) {
+			if (!ConnectionRecovery.isConnectionFailure(e))
+				throw e;
+			LOG.error("Exception reset connection.", e);
+			connectionFailed(true);
+			return result;
+		}
+
+		if (!result.isEmpty() && sqlSourceHelper.isKeysetPagination()) {
+			sqlSourceHelper.setLastRow(result.getHeader(), result.getRows().get(result.size() - 1));
+		} else if (sqlSourceHelper.isUpperBoundFromRows()) {
+			CountingRowHandler times = new CountingRowHandler(null);
+			for (Object[] row : result.getRows()) {
+				times.handle(result.getHeader(), row);
+			}
+			moveIndexToRows(times);
+		} else if (!moveIndex(upperBound, result.size())) {
+			// truncated slice, read again smaller without sending these rows twice
+			return QueryResult.empty();
+		}
+		return result;
+	}
+
+	/**
+	 * Execute the selection query in the database through a forward only cursor,
+	 * handing every row to the handler as soon as it is read, so only the rows
+	 * buffered by the handler are kept on the heap. The rows of a catch up slice, at
+	 * most max.rows, are held until the slice is known not to be truncated.
+	 *
+	 * @param handler receives each row of the result
+	 * @return number of rows handed to the handler
+	 */
+	@Override
+	public int executeQuery(RowHandler handler) throws Exception {
+
+		if (isCircuitOpen())
+			return 0;
+		connect();
+
+		String maxTime = queryMaxTime();
+		if (maxTime == null) {
+			return 0;
+		}
+
+		String upperBound = upperBound(maxTime);
+		// a truncated slice is read again smaller, its rows are handed over once it is accepted
+		SliceBuffer slice = windowSlicer.isEnabled() && sqlSourceHelper.getMaxRows() > 0 ? new SliceBuffer() : null;
+		CountingRowHandler counter = new CountingRowHandler(slice != null ? slice : handler);
+		try {
+			QueryStatement statement = sqlSourceHelper.selectStatement(upperBound);
+			LOG.info("执行sql:" + statement);
+			long start = System.nanoTime();
+			scroll(statement, counter);
+			// the handler time is accounted by the writers
+			if (sqlSourceCounter != null)
+				sqlSourceCounter.recordFetch(System.nanoTime() - start - counter.handlerNanos);
+			recovered();
+			LOG.info("开始时间:" + sqlSourceHelper.getCurrentIndex() + ",截止时间:" + upperBound + ",数据量: " + String.valueOf(counter.rows));
+		} catch (SQLException e) {
+			if (!ConnectionRecovery.isConnectionFailure(e))
+				throw e;
+			LOG.error("Exception reset connection, " + counter.rows + " rows were read before the failure.", e);
+			connectionFailed(true);
+			return slice != null ? 0 : counter.rows;
+		}
+
+		if (counter.rows > 0 && sqlSourceHelper.isKeysetPagination()) {
+			sqlSourceHelper.setLastRow(counter.header, counter.row);
+		} else if (sqlSourceHelper.isUpperBoundFromRows()) {
+			moveIndexToRows(counter);
+		} else if (!moveIndex(upperBound, counter.rows)) {
+			return 0;
+		}
+		if (slice != null)
+			slice.flush(handler);
+		return counter.rows;
+	}
+
+	/**
+	 * @return true while the polls skip the database after a rebuilt connection failed
+	 */
+	private boolean isCircuitOpen() {
+		if (!recovery.isOpen(System.currentTimeMillis()))
+			return false;
+		LOG.info("Connection recovering, no query before " + new Date(recovery.getOpenUntil()));
+		return true;
+	}
+
+	private void connect() throws Exception {
+		try {
+			ensureConnected();
+		} catch (Exception e) {
+			connectionFailed(false);
+			throw e;
+		}
+	}
+
+	/**
+	 * A lost connection, the failures in a row tell how to recover, one attempt per poll: the
+	 * connection of a failed query is replaced, once reconnect.resets failures went by the
+	 * connection is rebuilt and the circuit opens. A failure to connect is itself the attempt
+	 * of the poll, the next poll connects again
+	 *
+	 * @param reconnect true to replace the connection at once, after a failed query
+	 */
+	private void connectionFailed(boolean reconnect) {
+		try {
+			if (recovery.failed(System.currentTimeMillis()) == ConnectionRecovery.Tier.REBUILD) {
+				LOG.warn(recovery.getFailures() + " connection failures in a row, rebuilding the connection, no query before "
+						+ new Date(recovery.getOpenUntil()));
+				if (sqlSourceCounter != null)
+					sqlSourceCounter.incrementConnectionRebuilds();
+				rebuildConnection();
+			} else if (reconnect) {
+				if (sqlSourceCounter != null)
+					sqlSourceCounter.incrementConnectionResets();
+				resetConnection();
+			}
+		} catch (Exception e) {
+			LOG.warn("Connection not recovered, the next poll tries again", e);
+		}
+	}
+
+	private void recovered() {
+		long recoveryTime = recovery.succeeded(System.currentTimeMillis());
+		if (recoveryTime < 0)
+			return;
+		LOG.info("Connection recovered in " + recoveryTime + " ms");
+		if (sqlSourceCounter != null)
+			sqlSourceCounter.setRecoveryTime(recoveryTime);
+	}
+
+	private String upperBound(String maxTime) {
+		if (!windowSlicer.isEnabled())
+			return maxTime;
+		return windowSlicer.upperBound(sqlSourceHelper.getCurrentIndex(), maxTime);
+	}
+
+	/**
+	 * Move the current index to the end of the window just read
+	 *
+	 * @return false if the window was a truncated slice and the index did not move
+	 */
+	private boolean moveIndex(String upperBound, int rows) {
+		if (!sqlSourceHelper.isTransferIncrement())
+			return true;
+		if (windowSlicer.isEnabled()) {
+			// an empty slice still moves the index forward
+			if (!windowSlicer.accept(rows))
+				return false;
+			sqlSourceHelper.setCurrentIndex(upperBound);
+		} else if (rows > 0) {
+			sqlSourceHelper.setCurrentIndex(upperBound);
+		}
+		return true;
+	}
+
+	/**
+	 * Without an upper bound the rows are read in time order, the index moves to the last
+	 * time read. When max.rows cut the result the rows sharing the last time may not all
+	 * have been read, the index then stops at the time before, they are read again
+	 */
+	private void moveIndexToRows(CountingRowHandler times) {
+		if (times.rows == 0)
+			return;
+		String index = times.lastTime;
+		int maxRows = sqlSourceHelper.getMaxRows();
+		if (maxRows > 0 && times.rows >= maxRows) {
+			if (times.previousTime != null) {
+				index = times.previousTime;
+			} else {
+				LOG.warn("All the " + times.rows + " rows read have the time " + index + ", rows past max.rows are skipped, raise max.rows");
+			}
+		}
+		sqlSourceHelper.setCurrentIndex(index);
+	}
+
+	/**
+	 * Find the upper bound of the incremental window, querying the max time when upper.bound needs it
+	 *
+	 * @return the upper bound, empty string in bulk mode or null when there is nothing to read
+	 */
+	private String queryMaxTime() throws Exception {
+		String maxTime = "";
+		if (sqlSourceHelper.isTransferIncrement() && !upperBound.needsMaxQuery()) {
+			maxTime = upperBound.next(null);
+			LOG.info("窗口上界:" + maxTime);
+		} else if (sqlSourceHelper.isTransferIncrement()) {
+			try {
+				String sql = sqlSourceHelper.maxQuery();
+				LOG.info("执行查询max时间sql:" + sql);
+				long start = System.nanoTime();
+				Object max = queryValue(new QueryStatement(sql));
+				if (sqlSourceCounter != null)
+					sqlSourceCounter.recordMaxQuery(System.nanoTime() - start);
+				recovered();
+				if (max == null) {
+					LOG.info("时间列没有数据");
+					return null;
+				}
+				maxTime = upperBound.next(max.toString());
+			} catch (SQLException e) {
+				upperBound.reset();
+				if (!ConnectionRecovery.isConnectionFailure(e))
+					throw e;
+				LOG.info("执行查询max时间异常,连接被重置:", e);
+				connectionFailed(true);
+				return null;
+			}
+
+			LOG.info("最大时间戳:" + maxTime);
+		} else {
+			LOG.info("全量模式");
+		}
+		return maxTime;
+	}
+
+	/**
+	 * Rows of a slice not handed over yet
+	 */
+	private static class SliceBuffer implements RowHandler {
+		private final List<RowHeader> headers = new ArrayList<>();
+		private final List<Object[]> rows = new ArrayList<>();
+
+		@Override
+		public void handle(RowHeader header, Object[] row) {
+			headers.add(header);
+			rows.add(row);
+		}
+
+		void flush(RowHandler handler) throws IOException {
+			for (int i = 0; i < rows.size(); i++) {
+				handler.handle(headers.get(i), rows.get(i));
+			}
+		}
+	}
+
+	private class CountingRowHandler implements RowHandler {
+		private final RowHandler handler;
+		private int rows;
+		/* Last row handed over, where the next keyset page starts */
+		private RowHeader header;
+		private Object[] row;
+		/* With upper.bound rows, time of the last row and last time read before it */
+		private String lastTime, previousTime;
+		private long handlerNanos;
+
+		CountingRowHandler(RowHandler handler) {
+			this.handler = handler;
+		}
+
+		@Override
+		public void handle(RowHeader header, Object[] row) throws IOException {
+			if (handler != null) {
+				long start = System.nanoTime();
+				handler.handle(header, row);
+				handlerNanos += System.nanoTime() - start;
+			}
+			rows++;
+			this.header = header;
+			this.row = row;
+			if (sqlSourceHelper.isUpperBoundFromRows())
+				trackTime(header, row);
+		}
+
+		private void trackTime(RowHeader header, Object[] row) {
+			int index = header.indexOf(sqlSourceHelper.getTimeColumn());
+			if (index < 0)
+				throw new ConfigurationException("upper.bound rows needs " + sqlSourceHelper.getTimeColumn() + " in columns.to.select");
+			String time = String.valueOf(row[index]);
+			if (lastTime != null && !lastTime.equals(time))
+				previousTime = lastTime;
+			lastTime = time;
+		}
+	}
+}
@@ -0,0 +1,312 @@
+package org.victor.flume.source;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.codehaus.jackson.node.IntNode;
+import org.codehaus.jackson.node.NullNode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a row as avro binary, with a record schema built from the column details reported by the
+ * jdbc engine. The schema is built once per result shape and every field is nullable, timestamps,
+ * dates, times and decimals carry their avro logical types. <p>
+ * Each event has the parsing fingerprint of the schema (CRC-64-AVRO, in hex) in the
+ * avro.schema.fingerprint header and, unless disabled, the schema itself in the
+ * flume.avro.schema.literal header read by flume's AvroEventSerializer. <p>
+ * Not thread safe, each serializing thread needs its own encoder.
+ *
+ */
+public class AvroRowEncoder implements RowEncoder {
+
+    static final String SCHEMA_LITERAL_HEADER = "flume.avro.schema.literal";
+    static final String SCHEMA_FINGERPRINT_HEADER = "avro.schema.fingerprint";
+
+    private static final String DEFAULT_RECORD_NAME = "row";
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    /* How the cells of a column are written */
+    static final int STRING = 0, BOOLEAN = 1, INT = 2, LONG = 3, FLOAT = 4, DOUBLE = 5,
+            DECIMAL = 6, DATE = 7, TIME = 8, TIMESTAMP = 9, BYTES = 10;
+
+    private final String recordName;
+    private final boolean schemaLiteralHeader;
+    private final TimeZone timeZone = TimeZone.getDefault();
+
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream(256);
+    private BinaryEncoder encoder;
+
+    /* Header of the last encoded row and what was derived from it */
+    private RowHeader header;
+    private int[] kinds;
+    private String literal, fingerprint;
+
+    /**
+     * @param recordName name of the record schema, the table read
+     * @param schemaLiteralHeader put the schema in every event, not only its fingerprint
+     */
+    public AvroRowEncoder(String recordName, boolean schemaLiteralHeader) {
+        this.recordName = recordName == null ? DEFAULT_RECORD_NAME : avroName(recordName);
+        this.schemaLiteralHeader = schemaLiteralHeader;
+    }
+
+    @Override
+    public byte[] encode(RowHeader header, Object[] row) throws IOException {
+        if (header != this.header)
+            prepare(header);
+
+        output.reset();
+        encoder = EncoderFactory.get().binaryEncoder(output, encoder);
+        for (int i = 0; i < kinds.length; i++) {
+            if (row[i] == null) {
+                encoder.writeIndex(0);
+                encoder.writeNull();
+            } else {
+                encoder.writeIndex(1);
+                write(encoder, timeZone, kinds[i], header.getScale(i), row[i]);
+            }
+        }
+        encoder.flush();
+        return output.toByteArray();
+    }
+
+    @Override
+    public void putHeaders(RowHeader header, Map<String, String> headers) {
+        if (header != this.header)
+            prepare(header);
+        headers.put(SCHEMA_FINGERPRINT_HEADER, fingerprint);
+        if (schemaLiteralHeader)
+            headers.put(SCHEMA_LITERAL_HEADER, literal);
+    }
+
+    private void prepare(RowHeader header) {
+        if (!header.hasColumnDetails())
+            throw new IllegalArgumentException("Avro rows need the column details of the jdbc engine");
+
+        int[] kinds = new int[header.size()];
+        for (int i = 0; i < header.size(); i++) {
+            kinds[i] = kind(header, i);
+        }
+        Schema schema = schema(header, kinds);
+        literal = schema.toString();
+        fingerprint = String.format("%016x", SchemaNormalization.parsingFingerprint64(schema));
+        this.kinds = kinds;
+        this.header = header;
+    }
+
+    private Schema schema(RowHeader header, int[] kinds) {
+        String[] names = fieldNames(header);
+        List<Schema.Field> fields = new ArrayList<Schema.Field>(header.size());
+        for (int i = 0; i < header.size(); i++) {
+            Schema nullable = Schema.createUnion(Arrays.asList(Schema.create(Schema.Type.NULL), fieldSchema(header, i, kinds[i])));
+            fields.add(field(header, i, names[i], nullable));
+        }
+        Schema schema = Schema.createRecord(recordName, null, null, false);
+        schema.setFields(fields);
+        return schema;
+    }
+
+    /**
+     * @return the avro names of the columns, duplicates after sanitizing get a _2, _3... suffix
+     */
+    static String[] fieldNames(RowHeader header) {
+        String[] names = new String[header.size()];
+        Set<String> used = new HashSet<String>();
+        for (int i = 0; i < header.size(); i++) {
+            String name = avroName(header.getName(i));
+            for (int suffix = 2; !used.add(name); suffix++) {
+                name = avroName(header.getName(i)) + "_" + suffix;
+            }
+            names[i] = name;
+        }
+        return names;
+    }
+
+    /**
+     * @return field of the column, keeping its sql name when it had to be sanitized. Nullable
+     * fields default to null
+     */
+    static Schema.Field field(RowHeader header, int index, String name, Schema schema) {
+        Schema.Field field = new Schema.Field(name, schema, null,
+                schema.getType() == Schema.Type.UNION ? NullNode.getInstance() : null);
+        if (!name.equals(header.getName(index)))
+            field.addProp("sqlName", header.getName(index));
+        return field;
+    }
+
+    static int kind(RowHeader header, int index) {
+        String className = header.getClassName(index);
+        if ("java.lang.Boolean".equals(className))
+            return BOOLEAN;
+        if ("java.lang.Byte".equals(className) || "java.lang.Short".equals(className) || "java.lang.Integer".equals(className))
+            return INT;
+        if ("java.lang.Long".equals(className))
+            return LONG;
+        if ("java.lang.Float".equals(className))
+            return FLOAT;
+        if ("java.lang.Double".equals(className))
+            return DOUBLE;
+        if ("java.math.BigDecimal".equals(className)) {
+            // Oracle NUMBER without precision reports 0, its values have no fixed scale
+            int precision = header.getPrecision(index), scale = header.getScale(index);
+            return precision > 0 && scale >= 0 && scale <= precision ? DECIMAL : STRING;
+        }
+        if ("java.sql.Timestamp".equals(className))
+            return TIMESTAMP;
+        if ("java.sql.Date".equals(className))
+            return DATE;
+        if ("java.sql.Time".equals(className))
+            return TIME;
+        switch (header.getSqlType(index)) {
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                return BYTES;
+            default:
+                return STRING;
+        }
+    }
+
+    static Schema fieldSchema(RowHeader header, int index, int kind) {
+        Schema schema;
+        switch (kind) {
+            case BOOLEAN:
+                return Schema.create(Schema.Type.BOOLEAN);
+            case INT:
+                return Schema.create(Schema.Type.INT);
+            case LONG:
+                return Schema.create(Schema.Type.LONG);
+            case FLOAT:
+                return Schema.create(Schema.Type.FLOAT);
+            case DOUBLE:
+                return Schema.create(Schema.Type.DOUBLE);
+            case BYTES:
+                return Schema.create(Schema.Type.BYTES);
+            case DECIMAL:
+                schema = Schema.create(Schema.Type.BYTES);
+                schema.addProp("logicalType", "decimal");
+                schema.addProp("precision", IntNode.valueOf(header.getPrecision(index)));
+                schema.addProp("scale", IntNode.valueOf(header.getScale(index)));
+                return schema;
+            case DATE:
+                schema = Schema.create(Schema.Type.INT);
+                schema.addProp("logicalType", "date");
+                return schema;
+            case TIME:
+                schema = Schema.create(Schema.Type.INT);
+                schema.addProp("logicalType", "time-millis");
+                return schema;
+            case TIMESTAMP:
+                schema = Schema.create(Schema.Type.LONG);
+                schema.addProp("logicalType", "timestamp-millis");
+                return schema;
+            default:
+                return Schema.create(Schema.Type.STRING);
+        }
+    }
+
+    static void write(BinaryEncoder encoder, TimeZone timeZone, int kind, int scale, Object value) throws IOException {
+        switch (kind) {
+            case BOOLEAN:
+                encoder.writeBoolean(value instanceof Boolean ? (Boolean) value : ((Number) value).intValue() != 0);
+                break;
+            case INT:
+                encoder.writeInt(((Number) value).intValue());
+                break;
+            case LONG:
+                encoder.writeLong(((Number) value).longValue());
+                break;
+            case FLOAT:
+                encoder.writeFloat(((Number) value).floatValue());
+                break;
+            case DOUBLE:
+                encoder.writeDouble(((Number) value).doubleValue());
+                break;
+            case DECIMAL:
+                encoder.writeBytes(((BigDecimal) value).setScale(scale, RoundingMode.HALF_UP).unscaledValue().toByteArray());
+                break;
+            case DATE:
+                encoder.writeInt((int) floorDiv(localMillis(timeZone, (Date) value), DAY));
+                break;
+            case TIME:
+                long millis = localMillis(timeZone, (Date) value);
+                encoder.writeInt((int) (millis - floorDiv(millis, DAY) * DAY));
+                break;
+            case TIMESTAMP:
+                encoder.writeLong(((Date) value).getTime());
+                break;
+            case BYTES:
+                encoder.writeBytes(bytes(value));
+                break;
+            default:
+                encoder.writeString(string(value));
+        }
+    }
+
+    /**
+     * Dates and times are read in the local time zone, avro counts them from the UTC epoch
+     */
+    private static long localMillis(TimeZone timeZone, Date value) {
+        return value.getTime() + timeZone.getOffset(value.getTime());
+    }
+
+    private static long floorDiv(long value, long divisor) {
+        long quotient = value / divisor;
+        return value % divisor < 0 ? quotient - 1 : quotient;
+    }
+
+    private static byte[] bytes(Object value) throws IOException {
+        try {
+            if (value instanceof Blob)
+                return ((Blob) value).getBytes(1, (int) ((Blob) value).length());
+        } catch (SQLException e) {
+            throw new IOException("Blob can't be read", e);
+        }
+        return value instanceof byte[] ? (byte[]) value : String.valueOf(value).getBytes("UTF-8");
+    }
+
+    static String string(Object value) throws IOException {
+        try {
+            if (value instanceof Clob)
+                return ((Clob) value).getSubString(1, (int) ((Clob) value).length());
+        } catch (SQLException e) {
+            throw new IOException("Clob can't be read", e);
+        }
+        return value instanceof String ? (String) value : String.valueOf(value);
+    }
+
+    /**
+     * @return the name with the characters avro does not allow replaced by _, prefixed by _ when it
+     * starts with a digit
+     */
+    static String avroName(String name) {
+        StringBuilder result = new StringBuilder(name.length() + 1);
+        if (name.isEmpty() || (name.charAt(0) >= '0' && name.charAt(0) <= '9'))
+            result.append('_');
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+            result.append(valid ? c : '_');
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,143 @@
+package org.victor.flume.source;
+
+import org.apache.flume.conf.ConfigurationException;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Range of the partition column read by one worker of the parallel bulk load. <p>
+ * The first range has no lower bound and the last one no upper bound, so rows past the
+ * probed min and max are read too, the rows with a null partition column have their own range.
+ * Bounds are Long for numeric columns and Timestamp for temporal ones.
+ *
+ */
+class BulkRange {
+
+    private final Object lower, upper;
+    private final boolean nulls;
+    private volatile boolean done;
+
+    BulkRange(Object lower, Object upper, boolean nulls) {
+        this.lower = lower;
+        this.upper = upper;
+        this.nulls = nulls;
+    }
+
+    /**
+     * Split the values between min and max of the partition column in ranges of the same width
+     *
+     * @param min lowest value of the partition column, null when the table has no value to split
+     */
+    static List<BulkRange> split(Object min, Object max, int partitions) {
+        List<BulkRange> ranges = new ArrayList<BulkRange>();
+        ranges.add(new BulkRange(null, null, true));
+        if (min == null || max == null || partitions <= 1) {
+            ranges.add(new BulkRange(null, null, false));
+            return ranges;
+        }
+
+        boolean temporal = min instanceof Date;
+        long low = toLong(min), high = toLong(max);
+        long span = high - low;
+        Object lower = null;
+        long previous = low;
+        for (int i = 1; i < partitions; i++) {
+            long boundary = low + span / partitions * i + span % partitions * i / partitions;
+            if (boundary <= previous)
+                continue;
+            Object upper = temporal ? new Timestamp(boundary) : (Object) boundary;
+            ranges.add(new BulkRange(lower, upper, false));
+            lower = upper;
+            previous = boundary;
+        }
+        ranges.add(new BulkRange(lower, null, false));
+        return ranges;
+    }
+
+    private static long toLong(Object value) {
+        if (value instanceof Date)
+            return ((Date) value).getTime();
+        if (value instanceof Number)
+            return ((Number) value).longValue();
+        throw new ConfigurationException("bulk.partition.column must be numeric or temporal, found " + value.getClass().getName());
+    }
+
+    /**
+     * @return condition selecting the rows of the range, with ? for the bounds
+     */
+    String condition(String column) {
+        if (nulls)
+            return column + " IS NULL";
+        if (lower != null && upper != null)
+            return column + " >= ? AND " + column + " < ?";
+        if (lower != null)
+            return column + " >= ?";
+        if (upper != null)
+            return column + " < ?";
+        return column + " IS NOT NULL";
+    }
+
+    Object[] parameters() {
+        List<Object> parameters = new ArrayList<Object>(2);
+        if (lower != null)
+            parameters.add(lower);
+        if (upper != null)
+            parameters.add(upper);
+        return parameters.toArray();
+    }
+
+    boolean isDone() {
+        return done;
+    }
+
+    void setDone() {
+        done = true;
+    }
+
+    @Override
+    public String toString() {
+        return nulls ? "[null]" : "[" + lower + ", " + upper + ")";
+    }
+
+    static String toJson(List<BulkRange> ranges) {
+        List<Map<String, Object>> values = new ArrayList<Map<String, Object>>(ranges.size());
+        for (BulkRange range : ranges) {
+            Map<String, Object> value = new LinkedHashMap<String, Object>();
+            value.put("lower", range.lower instanceof Timestamp ? range.lower.toString() : range.lower);
+            value.put("upper", range.upper instanceof Timestamp ? range.upper.toString() : range.upper);
+            value.put("nulls", range.nulls);
+            value.put("done", range.done);
+            values.add(value);
+        }
+        return JSONValue.toJSONString(values);
+    }
+
+    static List<BulkRange> parse(String json) throws ParseException {
+        List<BulkRange> ranges = new ArrayList<BulkRange>();
+        for (Object item : (List<?>) new JSONParser().parse(json)) {
+            Map<?, ?> value = (Map<?, ?>) item;
+            BulkRange range = new BulkRange(parseBound(value.get("lower")), parseBound(value.get("upper")),
+                    Boolean.TRUE.equals(value.get("nulls")));
+            if (Boolean.TRUE.equals(value.get("done")))
+                range.setDone();
+            ranges.add(range);
+        }
+        return ranges;
+    }
+
+    private static Object parseBound(Object value) {
+        if (value instanceof String)
+            return Timestamp.valueOf((String) value);
+        if (value instanceof Number)
+            return ((Number) value).longValue();
+        return null;
+    }
+}
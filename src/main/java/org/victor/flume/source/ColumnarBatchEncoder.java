@@ -0,0 +1,241 @@
+package org.victor.flume.source;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Writes a pack of rows as one avro record holding a vector per column, for event.packing columnar.
+ * Each vector has a validity bitmap, one bit per row in least significant bit order set when the
+ * row has a value and empty when no row is null, and the values of the rows that have one:
+ * typed values as in {@link AvroRowEncoder}, strings as indices into the dictionary of the
+ * distinct strings of the pack. <p>
+ * The cells are appended to the vectors as the rows arrive, a pack keeps no row. The schema is
+ * built once per result shape and goes in the same headers as the avro rows. <p>
+ * Not thread safe, each serializing thread needs its own encoder.
+ *
+ */
+class ColumnarBatchEncoder {
+
+    private static final String DEFAULT_RECORD_NAME = "batch";
+
+    private final String recordName;
+    private final boolean schemaLiteralHeader;
+    private final TimeZone timeZone = TimeZone.getDefault();
+
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream(4096);
+    private BinaryEncoder encoder;
+
+    /* Header of the rows of the pack and what was derived from it */
+    private RowHeader header;
+    private Vector[] vectors;
+    private String literal, fingerprint;
+    private int rows;
+
+    /**
+     * @param recordName name of the record schema, the table read
+     * @param schemaLiteralHeader put the schema in every event, not only its fingerprint
+     */
+    ColumnarBatchEncoder(String recordName, boolean schemaLiteralHeader) {
+        this.recordName = recordName == null ? DEFAULT_RECORD_NAME : AvroRowEncoder.avroName(recordName);
+        this.schemaLiteralHeader = schemaLiteralHeader;
+    }
+
+    /**
+     * @return bytes of the values and dictionaries of the vectors so far
+     */
+    int size() {
+        int size = 0;
+        if (vectors != null) {
+            for (Vector vector : vectors) {
+                size += vector.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Append the cells of the row to the vectors, the pack must be empty when the header changes
+     *
+     * @return bytes added to the vectors
+     */
+    int add(RowHeader header, Object[] row) throws IOException {
+        if (header != this.header) {
+            if (rows > 0)
+                throw new IllegalStateException("Pack has rows of another header");
+            prepare(header);
+        }
+        int before = size();
+        for (int i = 0; i < vectors.length; i++) {
+            vectors[i].add(rows, row[i]);
+        }
+        rows++;
+        return size() - before;
+    }
+
+    /**
+     * @return the record of the pack, the vectors are emptied for the next one
+     */
+    byte[] encode() throws IOException {
+        output.reset();
+        encoder = EncoderFactory.get().directBinaryEncoder(output, encoder);
+        for (Vector vector : vectors) {
+            vector.writeTo(rows);
+            vector.clear();
+        }
+        rows = 0;
+        return output.toByteArray();
+    }
+
+    /**
+     * Drop the rows of the pack
+     */
+    void clear() {
+        if (vectors != null) {
+            for (Vector vector : vectors) {
+                vector.clear();
+            }
+        }
+        rows = 0;
+    }
+
+    void putHeaders(RowHeader header, Map<String, String> headers) {
+        if (header != this.header)
+            prepare(header);
+        headers.put(AvroRowEncoder.SCHEMA_FINGERPRINT_HEADER, fingerprint);
+        if (schemaLiteralHeader)
+            headers.put(AvroRowEncoder.SCHEMA_LITERAL_HEADER, literal);
+    }
+
+    private void prepare(RowHeader header) {
+        if (!header.hasColumnDetails())
+            throw new IllegalArgumentException("Columnar packs need the column details of the jdbc engine");
+
+        String[] names = AvroRowEncoder.fieldNames(header);
+        Vector[] vectors = new Vector[header.size()];
+        List<Schema.Field> fields = new ArrayList<Schema.Field>(header.size());
+        for (int i = 0; i < header.size(); i++) {
+            vectors[i] = new Vector(AvroRowEncoder.kind(header, i), header.getScale(i));
+            fields.add(AvroRowEncoder.field(header, i, names[i], vectorSchema(header, i, names[i], vectors[i].kind)));
+        }
+        Schema schema = Schema.createRecord(recordName, null, null, false);
+        schema.setFields(fields);
+
+        literal = schema.toString();
+        fingerprint = String.format("%016x", SchemaNormalization.parsingFingerprint64(schema));
+        this.vectors = vectors;
+        this.header = header;
+        rows = 0;
+    }
+
+    private static Schema vectorSchema(RowHeader header, int index, String name, int kind) {
+        List<Schema.Field> fields = new ArrayList<Schema.Field>(3);
+        fields.add(new Schema.Field("validity", Schema.create(Schema.Type.BYTES), null, null));
+        if (kind == AvroRowEncoder.STRING) {
+            fields.add(new Schema.Field("dictionary", Schema.createArray(Schema.create(Schema.Type.STRING)), null, null));
+            fields.add(new Schema.Field("indices", Schema.createArray(Schema.create(Schema.Type.INT)), null, null));
+        } else {
+            fields.add(new Schema.Field("values", Schema.createArray(AvroRowEncoder.fieldSchema(header, index, kind)), null, null));
+        }
+        Schema schema = Schema.createRecord(name + "_vector", null, null, false);
+        schema.setFields(fields);
+        return schema;
+    }
+
+    /**
+     * Cells of one column in the pack
+     */
+    private class Vector {
+        private final int kind, scale;
+        private final ByteArrayOutputStream values = new ByteArrayOutputStream(256);
+        private final BinaryEncoder valueEncoder = EncoderFactory.get().directBinaryEncoder(values, null);
+        private byte[] validity = new byte[16];
+        private boolean hasNull;
+        private int count;
+
+        /* Strings only, the distinct strings of the pack in the order they came */
+        private Map<String, Integer> dictionary;
+        private ByteArrayOutputStream words;
+        private BinaryEncoder wordEncoder;
+
+        Vector(int kind, int scale) {
+            this.kind = kind;
+            this.scale = scale;
+            if (kind == AvroRowEncoder.STRING) {
+                dictionary = new HashMap<String, Integer>();
+                words = new ByteArrayOutputStream(256);
+                wordEncoder = EncoderFactory.get().directBinaryEncoder(words, null);
+            }
+        }
+
+        int size() {
+            return values.size() + (words == null ? 0 : words.size());
+        }
+
+        void add(int row, Object value) throws IOException {
+            if (row >> 3 >= validity.length)
+                validity = Arrays.copyOf(validity, validity.length * 2);
+            if (value == null) {
+                hasNull = true;
+                return;
+            }
+            validity[row >> 3] |= 1 << (row & 7);
+            count++;
+            if (dictionary == null) {
+                AvroRowEncoder.write(valueEncoder, timeZone, kind, scale, value);
+                return;
+            }
+            String string = AvroRowEncoder.string(value);
+            Integer index = dictionary.get(string);
+            if (index == null) {
+                index = dictionary.size();
+                dictionary.put(string, index);
+                wordEncoder.writeString(string);
+            }
+            valueEncoder.writeInt(index);
+        }
+
+        void writeTo(int rows) throws IOException {
+            if (hasNull)
+                encoder.writeBytes(validity, 0, (rows + 7) >> 3);
+            else
+                encoder.writeBytes(validity, 0, 0);
+            if (dictionary != null)
+                writeArray(words, dictionary.size());
+            writeArray(values, count);
+        }
+
+        void clear() {
+            if (dictionary != null) {
+                dictionary.clear();
+                words.reset();
+            }
+            values.reset();
+            Arrays.fill(validity, (byte) 0);
+            hasNull = false;
+            count = 0;
+        }
+
+        /**
+         * A single block of count items, then the empty block closing the array
+         */
+        private void writeArray(ByteArrayOutputStream items, int count) throws IOException {
+            if (count > 0) {
+                encoder.writeLong(count);
+                // the direct encoder holds no buffer, the items follow the count in output
+                items.writeTo(output);
+            }
+            encoder.writeLong(0);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.victor.flume.source;
+
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientConnectionException;
+
+/**
+ * Tiered recovery of the connection of a query engine after a connection failure, one attempt
+ * per poll. The first reconnect.resets failures in a row only replace the connection of the
+ * source, checked before the next query, which costs a round trip. The failure after them
+ * rebuilds the connection factory of the source, and the circuit opens: polls skip the database
+ * for reconnect.backoff ms, doubled on each further failure up to reconnect.backoff.max, then one
+ * poll tries again. The first query succeeding closes the circuit, the time since the first
+ * failure is the time to recover. <p>
+ * Only connection failures count, the other errors of a query just fail its poll.
+ *
+ */
+class ConnectionRecovery {
+
+    enum Tier {
+        /* replace the connection of the source */
+        RESET,
+        /* rebuild the factory and its pool, the circuit opens */
+        REBUILD
+    }
+
+    private final int resets;
+    private final long backoff, maxBackoff;
+
+    private int failures;
+    private long firstFailure, openUntil, delay;
+
+    /**
+     * @return true when the connection of the query is lost: SQLState class 08, or a connection
+     * or recoverable exception, in the causes of e too
+     */
+    static boolean isConnectionFailure(SQLException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLTransientConnectionException || cause instanceof SQLNonTransientConnectionException
+                    || cause instanceof SQLRecoverableException)
+                return true;
+            if (cause instanceof SQLException) {
+                String state = ((SQLException) cause).getSQLState();
+                if (state != null && state.startsWith("08"))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    ConnectionRecovery(SQLSourceHelper sqlSourceHelper) {
+        this.resets = sqlSourceHelper.getReconnectResets();
+        this.backoff = sqlSourceHelper.getReconnectBackoff();
+        this.maxBackoff = Math.max(sqlSourceHelper.getReconnectBackoffMax(), backoff);
+        this.delay = backoff;
+    }
+
+    /**
+     * @param now epoch millis
+     * @return true while polls skip the database
+     */
+    synchronized boolean isOpen(long now) {
+        return now < openUntil;
+    }
+
+    /**
+     * @return epoch millis the next query is tried at, once the circuit opened
+     */
+    synchronized long getOpenUntil() {
+        return openUntil;
+    }
+
+    /**
+     * @return failures since the last query succeeding
+     */
+    synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * @param now epoch millis of the failure
+     * @return how to recover from it
+     */
+    synchronized Tier failed(long now) {
+        if (failures++ == 0)
+            firstFailure = now;
+        if (failures <= resets)
+            return Tier.RESET;
+        openUntil = now + delay;
+        delay = Math.min(maxBackoff, delay * 2);
+        return Tier.REBUILD;
+    }
+
+    /**
+     * @param now epoch millis of the query succeeding
+     * @return ms since the first failure, -1 when the last query did not fail
+     */
+    synchronized long succeeded(long now) {
+        if (failures == 0)
+            return -1;
+        long recovery = now - firstFailure;
+        failures = 0;
+        openUntil = 0;
+        delay = backoff;
+        return recovery;
+    }
+}
@@ -0,0 +1,147 @@
+package org.victor.flume.source;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.boot.MetadataSources;
+import org.hibernate.boot.registry.StandardServiceRegistry;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Hibernate session factories and jdbc connection pools shared by the sources of an agent,
+ * keyed by their connection settings. Each one is counted: the first source asking for it
+ * builds it, the last one releasing it closes it, so sources reading the same database reuse
+ * the warm connections of its pool and a source closing never closes them under the others.
+ * A source rebuilding its factory gets a new one, the others keep theirs.
+ *
+ */
+final class ConnectionRegistry {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionRegistry.class);
+
+    /* Factory the next source acquiring the settings gets, and every factory still held */
+    private static final Map<String, Shared<SessionFactory>> factories = new HashMap<>();
+    private static final Map<SessionFactory, Shared<SessionFactory>> heldFactories = new IdentityHashMap<>();
+    private static final Map<String, Shared<JdbcConnectionPool>> pools = new HashMap<>();
+
+    private ConnectionRegistry() {
+    }
+
+    /**
+     * @param settings hibernate.* properties of the source, the factory is shared when they are all equal
+     * @return the factory of these settings, built when no source holds one
+     */
+    static synchronized SessionFactory acquireSessionFactory(Properties settings) {
+        String key = key(settings);
+        Shared<SessionFactory> shared = factories.get(key);
+        if (shared == null || shared.resource.isClosed()) {
+            shared = new Shared<>(buildSessionFactory(settings));
+            factories.put(key, shared);
+            heldFactories.put(shared.resource, shared);
+        }
+        shared.references++;
+        return shared.resource;
+    }
+
+    /**
+     * Build a new factory for a source whose factory keeps failing. The stale one is released,
+     * not closed: the other sources holding it keep it until they release it too, the sources
+     * acquiring the settings next get the new one
+     *
+     * @param stale factory held by the source
+     * @return the new factory, held by the source instead of the stale one
+     */
+    static synchronized SessionFactory rebuildSessionFactory(Properties settings, SessionFactory stale) {
+        LOG.warn("Rebuilding hibernate factory of " + settings.getProperty("hibernate.connection.url"));
+        Shared<SessionFactory> shared = new Shared<>(buildSessionFactory(settings));
+        shared.references++;
+        factories.put(key(settings), shared);
+        heldFactories.put(shared.resource, shared);
+        releaseSessionFactory(settings, stale);
+        return shared.resource;
+    }
+
+    /**
+     * @param factory factory acquired by the source, closed once no source holds it
+     */
+    static synchronized void releaseSessionFactory(Properties settings, SessionFactory factory) {
+        Shared<SessionFactory> shared = heldFactories.get(factory);
+        if (shared == null || --shared.references > 0)
+            return;
+        heldFactories.remove(factory);
+        String key = key(settings);
+        if (factories.get(key) == shared)
+            factories.remove(key);
+        LOG.info("Closing hibernate factory of " + settings.getProperty("hibernate.connection.url"));
+        if (!factory.isClosed())
+            factory.close();
+    }
+
+    private static SessionFactory buildSessionFactory(Properties settings) {
+        LOG.info("Building hibernate factory of " + settings.getProperty("hibernate.connection.url"));
+        StandardServiceRegistry serviceRegistry = new StandardServiceRegistryBuilder().applySettings(settings).build();
+        try {
+            return new MetadataSources(serviceRegistry).buildMetadata().buildSessionFactory();
+        } catch (RuntimeException e) {
+            StandardServiceRegistryBuilder.destroy(serviceRegistry);
+            throw e;
+        }
+    }
+
+    /**
+     * @param connections connections the source polls with at the same time, the pool grows by as many
+     * @return the pool of these connection settings
+     */
+    static synchronized JdbcConnectionPool acquirePool(String url, Properties connectionProperties, boolean readOnly,
+                                                       int connections) {
+        String key = url + '\n' + key(connectionProperties) + '\n' + readOnly;
+        Shared<JdbcConnectionPool> shared = pools.get(key);
+        if (shared == null) {
+            shared = new Shared<>(new JdbcConnectionPool(url, connectionProperties, readOnly, 0));
+            pools.put(key, shared);
+        }
+        shared.resource.resize(connections);
+        shared.references++;
+        return shared.resource;
+    }
+
+    /**
+     * @param connections connections given when the pool was acquired
+     */
+    static synchronized void releasePool(JdbcConnectionPool pool, int connections) {
+        for (Map.Entry<String, Shared<JdbcConnectionPool>> entry : pools.entrySet()) {
+            Shared<JdbcConnectionPool> shared = entry.getValue();
+            if (shared.resource != pool)
+                continue;
+            pool.resize(-connections);
+            if (--shared.references == 0) {
+                pools.remove(entry.getKey());
+                pool.close();
+            }
+            return;
+        }
+    }
+
+    private static String key(Properties properties) {
+        Map<String, String> sorted = new TreeMap<>();
+        for (String name : properties.stringPropertyNames()) {
+            sorted.put(name, properties.getProperty(name));
+        }
+        return sorted.toString();
+    }
+
+    private static class Shared<T> {
+        private T resource;
+        private int references;
+
+        Shared(T resource) {
+            this.resource = resource;
+        }
+    }
+}
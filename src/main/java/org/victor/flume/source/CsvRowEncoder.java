@@ -0,0 +1,93 @@
+package org.victor.flume.source;
+
+import com.opencsv.CSVWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+/**
+ * Writes a row as one UTF-8 csv line, without the line end, through an opencsv CSVWriter kept
+ * for the life of the source over a byte buffer reused between rows, instead of building the
+ * String[] rows of {@link SQLSourceHelper#getAllRows} for a whole result. Cells are written as
+ * their toString, clobs read whole and nulls as event.csv.null. <p>
+ * With event.csv.header the names of the columns, as a csv line, go in the csv.header event
+ * header. Packed as ndjson the rows of an event form a csv document. <p>
+ * Not thread safe, each serializing thread needs its own encoder.
+ *
+ */
+public class CsvRowEncoder implements RowEncoder {
+
+    static final String QUOTING_MINIMAL = "minimal";
+    static final String QUOTING_ALL = "all";
+    static final String QUOTING_NONE = "none";
+
+    static final String CSV_HEADER = "csv.header";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream(1024);
+    private final CSVWriter writer;
+    private final boolean quoteAll, headerLine;
+    private final String nullValue;
+    private String[] cells = new String[0];
+
+    /* Header of the last row and its column names line */
+    private RowHeader header;
+    private String names;
+
+    /**
+     * @param delimiter separator of the cells
+     * @param quoting minimal quotes the cells holding the delimiter, a quote or a line break,
+     *                all quotes every cell, none never quotes nor escapes
+     * @param headerLine put the column names line in the csv.header event header
+     * @param nullValue written for null cells
+     */
+    public CsvRowEncoder(char delimiter, String quoting, boolean headerLine, String nullValue) {
+        boolean quote = !QUOTING_NONE.equals(quoting);
+        this.writer = new CSVWriter(new OutputStreamWriter(output, UTF_8), delimiter,
+                quote ? CSVWriter.DEFAULT_QUOTE_CHARACTER : CSVWriter.NO_QUOTE_CHARACTER,
+                quote ? CSVWriter.DEFAULT_ESCAPE_CHARACTER : CSVWriter.NO_ESCAPE_CHARACTER, "");
+        this.quoteAll = QUOTING_ALL.equals(quoting);
+        this.headerLine = headerLine;
+        this.nullValue = nullValue == null ? "" : nullValue;
+    }
+
+    @Override
+    public byte[] encode(RowHeader header, Object[] row) throws IOException {
+        if (cells.length != row.length)
+            cells = new String[row.length];
+        for (int i = 0; i < row.length; i++) {
+            cells[i] = row[i] == null ? nullValue : AvroRowEncoder.string(row[i]);
+        }
+        return line(cells);
+    }
+
+    @Override
+    public void putHeaders(RowHeader header, Map<String, String> headers) {
+        if (!headerLine)
+            return;
+        if (header != this.header) {
+            String[] columns = new String[header.size()];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = header.getName(i);
+            }
+            try {
+                names = new String(line(columns), UTF_8);
+            } catch (IOException e) {
+                throw new IllegalStateException("Column names can't be written", e);
+            }
+            this.header = header;
+        }
+        headers.put(CSV_HEADER, names);
+    }
+
+    private byte[] line(String[] cells) throws IOException {
+        output.reset();
+        writer.writeNext(cells, quoteAll);
+        writer.flush();
+        return output.toByteArray();
+    }
+}
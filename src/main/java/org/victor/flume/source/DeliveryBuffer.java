@@ -0,0 +1,173 @@
+package org.victor.flume.source;
+
+import org.apache.flume.ChannelException;
+import org.apache.flume.Event;
+import org.apache.flume.channel.ChannelProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Batches the channel refused, kept in order until they are put, up to delivery.buffer.events
+ * events. The first retry waits delivery.retry.delay ms, the wait doubles after each refusal up
+ * to delivery.retry.max.delay and starts over once the buffer is drained. <p>
+ * While batches are waiting the window they belong to is not finished: the source neither writes
+ * its index to the status file nor queries the database. A durable buffer, the
+ * {@link SpillBuffer}, keeps the batches past a crash instead and lets the source go on.
+ *
+ */
+class DeliveryBuffer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DeliveryBuffer.class);
+
+    private final Deque<Pending> batches = new ArrayDeque<>();
+    private final int capacity;
+    private final long retryDelay, maxRetryDelay;
+
+    private int events;
+    private long delay, nextAttempt;
+
+    DeliveryBuffer(int capacity, long retryDelay, long maxRetryDelay) {
+        this.capacity = capacity;
+        this.retryDelay = retryDelay;
+        this.maxRetryDelay = Math.max(maxRetryDelay, retryDelay);
+        this.delay = retryDelay;
+    }
+
+    boolean isEmpty() {
+        return batches.isEmpty();
+    }
+
+    /**
+     * @return true when the batches survive a restart, the window can be finished while they wait
+     */
+    boolean isDurable() {
+        return false;
+    }
+
+    /**
+     * @return true when no window should be read before some batches are delivered
+     */
+    boolean isFull() {
+        return !isEmpty();
+    }
+
+    /**
+     * @return events waiting for the channel
+     */
+    int size() {
+        return events;
+    }
+
+    /**
+     * Keep a batch the channel refused, after the ones already waiting
+     *
+     * @param rows rows held by the events, counted once they are delivered
+     * @return false when the batch does not fit, it is not kept
+     */
+    boolean offer(List<Event> batch, int rows) {
+        if (events + batch.size() > capacity)
+            return false;
+        if (batches.isEmpty())
+            schedule();
+        batches.add(new Pending(batch, rows));
+        events += batch.size();
+        return true;
+    }
+
+    /**
+     * @return ms waited after the last refusal
+     */
+    long getRetryDelay() {
+        return delay;
+    }
+
+    /**
+     * @return true when the wait since the last refusal is over
+     */
+    boolean isRetryDue() {
+        return System.currentTimeMillis() >= nextAttempt;
+    }
+
+    /**
+     * Put the waiting batches into the channel in order, stopping at the first refusal
+     *
+     * @return rows delivered
+     */
+    int drain(ChannelProcessor channelProcessor) {
+        int rows = 0;
+        while (!batches.isEmpty()) {
+            Pending pending = batches.peek();
+            try {
+                channelProcessor.processEventBatch(pending.events);
+            } catch (ChannelException e) {
+                refused(e);
+                return rows;
+            }
+            batches.poll();
+            events -= pending.events.size();
+            rows += pending.rows;
+        }
+        delay = retryDelay;
+        return rows;
+    }
+
+    /**
+     * The window was finished, its batches are kept until delivered
+     */
+    void commit() {
+    }
+
+    /**
+     * Drop the batches of the window being read, their rows are read again from the database
+     */
+    void rollback() throws IOException {
+        clear();
+    }
+
+    /**
+     * Drop every batch, their rows are read again from the database
+     */
+    void clear() {
+        batches.clear();
+        events = 0;
+        delay = retryDelay;
+    }
+
+    /**
+     * Wait longer before the next attempt
+     */
+    void refused(ChannelException e) {
+        delay = Math.min(delay * 2, maxRetryDelay);
+        schedule();
+        LOG.warn("Channel refused " + size() + " buffered events again, next retry in " + delay + " ms: " + e.getMessage());
+    }
+
+    /**
+     * Next attempt once the current delay is over
+     */
+    void schedule() {
+        nextAttempt = System.currentTimeMillis() + delay;
+    }
+
+    /**
+     * Start over from delivery.retry.delay, once everything was delivered
+     */
+    void resetDelay() {
+        delay = retryDelay;
+    }
+
+    private static class Pending {
+        private final List<Event> events;
+        private final int rows;
+
+        Pending(List<Event> events, int rows) {
+            this.events = events;
+            this.rows = rows;
+        }
+    }
+}
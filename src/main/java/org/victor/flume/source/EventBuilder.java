@@ -0,0 +1,259 @@
+package org.victor.flume.source;
+
+import org.apache.flume.Event;
+import org.apache.flume.event.SimpleEvent;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts query rows into flume events, the body of each event is the row written by the
+ * encoder of event.format, json by default. <p>
+ * With event.packing several rows go into one event, up to event.pack.rows rows or
+ * event.pack.bytes bytes: ndjson writes each row followed by a newline, frame writes each row
+ * after its length as a 4 bytes big endian int. A pack only holds rows of one header, with the
+ * event headers of the encoder for them. Packed events carry the number of rows,
+ * the packing and, when the rows hold time.column, the lowest and highest time of the pack. <p>
+ * The columnar packing writes the pack as one avro record of column vectors, see
+ * {@link ColumnarBatchEncoder}, whatever event.format is. <p>
+ * With event.compression each body, a row or a pack, is compressed and the codec is set in the
+ * compression header.
+ *
+ */
+class EventBuilder {
+
+    static final String FORMAT_JSON = "json";
+    static final String FORMAT_AVRO = "avro";
+    static final String FORMAT_CSV = "csv";
+    static final String FORMAT_TSV = "tsv";
+
+    static final String PACKING_NONE = "none";
+    static final String PACKING_NDJSON = "ndjson";
+    static final String PACKING_FRAME = "frame";
+    static final String PACKING_COLUMNAR = "columnar";
+
+    static final String TIMESTAMP_HEADER = "timestamp";
+    static final String ROWS_HEADER = "rows";
+    static final String PACKING_HEADER = "packing";
+    static final String WATERMARK_MIN_HEADER = "watermark.min";
+    static final String WATERMARK_MAX_HEADER = "watermark.max";
+
+    private final RowEncoder rowEncoder;
+    private final String packing;
+    private final int packRows, packBytes;
+    private final String timeColumn;
+    /* null without compression */
+    private final EventCompressor compressor;
+    /* Only with the columnar packing, it fills the pack instead of the pack bytes */
+    private final ColumnarBatchEncoder columnarEncoder;
+
+    /* Pack being filled, its rows and the range of their times */
+    private byte[] pack;
+    private int packSize, packedRows;
+    private Object watermarkMin, watermarkMax;
+
+    /* Header of the last packed row and the position of time.column in it, -1 when absent */
+    private RowHeader header;
+    private int timePosition = -1;
+
+    EventBuilder() {
+        this(new JsonRowEncoder(), PACKING_NONE, 1, 0, null, null);
+    }
+
+    EventBuilder(SQLSourceHelper sqlSourceHelper) {
+        this(rowEncoder(sqlSourceHelper),
+                PACKING_COLUMNAR.equals(sqlSourceHelper.getEventPacking())
+                        ? new ColumnarBatchEncoder(sqlSourceHelper.getTable(), sqlSourceHelper.isAvroSchemaLiteral())
+                        : null,
+                sqlSourceHelper.getEventPacking(), sqlSourceHelper.getEventPackRows(),
+                sqlSourceHelper.getEventPackBytes(), sqlSourceHelper.getTimeColumn(),
+                EventCompressor.create(sqlSourceHelper.getEventCompression(), sqlSourceHelper.getEventCompressionLevel()));
+    }
+
+    EventBuilder(RowEncoder rowEncoder, String packing, int packRows, int packBytes, String timeColumn,
+                 EventCompressor compressor) {
+        this(rowEncoder, PACKING_COLUMNAR.equals(packing) ? new ColumnarBatchEncoder(null, true) : null,
+                packing, packRows, packBytes, timeColumn, compressor);
+    }
+
+    private EventBuilder(RowEncoder rowEncoder, ColumnarBatchEncoder columnarEncoder, String packing, int packRows,
+                         int packBytes, String timeColumn, EventCompressor compressor) {
+        this.rowEncoder = rowEncoder;
+        this.columnarEncoder = columnarEncoder;
+        this.packing = packing == null ? PACKING_NONE : packing;
+        this.packRows = packRows;
+        this.packBytes = packBytes;
+        this.timeColumn = timeColumn;
+        this.compressor = compressor;
+        if (isPacking() && columnarEncoder == null)
+            pack = new byte[Math.min(Math.max(packBytes, 1024), 64 * 1024)];
+    }
+
+    private static RowEncoder rowEncoder(SQLSourceHelper sqlSourceHelper) {
+        String format = sqlSourceHelper.getEventFormat();
+        if (FORMAT_AVRO.equals(format))
+            return new AvroRowEncoder(sqlSourceHelper.getTable(), sqlSourceHelper.isAvroSchemaLiteral());
+        if (FORMAT_CSV.equals(format) || FORMAT_TSV.equals(format))
+            return new CsvRowEncoder(sqlSourceHelper.getCsvDelimiter(), sqlSourceHelper.getCsvQuoting(),
+                    sqlSourceHelper.isCsvHeader(), sqlSourceHelper.getCsvNull());
+        return new JsonRowEncoder();
+    }
+
+    boolean isPacking() {
+        return !PACKING_NONE.equals(packing);
+    }
+
+    Event build(RowHeader header, Object[] row) throws IOException {
+        byte[] encoded = rowEncoder.encode(header, row);
+        return event(header, encoded, encoded.length);
+    }
+
+    private Event event(RowHeader header, byte[] body, int length) throws IOException {
+        Event event = new SimpleEvent();
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put(TIMESTAMP_HEADER, String.valueOf(System.currentTimeMillis()));
+        if (columnarEncoder != null)
+            columnarEncoder.putHeaders(header, headers);
+        else
+            rowEncoder.putHeaders(header, headers);
+        if (compressor != null) {
+            event.setBody(compressor.compress(body, 0, length));
+            headers.put(EventCompressor.COMPRESSION_HEADER, compressor.getCodec());
+        } else {
+            event.setBody(length == body.length ? body : Arrays.copyOf(body, length));
+        }
+        event.setHeaders(headers);
+        return event;
+    }
+
+    /**
+     * Add a row, the events completed by it are appended to events. Without packing that is
+     * the event of the row, with packing a pack once it is full
+     *
+     * @return bytes of the encoded row
+     */
+    int add(RowHeader header, Object[] row, List<Event> events) throws IOException {
+        if (columnarEncoder != null)
+            return addColumnar(header, row, events);
+        byte[] encoded = rowEncoder.encode(header, row);
+        if (!isPacking()) {
+            events.add(event(header, encoded, encoded.length));
+            return encoded.length;
+        }
+
+        int length = PACKING_FRAME.equals(packing) ? encoded.length + 4 : encoded.length + 1;
+        if (packedRows > 0 && (packSize + length > packBytes || header != this.header))
+            finish(events);
+
+        ensureCapacity(packSize + length);
+        if (PACKING_FRAME.equals(packing)) {
+            pack[packSize++] = (byte) (encoded.length >>> 24);
+            pack[packSize++] = (byte) (encoded.length >>> 16);
+            pack[packSize++] = (byte) (encoded.length >>> 8);
+            pack[packSize++] = (byte) encoded.length;
+            System.arraycopy(encoded, 0, pack, packSize, encoded.length);
+            packSize += encoded.length;
+        } else {
+            System.arraycopy(encoded, 0, pack, packSize, encoded.length);
+            packSize += encoded.length;
+            pack[packSize++] = '\n';
+        }
+        trackWatermark(header, row);
+
+        if (++packedRows >= packRows)
+            finish(events);
+        return encoded.length;
+    }
+
+    private int addColumnar(RowHeader header, Object[] row, List<Event> events) throws IOException {
+        if (packedRows > 0 && (columnarEncoder.size() >= packBytes || header != this.header))
+            finish(events);
+        int bytes = columnarEncoder.add(header, row);
+        trackWatermark(header, row);
+
+        if (++packedRows >= packRows)
+            finish(events);
+        return bytes;
+    }
+
+    /**
+     * Close the pack being filled, appended to events when it holds rows
+     */
+    void finish(List<Event> events) throws IOException {
+        if (packedRows == 0)
+            return;
+        Event event;
+        if (columnarEncoder != null) {
+            byte[] batch = columnarEncoder.encode();
+            event = event(header, batch, batch.length);
+        } else {
+            event = event(header, pack, packSize);
+        }
+        Map<String, String> headers = event.getHeaders();
+        headers.put(ROWS_HEADER, String.valueOf(packedRows));
+        headers.put(PACKING_HEADER, packing);
+        if (watermarkMin != null) {
+            headers.put(WATERMARK_MIN_HEADER, String.valueOf(watermarkMin));
+            headers.put(WATERMARK_MAX_HEADER, String.valueOf(watermarkMax));
+        }
+        events.add(event);
+
+        packSize = 0;
+        packedRows = 0;
+        watermarkMin = null;
+        watermarkMax = null;
+    }
+
+    /**
+     * Drop the pack being filled, its rows are read again
+     */
+    void clear() {
+        if (columnarEncoder != null)
+            columnarEncoder.clear();
+        packSize = 0;
+        packedRows = 0;
+        watermarkMin = null;
+        watermarkMax = null;
+    }
+
+    /**
+     * Free the compressor, the builder can't be used after
+     */
+    void close() {
+        if (compressor != null)
+            compressor.close();
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > pack.length)
+            pack = Arrays.copyOf(pack, Math.max(capacity, pack.length * 2));
+    }
+
+    private void trackWatermark(RowHeader header, Object[] row) {
+        if (header != this.header) {
+            this.header = header;
+            timePosition = timeColumn == null ? -1 : header.indexOf(timeColumn);
+            // a qualified time.column is returned under the column name alone
+            if (timePosition < 0 && timeColumn != null && timeColumn.indexOf('.') >= 0)
+                timePosition = header.indexOf(timeColumn.substring(timeColumn.lastIndexOf('.') + 1));
+        }
+        if (timePosition < 0 || row[timePosition] == null)
+            return;
+
+        Object time = row[timePosition];
+        if (watermarkMin == null || compare(time, watermarkMin) < 0)
+            watermarkMin = time;
+        if (watermarkMax == null || compare(time, watermarkMax) > 0)
+            watermarkMax = time;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compare(Object time, Object other) {
+        if (time instanceof Comparable && time.getClass() == other.getClass())
+            return ((Comparable<Object>) time).compareTo(other);
+        return String.valueOf(time).compareTo(String.valueOf(other));
+    }
+}
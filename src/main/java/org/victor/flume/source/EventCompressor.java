@@ -0,0 +1,167 @@
+package org.victor.flume.source;
+
+import org.apache.flume.conf.ConfigurationException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses event bodies following event.compression. Each compressor keeps its native context
+ * and output buffer for the life of the source, a body costs the compression and one copy of the
+ * result. Not thread safe, each serializing thread needs its own compressor, and its owner closes
+ * it to free the native context. <p>
+ * <tt>gzip: </tt> gzip member, read by any gzip tool and by GZIPInputStream <p>
+ * <tt>snappy: </tt> raw snappy block, read by Snappy.uncompress of snappy-java <p>
+ * <tt>zstd: </tt> zstd frame holding the content size, needs zstd-jni on the classpath of the agent <p>
+ *
+ */
+abstract class EventCompressor {
+
+    static final String NONE = "none";
+    static final String GZIP = "gzip";
+    static final String SNAPPY = "snappy";
+    static final String ZSTD = "zstd";
+
+    static final String COMPRESSION_HEADER = "compression";
+
+    protected byte[] buffer = new byte[1024];
+
+    /**
+     * @param codec value of event.compression
+     * @param level compression level, -1 for the default of the codec
+     * @return the compressor, null for none
+     */
+    static EventCompressor create(String codec, int level) {
+        if (codec == null || NONE.equals(codec))
+            return null;
+        if (GZIP.equals(codec))
+            return new Gzip(level);
+        if (SNAPPY.equals(codec))
+            return new Snappy();
+        if (ZSTD.equals(codec)) {
+            try {
+                return new Zstd(level);
+            } catch (NoClassDefFoundError | UnsatisfiedLinkError e) {
+                throw new ConfigurationException("event.compression zstd needs zstd-jni on the classpath", e);
+            }
+        }
+        throw new ConfigurationException("event.compression must be none, gzip, snappy or zstd");
+    }
+
+    abstract String getCodec();
+
+    /**
+     * @return the compressed bytes of input[offset, offset + length)
+     */
+    abstract byte[] compress(byte[] input, int offset, int length) throws IOException;
+
+    /**
+     * Free the native context, the compressor can't be used after. Closing twice does nothing
+     */
+    void close() {
+    }
+
+    protected void ensureCapacity(int capacity) {
+        if (capacity > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+    }
+
+    private static class Gzip extends EventCompressor {
+
+        /* magic, deflate, no flag, no mtime, no extra flag, unknown OS */
+        private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+        private final Deflater deflater;
+        private final CRC32 crc = new CRC32();
+
+        Gzip(int level) {
+            deflater = new Deflater(level, true);
+        }
+
+        @Override
+        String getCodec() {
+            return GZIP;
+        }
+
+        @Override
+        byte[] compress(byte[] input, int offset, int length) {
+            deflater.reset();
+            deflater.setInput(input, offset, length);
+            deflater.finish();
+
+            System.arraycopy(HEADER, 0, buffer, 0, HEADER.length);
+            int size = HEADER.length;
+            while (!deflater.finished()) {
+                if (size == buffer.length)
+                    ensureCapacity(size + 1);
+                size += deflater.deflate(buffer, size, buffer.length - size);
+            }
+
+            crc.reset();
+            crc.update(input, offset, length);
+            ensureCapacity(size + 8);
+            size = writeIntLE(size, (int) crc.getValue());
+            size = writeIntLE(size, length);
+            return Arrays.copyOf(buffer, size);
+        }
+
+        private int writeIntLE(int position, int value) {
+            buffer[position] = (byte) value;
+            buffer[position + 1] = (byte) (value >>> 8);
+            buffer[position + 2] = (byte) (value >>> 16);
+            buffer[position + 3] = (byte) (value >>> 24);
+            return position + 4;
+        }
+
+        @Override
+        void close() {
+            deflater.end();
+        }
+    }
+
+    private static class Snappy extends EventCompressor {
+
+        @Override
+        String getCodec() {
+            return SNAPPY;
+        }
+
+        @Override
+        byte[] compress(byte[] input, int offset, int length) throws IOException {
+            ensureCapacity(org.xerial.snappy.Snappy.maxCompressedLength(length));
+            int size = org.xerial.snappy.Snappy.compress(input, offset, length, buffer, 0);
+            return Arrays.copyOf(buffer, size);
+        }
+    }
+
+    private static class Zstd extends EventCompressor {
+
+        private static final int DEFAULT_LEVEL = 3;
+
+        private final com.github.luben.zstd.ZstdCompressCtx context = new com.github.luben.zstd.ZstdCompressCtx();
+
+        Zstd(int level) {
+            context.setLevel(level < 0 ? DEFAULT_LEVEL : level);
+            context.setContentSize(true);
+        }
+
+        @Override
+        String getCodec() {
+            return ZSTD;
+        }
+
+        @Override
+        byte[] compress(byte[] input, int offset, int length) {
+            ensureCapacity((int) com.github.luben.zstd.Zstd.compressBound(length));
+            int size = context.compressByteArray(buffer, 0, buffer.length, input, offset, length);
+            return Arrays.copyOf(buffer, size);
+        }
+
+        @Override
+        void close() {
+            context.close();
+        }
+    }
+}
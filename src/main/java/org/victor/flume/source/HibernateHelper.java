@@ -1,31 +1,39 @@
 package org.victor.flume.source;
 
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
 import java.util.*;
 
+import javax.persistence.PersistenceException;
+
 import org.hibernate.*;
-import org.hibernate.boot.MetadataSources;
-import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
 import org.hibernate.cfg.Configuration;
-import org.hibernate.service.ServiceRegistry;
+import org.hibernate.jdbc.ReturningWork;
 import org.hibernate.transform.Transformers;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.flume.Context;
 
 /**
- * Helper class to manage hibernate sessions and perform queries
+ * Helper class to manage hibernate sessions and perform queries. <p>
+ * The session factory, and the connection pool it holds, comes from the {@link ConnectionRegistry}:
+ * sources with the same hibernate.* properties share it. A lost connection reopens the session
+ * of its own source on a connection checked alive; after repeated failures the source gets a new
+ * factory of its own, the other sources keep the one they share.
  *
  */
-public class HibernateHelper {
+public class HibernateHelper extends AbstractQueryEngine {
 	private final String HIBERNATE_PREFIX = "hibernate.";
 	private static final Logger LOG = LoggerFactory
 			.getLogger(HibernateHelper.class);
 
-	private static SessionFactory factory;
+	private SessionFactory factory;
 	private Session session;
 	private Configuration config;
-	private SQLSourceHelper sqlSourceHelper;
-	private ServiceRegistry serviceRegistry;
+	/* Properties of the factory as acquired, the same key releases it */
+	private Properties settings;
 
 	/**
 	 * Constructor to initialize hibernate configuration parameters
@@ -34,7 +42,7 @@ public class HibernateHelper {
 	 */
 	public HibernateHelper(SQLSourceHelper sqlSourceHelper) {
 
-		this.sqlSourceHelper = sqlSourceHelper;
+		super(sqlSourceHelper);
 		Context context = sqlSourceHelper.getContext();
 
 		Map<String, String> hibernateProperties = context.getSubProperties(HIBERNATE_PREFIX);
@@ -54,14 +62,15 @@ public class HibernateHelper {
 		 */
 		//serviceRegistry = new StandardServiceRegistryBuilder().applySettings(config.getProperties()).build();
 		//factory = config.buildSessionFactory(serviceRegistry);
+		settings = new Properties();
+		settings.putAll(config.getProperties());
 		setHibernateFactory();
 	}
 
 	private void setHibernateFactory() {
 		try {
 			LOG.info("Opening hibernate session");
-			serviceRegistry = new StandardServiceRegistryBuilder().applySettings(config.getProperties()).build();
-			factory = new MetadataSources(serviceRegistry).buildMetadata().buildSessionFactory();
+			factory = ConnectionRegistry.acquireSessionFactory(settings);
 			LOG.info("Complete hibernate session");
 		} catch (HibernateException e) {
 			LOG.error("Factory HibernateException:", e);
@@ -75,10 +84,13 @@ public class HibernateHelper {
 	/**
 	 * Connect to database using hibernate
 	 */
-	public void establishSession() throws Exception {
-		if (factory == null || factory.isClosed()) {
+	@Override
+	protected void openSession() throws Exception {
+		if (factory == null) {
 			LOG.info("hibernate factory is closed! ready to open factory");
-			setHibernateFactory();
+			factory = ConnectionRegistry.acquireSessionFactory(settings);
+		} else if (factory.isClosed()) {
+			factory = ConnectionRegistry.rebuildSessionFactory(settings, factory);
 		}
 
 		LOG.info("hibernate factory ready to open session");
@@ -91,6 +103,7 @@ public class HibernateHelper {
 	/**
 	 * Close database connection
 	 */
+	@Override
 	public void closeSession() {
 
 		LOG.info("Closing hibernate session");
@@ -106,11 +119,15 @@ public class HibernateHelper {
 
 	}
 
+	/**
+	 * Release the shared factory, it is closed once no source uses it
+	 */
 	public void closeFactory() {
 		LOG.info("Closing hibernate factory");
 		try {
-			if (factory != null && !factory.isClosed())
-				factory.close();
+			if (factory != null)
+				ConnectionRegistry.releaseSessionFactory(settings, factory);
+			factory = null;
 			LOG.info("Closing hibernate factory finished");
 		} catch (HibernateException e) {
 			LOG.error("close session factory error", e);
@@ -119,82 +136,137 @@ public class HibernateHelper {
 		}
 	}
 
-	/**
-	 * Execute the selection query in the database
-	 *
-	 * @return The query result. Each Object is a cell content. <p>
-	 * The cell contents use database types (date,int,string...),
-	 * keep in mind in case of future conversions/castings.
-	 * @throws InterruptedException
-	 */
-	@SuppressWarnings("unchecked")
-	public List<Map<String, Object>> executeQuery() throws Exception {
-
-		List<Map<String, Object>> rowsList = new ArrayList<Map<String, Object>>();
-		Query query;
+	@Override
+	public void close() {
+		closeFactory();
+	}
 
-		if (!session.isConnected() || !session.isOpen()) {
+	@Override
+	protected void ensureConnected() throws Exception {
+		if (session == null || !session.isOpen() || !session.isConnected()) {
 			resetConnection();
 		}
+	}
 
-		String maxTime = "";
-		List<List<Object>> max = null;
-		if (sqlSourceHelper.isTransferIncrement()) {
-			try {
-				String sql = sqlSourceHelper.maxQuery();
-				LOG.info("执行查询max时间sql:" + sql);
-				max = session.createSQLQuery(sql).setResultTransformer(Transformers.TO_LIST).list();
-				maxTime = max.get(0).get(0).toString();
-			} catch (Exception e) {
-				LOG.info("执行查询max时间异常,连接被重置:", e);
-				resetConnection();
-				return rowsList;
-			}
+	@Override
+	@SuppressWarnings("unchecked")
+	protected Object queryValue(QueryStatement statement) throws SQLException {
+		try {
+			List<List<Object>> rows = createQuery(statement).setResultTransformer(Transformers.TO_LIST).list();
+			return rows.isEmpty() ? null : rows.get(0).get(0);
+		} catch (PersistenceException e) {
+			throw toSQLException(e);
+		}
+	}
 
-			LOG.info("最大时间戳:" + maxTime);
-		} else {
-			LOG.info("全量模式");
+	@Override
+	@SuppressWarnings("unchecked")
+	protected QueryResult list(QueryStatement statement) throws SQLException {
+		try {
+			PositionalRowTransformer transformer = new PositionalRowTransformer();
+			List<Object[]> rowsList = createSelectQuery(statement).setFetchSize(sqlSourceHelper.getMaxRows()).setResultTransformer(transformer).list();
+			//rowsList = query.setFetchSize(sqlSourceHelper.getMaxRows()).setResultTransformer(Transformers.TO_LIST).list();
+			return new QueryResult(transformer.getHeader(), rowsList);
+		} catch (PersistenceException e) {
+			throw toSQLException(e);
 		}
+	}
 
+	@Override
+	protected void scroll(QueryStatement statement, RowHandler handler) throws SQLException, IOException {
+		ScrollableResults results = null;
 		try {
-			//为了业务里面数据误差,延迟1秒
-			Thread.sleep(1000);
-			String executSql = sqlSourceHelper.buildQuery(maxTime);
-			LOG.info("执行sql:" + executSql);
-			if (sqlSourceHelper.isCustomQuerySet()) {
-				query = session.createSQLQuery(executSql);
-				if (sqlSourceHelper.getMaxRows() != 0) {
-					query = query.setMaxResults(sqlSourceHelper.getMaxRows());
-				}
-			} else {
-				query = session
-						.createSQLQuery(executSql);
-//					.setFirstResult(Integer.parseInt(sqlSourceHelper.getCurrentIndex()));
-				if (sqlSourceHelper.getMaxRows() != 0) {
-					query = query.setMaxResults(sqlSourceHelper.getMaxRows());
-				}
+			PositionalRowTransformer transformer = new PositionalRowTransformer();
+			results = createSelectQuery(statement).setFetchSize(sqlSourceHelper.getBatchSize())
+					.setResultTransformer(transformer)
+					.scroll(ScrollMode.FORWARD_ONLY);
+			while (results.next()) {
+				handler.handle(transformer.getHeader(), (Object[]) results.get(0));
 			}
+		} catch (PersistenceException e) {
+			throw toSQLException(e);
+		} finally {
+			closeResults(results);
+		}
+	}
 
-			rowsList = query.setFetchSize(sqlSourceHelper.getMaxRows()).setResultTransformer(Transformers.ALIAS_TO_ENTITY_MAP).list();
-			//rowsList = query.setFetchSize(sqlSourceHelper.getMaxRows()).setResultTransformer(Transformers.TO_LIST).list();
-			LOG.info("开始时间:" + sqlSourceHelper.getCurrentIndex() + ",截止时间:" + maxTime + ",数据量: " + String.valueOf(rowsList.size()));
+	private Query createSelectQuery(QueryStatement statement) {
+		Query query = createQuery(statement);
+		if (maxRows(statement) != 0) {
+			query = query.setMaxResults(maxRows(statement));
+		}
+		return query;
+	}
+
+	private Query createQuery(QueryStatement statement) {
+		Query query = session.createSQLQuery(statement.getSql());
+		Object[] parameters = statement.getParameters();
+		for (int i = 0; i < parameters.length; i++) {
+			query.setParameter(i + 1, parameters[i]);
+		}
+		return query;
+	}
+
+	private void closeResults(ScrollableResults results) {
+		try {
+			if (results != null)
+				results.close();
 		} catch (Exception e) {
-			LOG.error("Exception reset connection.", e);
-			resetConnection();
+			LOG.warn("close scrollable results error", e);
 		}
+	}
 
-		if (!rowsList.isEmpty() && sqlSourceHelper.isTransferIncrement()) {
-//				sqlSourceHelper.setCurrentIndex(Integer.toString((Integer.parseInt(sqlSourceHelper.getCurrentIndex())
-//						+ rowsList.size())));
-			sqlSourceHelper.setCurrentIndex(maxTime);
+	/**
+	 * Hibernate reports the jdbc errors wrapped in its own exceptions
+	 */
+	private SQLException toSQLException(PersistenceException e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof SQLException)
+				return (SQLException) cause;
 		}
+		return new SQLException(e);
+	}
 
-		return rowsList;
+	/**
+	 * Open a new session and check its connection, the pool drops the connection whose statement
+	 * failed; the factory stays open for the other sources sharing it
+	 */
+	@Override
+	protected void resetConnection() throws Exception {
+		closeSession();
+		openSession();
+		validateSession();
 	}
 
-	private void resetConnection() throws Exception {
+	/**
+	 * Take a new factory, and its pool, for this source; the stale one is closed once the other
+	 * sources holding it release it
+	 */
+	@Override
+	protected void rebuildConnection() throws Exception {
 		closeSession();
-		closeFactory();
-		establishSession();
+		if (factory == null) {
+			factory = ConnectionRegistry.acquireSessionFactory(settings);
+		} else {
+			factory = ConnectionRegistry.rebuildSessionFactory(settings, factory);
+		}
+	}
+
+	private void validateSession() throws SQLException {
+		final int timeout = sqlSourceHelper.getReconnectValidationTimeout();
+		try {
+			boolean valid = session.doReturningWork(new ReturningWork<Boolean>() {
+				@Override
+				public Boolean execute(Connection connection) throws SQLException {
+					return connection.isValid(timeout);
+				}
+			});
+			if (!valid) {
+				closeSession();
+				throw new SQLNonTransientConnectionException("Connection of the new session is not valid", "08003");
+			}
+		} catch (PersistenceException e) {
+			throw toSQLException(e);
+		}
 	}
 }
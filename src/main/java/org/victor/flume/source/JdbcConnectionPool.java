@@ -0,0 +1,162 @@
+package org.victor.flume.source;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Jdbc connections shared by the tables of multi table sources, at most one per worker
+ * polling at the same time. A connection is opened when none is idle, handed back after each
+ * poll and dropped when a query engine finds it broken. Sources with the same connection
+ * settings share one pool through the {@link ConnectionRegistry}, each adding its workers.
+ *
+ */
+class JdbcConnectionPool implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JdbcConnectionPool.class);
+
+    private final String url;
+    private final Properties connectionProperties;
+    private final boolean readOnly;
+    private int size;
+
+    private final Deque<Connection> idle = new ArrayDeque<>();
+    private int open;
+    private boolean closed;
+
+    /**
+     * @param size most connections open at the same time
+     */
+    JdbcConnectionPool(String url, Properties connectionProperties, boolean readOnly, int size) {
+        this.url = url;
+        this.connectionProperties = connectionProperties;
+        this.readOnly = readOnly;
+        this.size = size;
+    }
+
+    /**
+     * Allow more or fewer connections, idle ones beyond the new size are closed
+     */
+    synchronized void resize(int delta) {
+        size += delta;
+        while (open > size && !idle.isEmpty()) {
+            open--;
+            close(idle.poll());
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return an idle connection, or a new one while fewer than size are open, waiting otherwise
+     */
+    Connection borrow() throws SQLException, InterruptedException {
+        synchronized (this) {
+            while (true) {
+                if (closed)
+                    throw new SQLException("Connection pool closed");
+                Connection connection = idle.poll();
+                if (connection != null) {
+                    if (!connection.isClosed())
+                        return connection;
+                    open--;
+                    continue;
+                }
+                if (open < size) {
+                    open++;
+                    break;
+                }
+                wait();
+            }
+        }
+        try {
+            LOG.info("Opening pooled jdbc connection");
+            Connection connection = DriverManager.getConnection(url, connectionProperties);
+            connection.setAutoCommit(true);
+            connection.setReadOnly(readOnly);
+            return connection;
+        } catch (SQLException | RuntimeException e) {
+            synchronized (this) {
+                open--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Hand back a connection for the next poll
+     */
+    synchronized void release(Connection connection) {
+        if (closed || open > size) {
+            open--;
+            close(connection);
+            notifyAll();
+            return;
+        }
+        idle.push(connection);
+        notifyAll();
+    }
+
+    /**
+     * Drop a broken connection, a new one is opened for the next borrow
+     */
+    synchronized void invalidate(Connection connection) {
+        open--;
+        close(connection);
+        notifyAll();
+    }
+
+    /**
+     * Close the idle connections failing a check, the live ones stay for the next borrows
+     *
+     * @param timeout seconds of each check, 0 for no limit
+     */
+    void evictBroken(int timeout) {
+        List<Connection> checked;
+        synchronized (this) {
+            checked = new ArrayList<>(idle);
+            idle.clear();
+        }
+        for (Connection connection : checked) {
+            boolean valid;
+            try {
+                valid = connection.isValid(timeout);
+            } catch (SQLException e) {
+                valid = false;
+            }
+            if (valid) {
+                release(connection);
+            } else {
+                invalidate(connection);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (Connection connection : idle) {
+            open--;
+            close(connection);
+        }
+        idle.clear();
+        notifyAll();
+    }
+
+    private static void close(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOG.warn("close pooled jdbc connection error", e);
+        }
+    }
+}
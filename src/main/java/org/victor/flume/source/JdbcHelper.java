@@ -0,0 +1,270 @@
+package org.victor.flume.source;
+
+import org.apache.flume.Context;
+import org.apache.flume.conf.ConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Query engine running the source queries with plain jdbc. <p>
+ * The connection and the prepared statements are kept between polls, the connection
+ * properties are the same hibernate.connection.* used by the hibernate engine. With a
+ * {@link JdbcConnectionPool} the connection is borrowed for each poll instead, and its
+ * statements closed when it is handed back.
+ *
+ */
+public class JdbcHelper extends AbstractQueryEngine {
+
+	private static final Logger LOG = LoggerFactory.getLogger(JdbcHelper.class);
+
+	private final String url;
+	private final Properties connectionProperties;
+	private final JdbcConnectionPool pool;
+
+	private Connection connection;
+	private PreparedStatement maxStatement, selectStatement;
+	private String maxSql, selectSql;
+	private RowHeader header;
+
+	public JdbcHelper(SQLSourceHelper sqlSourceHelper) {
+		this(sqlSourceHelper, null);
+	}
+
+	/**
+	 * @param pool connections shared with other tables, null to keep a connection of its own
+	 */
+	JdbcHelper(SQLSourceHelper sqlSourceHelper, JdbcConnectionPool pool) {
+		super(sqlSourceHelper);
+		this.url = sqlSourceHelper.getConnectionURL();
+		this.connectionProperties = connectionProperties(sqlSourceHelper.getContext());
+		this.pool = pool;
+	}
+
+	/**
+	 * @return user and password of the hibernate.connection.* properties, the driver class loaded
+	 */
+	static Properties connectionProperties(Context context) {
+		Properties connectionProperties = new Properties();
+		String user = context.getString("hibernate.connection.user", context.getString("hibernate.connection.username"));
+		String password = context.getString("hibernate.connection.password");
+		if (user != null)
+			connectionProperties.setProperty("user", user);
+		if (password != null)
+			connectionProperties.setProperty("password", password);
+
+		String driverClass = context.getString("hibernate.connection.driver_class");
+		if (driverClass != null) {
+			try {
+				Class.forName(driverClass);
+			} catch (ClassNotFoundException e) {
+				throw new ConfigurationException("jdbc driver class not found: " + driverClass, e);
+			}
+		}
+		return connectionProperties;
+	}
+
+	/**
+	 * Connect to database, the connection of the previous poll is reused while it is open
+	 */
+	@Override
+	protected void openSession() throws Exception {
+		if (connection != null && !connection.isClosed())
+			return;
+		if (pool != null) {
+			connection = pool.borrow();
+			return;
+		}
+
+		LOG.info("Opening jdbc connection");
+		connection = DriverManager.getConnection(url, connectionProperties);
+		connection.setAutoCommit(true);
+		connection.setReadOnly(sqlSourceHelper.isReadOnlySession());
+		LOG.info("jdbc connection opened");
+	}
+
+	/**
+	 * The connection and its statements stay open for the next poll, a pooled connection is handed back
+	 */
+	@Override
+	public void closeSession() {
+		if (pool != null && connection != null) {
+			closeStatements();
+			pool.release(connection);
+			connection = null;
+		}
+	}
+
+	@Override
+	public void close() {
+		if (pool != null) {
+			closeSession();
+			return;
+		}
+		LOG.info("Closing jdbc connection");
+		closeStatements();
+		try {
+			if (connection != null)
+				connection.close();
+		} catch (SQLException e) {
+			LOG.error("close jdbc connection error", e);
+		}
+		connection = null;
+	}
+
+	@Override
+	protected void ensureConnected() throws Exception {
+		openSession();
+	}
+
+	@Override
+	protected void resetConnection() throws Exception {
+		dropConnection();
+		openSession();
+		if (!connection.isValid(sqlSourceHelper.getReconnectValidationTimeout())) {
+			dropConnection();
+			throw new SQLNonTransientConnectionException("New jdbc connection is not valid", "08003");
+		}
+	}
+
+	/**
+	 * Drop the connection, the next poll opens a new one. The idle connections of the pool are
+	 * likely broken by the same failure, the ones failing a check are closed, the live ones stay
+	 * for the other tables and sources sharing the pool
+	 */
+	@Override
+	protected void rebuildConnection() throws Exception {
+		dropConnection();
+		if (pool != null)
+			pool.evictBroken(sqlSourceHelper.getReconnectValidationTimeout());
+	}
+
+	private void dropConnection() {
+		if (pool != null && connection != null) {
+			closeStatements();
+			pool.invalidate(connection);
+			connection = null;
+		}
+		close();
+	}
+
+	@Override
+	protected Object queryValue(QueryStatement statement) throws SQLException {
+		if (maxStatement == null || !statement.getSql().equals(maxSql)) {
+			closeStatement(maxStatement);
+			maxStatement = connection.prepareStatement(statement.getSql());
+			maxSql = statement.getSql();
+		}
+		bind(maxStatement, statement);
+		ResultSet resultSet = maxStatement.executeQuery();
+		try {
+			return resultSet.next() ? resultSet.getObject(1) : null;
+		} finally {
+			resultSet.close();
+		}
+	}
+
+	@Override
+	protected QueryResult list(QueryStatement statement) throws SQLException {
+		final List<Object[]> rows = new ArrayList<>();
+		try {
+			read(statement, sqlSourceHelper.getMaxRows(), new RowHandler() {
+				@Override
+				public void handle(RowHeader header, Object[] row) {
+					rows.add(row);
+				}
+			});
+		} catch (IOException e) {
+			// the handler above never fails
+			throw new SQLException(e);
+		}
+		return new QueryResult(header, rows);
+	}
+
+	@Override
+	protected void scroll(QueryStatement statement, RowHandler handler) throws SQLException, IOException {
+		read(statement, sqlSourceHelper.getBatchSize(), handler);
+	}
+
+	private void read(QueryStatement statement, int fetchSize, RowHandler handler) throws SQLException, IOException {
+		if (selectStatement == null || !statement.getSql().equals(selectSql)) {
+			closeStatement(selectStatement);
+			selectStatement = connection.prepareStatement(statement.getSql(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			selectSql = statement.getSql();
+		}
+		selectStatement.setMaxRows(maxRows(statement));
+		selectStatement.setFetchSize(fetchSize);
+		bind(selectStatement, statement);
+
+		ResultSet resultSet = selectStatement.executeQuery();
+		try {
+			RowHeader rowHeader = readHeader(resultSet.getMetaData());
+			int columns = rowHeader.size();
+			while (resultSet.next()) {
+				Object[] row = new Object[columns];
+				for (int i = 0; i < columns; i++) {
+					row[i] = resultSet.getObject(i + 1);
+				}
+				handler.handle(rowHeader, row);
+			}
+		} finally {
+			resultSet.close();
+		}
+	}
+
+	private void bind(PreparedStatement preparedStatement, QueryStatement statement) throws SQLException {
+		Object[] parameters = statement.getParameters();
+		for (int i = 0; i < parameters.length; i++) {
+			preparedStatement.setObject(i + 1, parameters[i]);
+		}
+	}
+
+	/**
+	 * @return the header of the previous query when the columns did not change
+	 */
+	private RowHeader readHeader(ResultSetMetaData metaData) throws SQLException {
+		int columns = metaData.getColumnCount();
+		String[] names = new String[columns];
+		int[] sqlTypes = new int[columns];
+		String[] classNames = new String[columns];
+		int[] precisions = new int[columns];
+		int[] scales = new int[columns];
+		for (int i = 0; i < columns; i++) {
+			names[i] = metaData.getColumnLabel(i + 1);
+			sqlTypes[i] = metaData.getColumnType(i + 1);
+			classNames[i] = metaData.getColumnClassName(i + 1);
+			precisions[i] = metaData.getPrecision(i + 1);
+			scales[i] = metaData.getScale(i + 1);
+		}
+		if (header == null || !header.hasColumns(names, sqlTypes, classNames, precisions, scales))
+			header = new RowHeader(names, sqlTypes, classNames, precisions, scales);
+		return header;
+	}
+
+	private void closeStatements() {
+		closeStatement(maxStatement);
+		closeStatement(selectStatement);
+		maxStatement = null;
+		selectStatement = null;
+	}
+
+	private void closeStatement(PreparedStatement statement) {
+		try {
+			if (statement != null)
+				statement.close();
+		} catch (SQLException e) {
+			LOG.warn("close jdbc statement error", e);
+		}
+	}
+}
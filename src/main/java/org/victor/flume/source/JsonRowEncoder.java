@@ -0,0 +1,265 @@
+package org.victor.flume.source;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.serializer.SerializerFeature;
+import com.alibaba.fastjson.util.RyuDouble;
+import com.alibaba.fastjson.util.RyuFloat;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes a row as UTF-8 json, giving the same bytes as fastjson with the features the source has
+ * always used. <p>
+ * The column names of the last row header are kept already encoded and every value is written
+ * directly into a byte buffer reused between rows, types without a fast path are left to fastjson.
+ * Not thread safe, each serializing thread needs its own encoder.
+ *
+ */
+public class JsonRowEncoder implements RowEncoder {
+
+    static final SerializerFeature[] FEATURES = {
+            SerializerFeature.WriteNullStringAsEmpty
+            , SerializerFeature.WriteEnumUsingToString
+            , SerializerFeature.WriteNullBooleanAsFalse
+            , SerializerFeature.WriteNullListAsEmpty
+            , SerializerFeature.WriteMapNullValue
+            , SerializerFeature.WriteBigDecimalAsPlain
+    };
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+    private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+    private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+    private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+
+    private byte[] buffer = new byte[1024];
+    private int size;
+
+    /* Header of the last encoded row, the positions of its cells in json order and their "name": bytes */
+    private RowHeader header;
+    private int[] order;
+    private byte[][] keyBytes;
+
+    /**
+     * @param header column names of the row
+     * @param row cell contents, in the positions of the header
+     * @return the json of the row
+     */
+    @Override
+    public byte[] encode(RowHeader header, Object[] row) {
+        if (header != this.header)
+            prepare(header);
+
+        size = 0;
+        write((byte) '{');
+        for (int i = 0; i < order.length; i++) {
+            if (i > 0)
+                write((byte) ',');
+            write(keyBytes[i]);
+            writeValue(row[order[i]]);
+        }
+        write((byte) '}');
+        return Arrays.copyOf(buffer, size);
+    }
+
+    /**
+     * Json rows describe themselves, no header needed
+     */
+    @Override
+    public void putHeaders(RowHeader header, Map<String, String> headers) {
+    }
+
+    /**
+     * Rows used to be serialized from the HashMap built by hibernate's ALIAS_TO_ENTITY_MAP,
+     * building the same map of positions gives the same column order, and the same bytes
+     */
+    private void prepare(RowHeader header) {
+        Map<String, Integer> positions = new HashMap<String, Integer>(header.size());
+        for (int i = 0; i < header.size(); i++) {
+            if (header.getName(i) != null)
+                positions.put(header.getName(i), i);
+        }
+
+        order = new int[positions.size()];
+        keyBytes = new byte[positions.size()][];
+        int i = 0;
+        for (Map.Entry<String, Integer> position : positions.entrySet()) {
+            size = 0;
+            writeString(position.getKey());
+            write((byte) ':');
+            order[i] = position.getValue();
+            keyBytes[i++] = Arrays.copyOf(buffer, size);
+        }
+        this.header = header;
+    }
+
+    private void writeValue(Object value) {
+        if (value == null) {
+            write(NULL);
+        } else if (value instanceof String) {
+            writeString((String) value);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short
+                || value instanceof Byte || value instanceof AtomicInteger || value instanceof AtomicLong) {
+            writeLong(((Number) value).longValue());
+        } else if (value instanceof BigDecimal) {
+            writeAscii(((BigDecimal) value).toPlainString());
+        } else if (value instanceof BigInteger) {
+            writeAscii(value.toString());
+        } else if (value instanceof Double) {
+            double d = (Double) value;
+            if (Double.isNaN(d) || Double.isInfinite(d))
+                write(NULL);
+            else
+                // the shortest digits fastjson writes, not those of Double.toString
+                writeAscii(RyuDouble.toString(d));
+        } else if (value instanceof Float) {
+            float f = (Float) value;
+            if (Float.isNaN(f) || Float.isInfinite(f))
+                write(NULL);
+            else
+                writeAscii(RyuFloat.toString(f));
+        } else if (value instanceof Boolean) {
+            write((Boolean) value ? TRUE : FALSE);
+        } else if (value.getClass() == Date.class || value.getClass() == Timestamp.class) {
+            // other dates, like java.sql.Time written as text, are left to fastjson
+            writeLong(((Date) value).getTime());
+        } else if (value instanceof Character) {
+            writeString(value.toString());
+        } else {
+            write(JSON.toJSONString(value, FEATURES).getBytes(UTF_8));
+        }
+    }
+
+    /**
+     * Quoted string, escaped like fastjson: control characters, DEL to U+009F and the
+     * line/paragraph separators are written as unicode escapes
+     */
+    private void writeString(String value) {
+        write((byte) '"');
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            // widest output of a char is a six bytes unicode escape
+            ensureCapacity(6);
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (c >= 0x20 && c != '"' && c != '\\' && c != 0x7F) {
+                    buffer[size++] = (byte) c;
+                    continue;
+                }
+                switch (c) {
+                    case '"':
+                        writeEscape('"');
+                        break;
+                    case '\\':
+                        writeEscape('\\');
+                        break;
+                    case '\b':
+                        writeEscape('b');
+                        break;
+                    case '\t':
+                        writeEscape('t');
+                        break;
+                    case '\n':
+                        writeEscape('n');
+                        break;
+                    case '\f':
+                        writeEscape('f');
+                        break;
+                    case '\r':
+                        writeEscape('r');
+                        break;
+                    default:
+                        writeUnicodeEscape(c);
+                }
+            } else if (c < 0xA0 || c == 0x2028 || c == 0x2029) {
+                writeUnicodeEscape(c);
+            } else if (c < 0x800) {
+                buffer[size++] = (byte) (0xC0 | (c >> 6));
+                buffer[size++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    buffer[size++] = (byte) (0xF0 | (codePoint >> 18));
+                    buffer[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    buffer[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    buffer[size++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else {
+                    // String.getBytes replaces a malformed surrogate
+                    buffer[size++] = '?';
+                }
+            } else {
+                buffer[size++] = (byte) (0xE0 | (c >> 12));
+                buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[size++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        write((byte) '"');
+    }
+
+    private void writeEscape(char c) {
+        buffer[size++] = '\\';
+        buffer[size++] = (byte) c;
+    }
+
+    private void writeUnicodeEscape(char c) {
+        buffer[size++] = '\\';
+        buffer[size++] = 'u';
+        buffer[size++] = HEX[(c >> 12) & 0xF];
+        buffer[size++] = HEX[(c >> 8) & 0xF];
+        buffer[size++] = HEX[(c >> 4) & 0xF];
+        buffer[size++] = HEX[c & 0xF];
+    }
+
+    private void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return;
+        }
+        ensureCapacity(20);
+        if (value < 0) {
+            buffer[size++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10)
+            digits++;
+        int pos = size + digits;
+        size = pos;
+        do {
+            buffer[--pos] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+    }
+
+    private void writeAscii(String value) {
+        int length = value.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++)
+            buffer[size++] = (byte) value.charAt(i);
+    }
+
+    private void write(byte b) {
+        ensureCapacity(1);
+        buffer[size++] = b;
+    }
+
+    private void write(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+    }
+}
@@ -0,0 +1,251 @@
+package org.victor.flume.source;
+
+import org.apache.flume.Context;
+import org.apache.flume.PollableSource.Status;
+import org.apache.flume.channel.ChannelProcessor;
+import org.apache.flume.conf.ConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.victor.flume.metrics.SqlSourceCounter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Polls several tables from one source, for the tables property. Each table is polled by its
+ * own {@link TablePoller} with its own properties, status file and SOURCESQL.&lt;source&gt;.&lt;table&gt;
+ * counters, over jdbc connections shared in a {@link JdbcConnectionPool}. <p>
+ * A table is due once the delay of its last poll is over, as a single table source would sleep.
+ * table.workers threads poll the due tables, the source runner thread being one of them, and
+ * table.scheduling picks the next one: fair takes the table waiting the longest, priority the
+ * highest tables.&lt;table&gt;.priority, lag the largest watermark lag, or wait when the table has
+ * no time column, times its priority.
+ *
+ */
+class MultiTablePoller {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MultiTablePoller.class);
+
+    static final String SCHEDULING_FAIR = "fair";
+    static final String SCHEDULING_PRIORITY = "priority";
+    static final String SCHEDULING_LAG = "lag";
+
+    private static final String TABLES_PREFIX = "tables.";
+    private static final int DEFAULT_WORKERS = 2;
+    private static final int DEFAULT_PRIORITY = 1;
+    private static final long DEFAULT_WAIT = 1000;
+
+    private final String sourceName;
+    private final String scheduling;
+    private final int workers;
+    private final JdbcConnectionPool pool;
+    private final List<Table> tables = new ArrayList<>();
+    private final List<Thread> workerThreads = new ArrayList<>();
+
+    private volatile boolean stopped;
+
+    MultiTablePoller(Context context, String sourceName) {
+        this.sourceName = sourceName;
+        this.workers = context.getInteger("table.workers", DEFAULT_WORKERS);
+        String scheduling = context.getString("table.scheduling", SCHEDULING_FAIR);
+        this.scheduling = scheduling == null ? SCHEDULING_FAIR : scheduling;
+        if (workers < 1) {
+            throw new ConfigurationException("table.workers must be 1 or more");
+        }
+        if (!SCHEDULING_FAIR.equals(this.scheduling) && !SCHEDULING_PRIORITY.equals(this.scheduling)
+                && !SCHEDULING_LAG.equals(this.scheduling)) {
+            throw new ConfigurationException("table.scheduling must be fair, priority or lag");
+        }
+
+        String url = context.getString("hibernate.connection.url");
+        pool = ConnectionRegistry.acquirePool(url, JdbcHelper.connectionProperties(context),
+                context.getBoolean("read.only", false), workers);
+
+        for (String name : context.getString("tables").trim().split("[\\s,]+")) {
+            Context tableContext = tableContext(context, name);
+            SQLSourceHelper sqlSourceHelper = new SQLSourceHelper(tableContext, sourceName + "." + name);
+            if (!sqlSourceHelper.isJdbcQueryEngine()) {
+                throw new ConfigurationException("tables needs query.engine jdbc, table " + name);
+            }
+            if (sqlSourceHelper.isPipelineEnabled() || sqlSourceHelper.isParallelBulkLoad()) {
+                throw new ConfigurationException("tables can't be polled with pipeline.enable or bulk.partition.column, table " + name);
+            }
+            if (url != null && !url.equals(sqlSourceHelper.getConnectionURL())) {
+                throw new ConfigurationException("tables share the connection of the source, table " + name + " can't set its own");
+            }
+
+            SqlSourceCounter sqlSourceCounter = new SqlSourceCounter("SOURCESQL." + sourceName + "." + name);
+            JdbcHelper engine = new JdbcHelper(sqlSourceHelper, pool);
+            engine.setSqlSourceCounter(sqlSourceCounter);
+            PollScheduler pollScheduler = new PollScheduler(sqlSourceHelper, sqlSourceCounter);
+            int priority = tableContext.getInteger("priority", DEFAULT_PRIORITY);
+            tables.add(new Table(name, new TablePoller(sqlSourceHelper, sqlSourceCounter, engine, pollScheduler),
+                    engine, Math.max(priority, 1)));
+        }
+        LOG.info("Polling " + tables.size() + " tables with " + workers + " workers, " + this.scheduling + " scheduling");
+    }
+
+    /**
+     * @return the properties of the source without the tables, overridden by tables.&lt;name&gt;.*.
+     * Its status file is status.file.name.&lt;name&gt; unless the table sets its own
+     */
+    static Context tableContext(Context context, String name) {
+        Map<String, String> properties = new HashMap<>();
+        for (Map.Entry<String, String> property : context.getParameters().entrySet()) {
+            if (!property.getKey().equals("tables") && !property.getKey().startsWith(TABLES_PREFIX))
+                properties.put(property.getKey(), property.getValue());
+        }
+        Map<String, String> table = context.getSubProperties(TABLES_PREFIX + name + ".");
+        if (table.isEmpty()) {
+            throw new ConfigurationException("No tables." + name + ".* properties for table " + name);
+        }
+        properties.putAll(table);
+        if (!table.containsKey("status.file.name") && context.getString("status.file.name") != null) {
+            properties.put("status.file.name", context.getString("status.file.name") + "." + name);
+        }
+        return new Context(properties);
+    }
+
+    /**
+     * Start the counters and the workers beyond the source runner thread
+     */
+    void start(final ChannelProcessor channelProcessor) {
+        for (Table table : tables) {
+            table.poller.getSqlSourceCounter().start();
+        }
+        for (int i = 1; i < workers; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!stopped) {
+                        try {
+                            pollNext(channelProcessor);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }, "sql-source-" + sourceName + "-table-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workerThreads.add(worker);
+        }
+    }
+
+    /**
+     * Poll the next due table, waiting up to a second for one. The status of the poll only sets
+     * when the table is due again, the other tables are not held back by its failure, and the
+     * wait for a due table replaces the backoff of the source runner
+     */
+    Status pollNext(ChannelProcessor channelProcessor) throws InterruptedException {
+        Table table = take();
+        if (table == null)
+            return Status.READY;
+        Status status = Status.BACKOFF;
+        try {
+            status = table.poller.poll(channelProcessor);
+        } finally {
+            release(table, table.poller.nextDelay(status));
+        }
+        return Status.READY;
+    }
+
+    private synchronized Table take() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DEFAULT_WAIT;
+        while (!stopped) {
+            long now = System.currentTimeMillis();
+            Table next = null;
+            long nextDue = deadline;
+            for (Table table : tables) {
+                if (table.running)
+                    continue;
+                if (table.due > now) {
+                    nextDue = Math.min(nextDue, table.due);
+                } else if (next == null || before(table, next, now)) {
+                    next = table;
+                }
+            }
+            if (next != null) {
+                next.running = true;
+                return next;
+            }
+            if (now >= deadline)
+                return null;
+            wait(Math.max(1, nextDue - now));
+        }
+        return null;
+    }
+
+    /**
+     * @return true when the due table a goes before the due table b
+     */
+    private boolean before(Table a, Table b, long now) {
+        if (SCHEDULING_PRIORITY.equals(scheduling) && a.priority != b.priority)
+            return a.priority > b.priority;
+        if (SCHEDULING_LAG.equals(scheduling)) {
+            long weightA = a.lag(now) * a.priority, weightB = b.lag(now) * b.priority;
+            if (weightA != weightB)
+                return weightA > weightB;
+        }
+        return a.due < b.due;
+    }
+
+    private synchronized void release(Table table, long delay) {
+        table.due = System.currentTimeMillis() + delay;
+        table.running = false;
+        notifyAll();
+    }
+
+    void stop() {
+        stopped = true;
+        for (Thread worker : workerThreads) {
+            worker.interrupt();
+        }
+        for (Thread worker : workerThreads) {
+            try {
+                worker.join(DEFAULT_WAIT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Table table : tables) {
+            try {
+                table.poller.close();
+                table.engine.close();
+                table.poller.getSqlSourceHelper().close();
+            } catch (Exception e) {
+                LOG.warn("Error closing table " + table.name, e);
+            } finally {
+                table.poller.getSqlSourceCounter().stop();
+            }
+        }
+        ConnectionRegistry.releasePool(pool, workers);
+    }
+
+    private static class Table {
+        private final String name;
+        private final TablePoller poller;
+        private final JdbcHelper engine;
+        private final int priority;
+        /* guarded by the poller, when the table can be polled again and whether a worker polls it */
+        private long due;
+        private boolean running;
+
+        Table(String name, TablePoller poller, JdbcHelper engine, int priority) {
+            this.name = name;
+            this.poller = poller;
+            this.engine = engine;
+            this.priority = priority;
+        }
+
+        /**
+         * @return ms the rows of the table are behind, or the table waited to be polled
+         */
+        long lag(long now) {
+            long lag = poller.getSqlSourceCounter().getWatermarkLag();
+            return lag >= 0 ? lag : now - due;
+        }
+    }
+}
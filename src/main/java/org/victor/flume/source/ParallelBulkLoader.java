@@ -0,0 +1,209 @@
+package org.victor.flume.source;
+
+import org.apache.flume.Event;
+import org.apache.flume.channel.ChannelProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.victor.flume.metrics.SqlSourceCounter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bulk load of a whole table split in ranges of bulk.partition.column, read in parallel by a
+ * pool of workers each with its own jdbc connection. <p>
+ * The ranges come from a min/max probe of the column and are kept in the status file with the
+ * ones already delivered, an interrupted load only reads again the ranges not finished.
+ * The load is one-shot, unlike the bulk mode without partition column reading the whole table
+ * on each poll: once all ranges are delivered the table is not read again, until the source
+ * starts without the BulkRanges of its status file.
+ *
+ */
+class ParallelBulkLoader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelBulkLoader.class);
+
+    private final SQLSourceHelper sqlSourceHelper;
+    private final SqlSourceCounter sqlSourceCounter;
+
+    private List<BulkRange> ranges;
+    private volatile ExecutorService workers;
+
+    ParallelBulkLoader(SQLSourceHelper sqlSourceHelper, SqlSourceCounter sqlSourceCounter) throws Exception {
+        this.sqlSourceHelper = sqlSourceHelper;
+        this.sqlSourceCounter = sqlSourceCounter;
+        if (sqlSourceHelper.getBulkRanges() != null) {
+            ranges = BulkRange.parse(sqlSourceHelper.getBulkRanges());
+        }
+    }
+
+    boolean isFinished() {
+        if (ranges == null)
+            return false;
+        for (BulkRange range : ranges) {
+            if (!range.isDone())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Read all the ranges not delivered yet, blocks until every worker is done
+     *
+     * @return number of rows delivered
+     */
+    int load(final ChannelProcessor channelProcessor) throws Exception {
+        if (ranges == null) {
+            ranges = probe();
+            sqlSourceHelper.updateBulkRanges(BulkRange.toJson(ranges));
+        }
+
+        final AtomicInteger rows = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+        workers = Executors.newFixedThreadPool(sqlSourceHelper.getBulkParallelism(), new WorkerThreadFactory());
+        try {
+            for (final BulkRange range : ranges) {
+                if (range.isDone())
+                    continue;
+                futures.add(workers.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        rows.addAndGet(read(range, channelProcessor));
+                        return null;
+                    }
+                }));
+            }
+
+            ExecutionException failure = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    LOG.error("Bulk range failed, it will be read again:", e.getCause());
+                    failure = e;
+                }
+            }
+            if (failure != null)
+                throw failure;
+        } finally {
+            workers.shutdownNow();
+        }
+
+        LOG.info("全量并行导入完成, 数据量: " + rows.get());
+        return rows.get();
+    }
+
+    void stop() {
+        ExecutorService current = workers;
+        if (current != null)
+            current.shutdownNow();
+    }
+
+    private List<BulkRange> probe() throws Exception {
+        JdbcHelper engine = new JdbcHelper(sqlSourceHelper);
+        try {
+            engine.establishSession();
+            Object min = engine.queryValue(new QueryStatement(sqlSourceHelper.bulkBoundQuery("min")));
+            Object max = engine.queryValue(new QueryStatement(sqlSourceHelper.bulkBoundQuery("max")));
+            List<BulkRange> ranges = BulkRange.split(min, max, sqlSourceHelper.getBulkPartitions());
+            LOG.info("全量并行导入分区: " + ranges);
+            return ranges;
+        } finally {
+            engine.close();
+        }
+    }
+
+    private int read(BulkRange range, ChannelProcessor channelProcessor) throws Exception {
+        JdbcHelper engine = new JdbcHelper(sqlSourceHelper);
+        RangeWriter writer = new RangeWriter(channelProcessor);
+        try {
+            engine.establishSession();
+            QueryStatement statement = sqlSourceHelper.bulkRangeStatement(range);
+            LOG.info("执行sql:" + statement);
+            engine.scroll(statement, writer);
+            writer.flush();
+        } finally {
+            writer.close();
+            engine.close();
+        }
+
+        range.setDone();
+        synchronized (this) {
+            sqlSourceHelper.updateBulkRanges(BulkRange.toJson(ranges));
+        }
+        LOG.info("分区 " + range + " 完成, 数据量: " + writer.rows);
+        return writer.rows;
+    }
+
+    private class RangeWriter implements RowHandler {
+        private final ChannelProcessor channelProcessor;
+        private final EventBuilder eventBuilder = new EventBuilder(sqlSourceHelper);
+        private final List<Event> events = new ArrayList<>();
+        /* Rows read from the range and rows not counted as delivered yet */
+        private int rows, pendingRows;
+        private long serializeNanos;
+
+        RangeWriter(ChannelProcessor channelProcessor) {
+            this.channelProcessor = channelProcessor;
+        }
+
+        @Override
+        public void handle(RowHeader header, Object[] row) throws IOException {
+            long start = System.nanoTime();
+            int bytes = eventBuilder.add(header, row, events);
+            serializeNanos += System.nanoTime() - start;
+            sqlSourceCounter.addPollBytes(bytes);
+            rows++;
+            pendingRows++;
+            if (events.size() >= sqlSourceHelper.getBatchSize())
+                send();
+        }
+
+        /**
+         * Send the events built, with the rows left in the last pack
+         */
+        void flush() throws IOException {
+            eventBuilder.finish(events);
+            send();
+        }
+
+        void close() {
+            eventBuilder.close();
+        }
+
+        private void send() throws IOException {
+            if (Thread.currentThread().isInterrupted())
+                throw new InterruptedIOException("bulk load stopped");
+            if (events.isEmpty())
+                return;
+            sqlSourceCounter.recordSerialize(serializeNanos);
+            serializeNanos = 0;
+            long start = System.nanoTime();
+            channelProcessor.processEventBatch(events);
+            sqlSourceCounter.recordDeliver(System.nanoTime() - start);
+            sqlSourceCounter.incrementEventCount(pendingRows);
+            pendingRows = 0;
+            events.clear();
+        }
+    }
+
+    private class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "sql-source-bulk-" + sqlSourceHelper.getTable() + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.victor.flume.source;
+
+import org.victor.flume.metrics.SqlSourceCounter;
+
+import java.util.Random;
+
+/**
+ * Delay before the next poll. A full window or a catch up slice is followed at once, otherwise
+ * the source waits run.query.delay. <p>
+ * With poll.adaptive the delay follows the table: it is divided by poll.backoff.factor down to
+ * poll.min.delay while polls return rows, and multiplied up to poll.max.delay while they return
+ * none. poll.jitter spreads the delay randomly by that fraction, so agents started together
+ * don't poll the database in lockstep.
+ *
+ */
+class PollScheduler {
+
+    private final SqlSourceCounter sqlSourceCounter;
+    private final int maxRows;
+    private final boolean adaptive;
+    private final long minDelay, maxDelay;
+    private final double backoffFactor, jitter;
+    private final Random random = new Random();
+
+    private long interval;
+
+    PollScheduler(SQLSourceHelper sqlSourceHelper, SqlSourceCounter sqlSourceCounter) {
+        this.sqlSourceCounter = sqlSourceCounter;
+        this.maxRows = sqlSourceHelper.getMaxRows();
+        this.adaptive = sqlSourceHelper.isPollAdaptive();
+        this.minDelay = sqlSourceHelper.getPollMinDelay();
+        this.maxDelay = Math.max(sqlSourceHelper.getPollMaxDelay(), minDelay);
+        this.backoffFactor = sqlSourceHelper.getPollBackoffFactor();
+        this.jitter = sqlSourceHelper.getPollJitter();
+        this.interval = sqlSourceHelper.getRunQueryDelay();
+    }
+
+    /**
+     * @param rows rows read by the last poll
+     * @param catchingUp true when the last poll read a slice of a larger window
+     * @return milliseconds to wait before the next poll
+     */
+    long nextDelay(int rows, boolean catchingUp) {
+        if (rows >= maxRows || catchingUp) {
+            sqlSourceCounter.setPollInterval(0);
+            return 0;
+        }
+
+        if (adaptive) {
+            long next = (long) (rows > 0 ? interval / backoffFactor : interval * backoffFactor);
+            interval = Math.min(maxDelay, Math.max(minDelay, next));
+        }
+        sqlSourceCounter.setPollInterval(interval);
+
+        if (jitter <= 0)
+            return interval;
+        return Math.max(0, (long) (interval * (1 + jitter * (2 * random.nextDouble() - 1))));
+    }
+
+    /**
+     * Wait before the next poll
+     */
+    void sleep(int rows, boolean catchingUp) throws InterruptedException {
+        long delay = nextDelay(rows, catchingUp);
+        if (delay > 0)
+            Thread.sleep(delay);
+    }
+}
@@ -0,0 +1,34 @@
+package org.victor.flume.source;
+
+import org.hibernate.transform.BasicTransformerAdapter;
+
+/**
+ * Result transformer keeping each row as the Object[] read by hibernate, the column aliases
+ * are collected once in a {@link RowHeader} instead of being repeated in a map for every row
+ *
+ */
+class PositionalRowTransformer extends BasicTransformerAdapter {
+
+	private static final long serialVersionUID = 1L;
+
+	private String[] lastAliases;
+	private RowHeader header;
+
+	@Override
+	public Object transformTuple(Object[] tuple, String[] aliases) {
+		if (aliases != lastAliases) {
+			if (header == null || !header.hasNames(aliases)) {
+				header = new RowHeader(aliases.clone());
+			}
+			lastAliases = aliases;
+		}
+		return tuple;
+	}
+
+	/**
+	 * @return header of the rows transformed so far, null if there was none
+	 */
+	RowHeader getHeader() {
+		return header;
+	}
+}
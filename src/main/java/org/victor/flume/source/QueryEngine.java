@@ -0,0 +1,45 @@
+package org.victor.flume.source;
+
+/**
+ * Runs the source queries against the database, selected with the query.engine property
+ *
+ */
+public interface QueryEngine {
+
+	/**
+	 * @return false while the connection recovers and polls must not query the database
+	 */
+	boolean isAvailable();
+
+	/**
+	 * Prepare the connection used by the next queries
+	 */
+	void establishSession() throws Exception;
+
+	/**
+	 * Release what the last queries held, the engine may keep its connection for the next poll
+	 */
+	void closeSession();
+
+	/**
+	 * Execute the selection query and read the whole result
+	 */
+	QueryResult executeQuery() throws Exception;
+
+	/**
+	 * Execute the selection query handing every row to the handler while it is read
+	 *
+	 * @return number of rows handed to the handler
+	 */
+	int executeQuery(RowHandler handler) throws Exception;
+
+	/**
+	 * @return true if the last query read only a slice of the window and the next one must run without delay
+	 */
+	boolean isCatchingUp();
+
+	/**
+	 * Close every database resource, the engine is not used anymore
+	 */
+	void close();
+}
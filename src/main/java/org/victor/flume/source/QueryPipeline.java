@@ -0,0 +1,312 @@
+package org.victor.flume.source;
+
+import org.apache.flume.Event;
+import org.apache.flume.channel.ChannelProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.victor.flume.metrics.SqlSourceCounter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the source as three concurrent stages: a reader thread querying the database, a serializer
+ * thread building the events and the delivery stage, driven by the source runner, that puts the
+ * events into the channel. The stages are connected by bounded queues, so a slow stage blocks
+ * the ones feeding it. <p>
+ * The index of a query window is only written to the status file once all its rows are delivered.
+ * When a batch can't be serialized its window fails: the rest of it and the windows read after
+ * it are dropped, their ends never reach the delivery stage, and the reader reads again from the
+ * end of the last window handed to the delivery stage.
+ *
+ */
+class QueryPipeline {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueryPipeline.class);
+    private static final long DELIVERY_POLL_TIMEOUT = 500;
+
+    private final SQLSourceHelper sqlSourceHelper;
+    private final QueryEngine queryEngine;
+    private final SqlSourceCounter sqlSourceCounter;
+    private final PollScheduler pollScheduler;
+    private final EventBuilder eventBuilder;
+
+    private final BlockingQueue<Batch> rowQueue;
+    private final BlockingQueue<Batch> eventQueue;
+
+    private Thread reader, serializer;
+    private volatile boolean running;
+
+    /* Batch taken from the event queue whose delivery failed, retried on the next call */
+    private Batch pending;
+
+    /* Windows read since the last rewind, the batches of a failed generation are dropped */
+    private volatile int generation;
+    /* Set by the serializer when a window failed, the reader then goes back to rewindIndex */
+    private volatile boolean rewind;
+    private volatile String rewindIndex, rewindKey;
+
+    QueryPipeline(SQLSourceHelper sqlSourceHelper, QueryEngine queryEngine, SqlSourceCounter sqlSourceCounter,
+                  PollScheduler pollScheduler) {
+        this(sqlSourceHelper, queryEngine, sqlSourceCounter, pollScheduler, new EventBuilder(sqlSourceHelper));
+    }
+
+    QueryPipeline(SQLSourceHelper sqlSourceHelper, QueryEngine queryEngine, SqlSourceCounter sqlSourceCounter,
+                  PollScheduler pollScheduler, EventBuilder eventBuilder) {
+        this.sqlSourceHelper = sqlSourceHelper;
+        this.queryEngine = queryEngine;
+        this.sqlSourceCounter = sqlSourceCounter;
+        this.pollScheduler = pollScheduler;
+        this.eventBuilder = eventBuilder;
+        this.rowQueue = new ArrayBlockingQueue<>(sqlSourceHelper.getPipelineQueueSize());
+        this.eventQueue = new ArrayBlockingQueue<>(sqlSourceHelper.getPipelineQueueSize());
+    }
+
+    void start() {
+        running = true;
+        rewindIndex = sqlSourceHelper.getCurrentIndex();
+        rewindKey = sqlSourceHelper.getCurrentKey();
+        reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        }, "sql-source-reader-" + sqlSourceHelper.getTable());
+        serializer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serialize();
+            }
+        }, "sql-source-serializer-" + sqlSourceHelper.getTable());
+        reader.setDaemon(true);
+        serializer.setDaemon(true);
+        reader.start();
+        serializer.start();
+    }
+
+    void stop() {
+        running = false;
+        for (Thread thread : new Thread[]{reader, serializer}) {
+            if (thread == null)
+                continue;
+            thread.interrupt();
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Delivery stage, puts the next serialized batch into the channel. A batch the channel
+     * refuses is kept and retried on the next call
+     */
+    void deliver(ChannelProcessor channelProcessor) throws InterruptedException {
+        if (pending == null) {
+            pending = eventQueue.poll(DELIVERY_POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (pending == null)
+                return;
+        }
+
+        if (pending.isWindowEnd()) {
+            sqlSourceHelper.updateStatusFile(pending.watermark, pending.key);
+            if (sqlSourceHelper.isTransferIncrement())
+                sqlSourceCounter.setWatermark(sqlSourceHelper.indexMillis(pending.watermark));
+            sqlSourceCounter.endProcess(pending.rowCount);
+            sqlSourceCounter.startProcess();
+            LOG.info("finish flush from source to channel, index " + pending.watermark);
+        } else {
+            long start = System.nanoTime();
+            channelProcessor.processEventBatch(pending.events);
+            sqlSourceCounter.recordDeliver(System.nanoTime() - start);
+            sqlSourceCounter.incrementEventCount(pending.rowCount);
+        }
+        pending = null;
+    }
+
+    private void read() {
+        RowBatcher batcher = new RowBatcher();
+        while (running) {
+            int rows = 0;
+            if (rewind) {
+                rewind = false;
+                generation++;
+                LOG.warn("Reading again from index " + rewindIndex + " after a failed window");
+                sqlSourceHelper.setCurrentIndex(rewindIndex);
+                sqlSourceHelper.setCurrentKey(rewindKey);
+            }
+            batcher.generation = generation;
+            if (!queryEngine.isAvailable()) {
+                try {
+                    pollScheduler.sleep(0, false);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                continue;
+            }
+            try {
+                queryEngine.establishSession();
+                String index = sqlSourceHelper.getCurrentIndex();
+                rows = queryEngine.executeQuery(batcher);
+                batcher.finish();
+                if (rows > 0 || !index.equals(sqlSourceHelper.getCurrentIndex())) {
+                    Batch windowEnd = Batch.windowEnd(sqlSourceHelper.getCurrentIndex(), sqlSourceHelper.getCurrentKey(), rows);
+                    windowEnd.generation = batcher.generation;
+                    rowQueue.put(windowEnd);
+                }
+            } catch (InterruptedException | InterruptedIOException e) {
+                break;
+            } catch (Exception e) {
+                LOG.error("Pipeline reader error:", e);
+                batcher.clear();
+            } finally {
+                queryEngine.closeSession();
+            }
+
+            try {
+                pollScheduler.sleep(rows, queryEngine.isCatchingUp());
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        LOG.info("Pipeline reader stopped");
+    }
+
+    private void serialize() {
+        // rows serialized into a pack not sent yet
+        int packedRows = 0;
+        // batches of this generation and the ones before belong to a failed window or follow it
+        int failedGeneration = -1;
+        while (running) {
+            Batch batch;
+            try {
+                batch = rowQueue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (batch.generation <= failedGeneration)
+                continue;
+            try {
+                if (batch.isWindowEnd()) {
+                    // the rows of the window left in the last pack go before its end
+                    List<Event> events = new ArrayList<>();
+                    eventBuilder.finish(events);
+                    if (!events.isEmpty())
+                        eventQueue.put(Batch.events(events, packedRows));
+                    packedRows = 0;
+                    // the window is whole, a failure after it reads again from its end
+                    rewindIndex = batch.watermark;
+                    rewindKey = batch.key;
+                } else {
+                    long start = System.nanoTime();
+                    long bytes = 0;
+                    batch.events = new ArrayList<>(batch.rows.size());
+                    for (Object[] row : batch.rows) {
+                        bytes += eventBuilder.add(batch.header, row, batch.events);
+                    }
+                    packedRows += batch.rows.size();
+                    batch.rows = null;
+                    sqlSourceCounter.recordSerialize(System.nanoTime() - start);
+                    sqlSourceCounter.addPollBytes(bytes);
+                    // every row may still be in the pack being filled
+                    if (batch.events.isEmpty())
+                        continue;
+                    batch.rowCount = packedRows;
+                    packedRows = 0;
+                }
+                eventQueue.put(batch);
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                LOG.error("Pipeline serializer error, the window is read again from index " + rewindIndex, e);
+                eventBuilder.clear();
+                packedRows = 0;
+                failedGeneration = batch.generation;
+                rewind = true;
+            }
+        }
+        // the builder is only used by this thread
+        eventBuilder.close();
+        LOG.info("Pipeline serializer stopped");
+    }
+
+    /**
+     * Groups the streamed rows in batches of batch.size and hands them to the serializer stage
+     */
+    private class RowBatcher implements RowHandler {
+        private List<Object[]> rows = new ArrayList<>();
+        private RowHeader header;
+        private int generation;
+
+        @Override
+        public void handle(RowHeader header, Object[] row) throws IOException {
+            if (header != this.header)
+                finish();
+            this.header = header;
+            rows.add(row);
+            if (rows.size() >= sqlSourceHelper.getBatchSize())
+                finish();
+        }
+
+        void finish() throws IOException {
+            if (rows.isEmpty())
+                return;
+            Batch batch = new Batch(header, rows);
+            batch.generation = generation;
+            try {
+                rowQueue.put(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for the serializer stage");
+            }
+            rows = new ArrayList<>();
+        }
+
+        void clear() {
+            rows.clear();
+        }
+    }
+
+    private static class Batch {
+        private RowHeader header;
+        private List<Object[]> rows;
+        private List<Event> events;
+        /* Only set on the marker closing a query window */
+        private String watermark;
+        private String key;
+        /* Rows of the window on the marker, rows counted as delivered with the events otherwise */
+        private int rowCount;
+        /* Generation of the reader when the rows were read */
+        private int generation;
+
+        Batch(RowHeader header, List<Object[]> rows) {
+            this.header = header;
+            this.rows = rows;
+        }
+
+        static Batch events(List<Event> events, int rowCount) {
+            Batch batch = new Batch(null, null);
+            batch.events = events;
+            batch.rowCount = rowCount;
+            return batch;
+        }
+
+        static Batch windowEnd(String watermark, String key, int rowCount) {
+            Batch batch = new Batch(null, null);
+            batch.watermark = watermark;
+            batch.key = key;
+            batch.rowCount = rowCount;
+            return batch;
+        }
+
+        boolean isWindowEnd() {
+            return rows == null && events == null;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package org.victor.flume.source;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Rows of a query read at once, with the header they share
+ *
+ */
+public class QueryResult {
+
+    private final RowHeader header;
+    private final List<Object[]> rows;
+
+    public QueryResult(RowHeader header, List<Object[]> rows) {
+        this.header = header;
+        this.rows = rows;
+    }
+
+    static QueryResult empty() {
+        return new QueryResult(null, Collections.<Object[]>emptyList());
+    }
+
+    public RowHeader getHeader() {
+        return header;
+    }
+
+    public List<Object[]> getRows() {
+        return rows;
+    }
+
+    public int size() {
+        return rows.size();
+    }
+
+    public boolean isEmpty() {
+        return rows.isEmpty();
+    }
+}
@@ -0,0 +1,59 @@
+package org.victor.flume.source;
+
+import java.util.Arrays;
+
+/**
+ * A sql text and the values bound to its ? parameters, in order
+ *
+ */
+public class QueryStatement {
+
+    private static final Object[] NO_PARAMETERS = new Object[0];
+
+    private final String sql;
+    private final Object[] parameters;
+    private final boolean bounded;
+
+    public QueryStatement(String sql) {
+        this(sql, NO_PARAMETERS);
+    }
+
+    public QueryStatement(String sql, Object[] parameters) {
+        this(sql, parameters, true);
+    }
+
+    private QueryStatement(String sql, Object[] parameters, boolean bounded) {
+        this.sql = sql;
+        this.parameters = parameters;
+        this.bounded = bounded;
+    }
+
+    /**
+     * @return the same statement, read to the end instead of stopping at max.rows
+     */
+    public QueryStatement unbounded() {
+        return new QueryStatement(sql, parameters, false);
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public Object[] getParameters() {
+        return parameters;
+    }
+
+    /**
+     * @return true when the result is limited to max.rows
+     */
+    public boolean isBounded() {
+        return bounded;
+    }
+
+    @Override
+    public String toString() {
+        if (parameters.length == 0)
+            return sql;
+        return sql + " " + Arrays.toString(parameters);
+    }
+}
@@ -0,0 +1,23 @@
+package org.victor.flume.source;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Writes rows as event bodies, selected with the event.format property
+ *
+ */
+public interface RowEncoder {
+
+	/**
+	 * @param header column names of the row
+	 * @param row cell contents, in the positions of the header
+	 * @return the bytes of the row
+	 */
+	byte[] encode(RowHeader header, Object[] row) throws IOException;
+
+	/**
+	 * Add the event headers a consumer needs to read the rows of this header
+	 */
+	void putHeaders(RowHeader header, Map<String, String> headers);
+}
@@ -0,0 +1,16 @@
+package org.victor.flume.source;
+
+import java.io.IOException;
+
+/**
+ * Callback receiving the rows of a query one by one, while the cursor is still open
+ *
+ */
+public interface RowHandler {
+
+	/**
+	 * @param header column names of the result
+	 * @param row cell contents, in the positions of the header
+	 */
+	void handle(RowHeader header, Object[] row) throws IOException;
+}
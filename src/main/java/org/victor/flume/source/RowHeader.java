@@ -0,0 +1,96 @@
+package org.victor.flume.source;
+
+import java.util.Arrays;
+
+/**
+ * Column names, and java.sql.Types when the engine knows them, shared by all the rows of a
+ * query result. Each row is an Object[] whose cells are in the same positions as the names. <p>
+ * The jdbc engine also reports the java class of each column and the precision and scale of
+ * its numbers.
+ *
+ */
+public class RowHeader {
+
+    private final String[] names;
+    private final int[] sqlTypes;
+    private final String[] classNames;
+    private final int[] precisions, scales;
+
+    public RowHeader(String[] names) {
+        this(names, null);
+    }
+
+    public RowHeader(String[] names, int[] sqlTypes) {
+        this(names, sqlTypes, null, null, null);
+    }
+
+    public RowHeader(String[] names, int[] sqlTypes, String[] classNames, int[] precisions, int[] scales) {
+        this.names = names;
+        this.sqlTypes = sqlTypes;
+        this.classNames = classNames;
+        this.precisions = precisions;
+        this.scales = scales;
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(int index) {
+        return names[index];
+    }
+
+    /**
+     * @return false when the rows come from an engine that does not report column types
+     */
+    public boolean hasSqlTypes() {
+        return sqlTypes != null;
+    }
+
+    public int getSqlType(int index) {
+        return sqlTypes[index];
+    }
+
+    /**
+     * @return false when the engine does not report the java class, precision and scale of the columns
+     */
+    public boolean hasColumnDetails() {
+        return classNames != null;
+    }
+
+    /**
+     * @return name of the class of the cells, as reported by ResultSetMetaData.getColumnClassName
+     */
+    public String getClassName(int index) {
+        return classNames[index];
+    }
+
+    public int getPrecision(int index) {
+        return precisions[index];
+    }
+
+    public int getScale(int index) {
+        return scales[index];
+    }
+
+    /**
+     * @return position of the column, ignoring case as databases report names in their own case, -1 if absent
+     */
+    public int indexOf(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (name.equalsIgnoreCase(names[i]))
+                return i;
+        }
+        return -1;
+    }
+
+    boolean hasNames(String[] aliases) {
+        return Arrays.equals(names, aliases);
+    }
+
+    boolean hasColumns(String[] names, int[] sqlTypes, String[] classNames, int[] precisions, int[] scales) {
+        return Arrays.equals(this.names, names) && Arrays.equals(this.sqlTypes, sqlTypes)
+                && Arrays.equals(this.classNames, classNames)
+                && Arrays.equals(this.precisions, precisions) && Arrays.equals(this.scales, scales);
+    }
+}
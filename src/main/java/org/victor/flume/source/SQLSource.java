@@ -18,37 +18,35 @@
  *******************************************************************************/
 package org.victor.flume.source;
 
-import com.alibaba.fastjson.JSON;
-import com.alibaba.fastjson.serializer.SerializerFeature;
 import org.apache.flume.Context;
-import org.apache.flume.Event;
 import org.apache.flume.EventDeliveryException;
 import org.apache.flume.conf.Configurable;
-import org.apache.flume.event.SimpleEvent;
+import org.apache.flume.conf.ConfigurationException;
 import org.apache.flume.source.AbstractPollableSource;
 import org.victor.flume.metrics.SqlSourceCounter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 
 /*Support UTF-8 character encoding.*/
 
 
 /**
  * A Source to read data from a SQL database. This source ask for new data in a table each configured time.<p>
+ * With the tables property it polls several tables, see {@link MultiTablePoller}.<p>
  *
  */
 public class SQLSource extends AbstractPollableSource implements Configurable{
     private static final Logger LOG = LoggerFactory.getLogger(SQLSource.class);
     protected SQLSourceHelper sqlSourceHelper;
     private SqlSourceCounter sqlSourceCounter;
-    private ChannelWriter customWriter;
-    private HibernateHelper hibernateHelper;
+    private QueryEngine queryEngine;
+    private QueryPipeline queryPipeline;
+    private ParallelBulkLoader bulkLoader;
+    private PollScheduler pollScheduler;
+    private TablePoller tablePoller;
+    private MultiTablePoller multiTablePoller;
 
     /**
      * Configure the source, load configuration properties and establish connection with database
@@ -60,17 +58,45 @@ public class SQLSource extends AbstractPollableSource implements Configurable{
 
         LOG.info("Reading and processing configuration values for source " + getName());
 
+        if (context.getString("tables") != null) {
+            multiTablePoller = new MultiTablePoller(context, getName());
+            return;
+        }
+
         /* Initialize configuration parameters */
         sqlSourceHelper = new SQLSourceHelper(context, this.getName());
+        if (sqlSourceHelper.isPipelineEnabled() && sqlSourceHelper.isParallelBulkLoad()) {
+            throw new ConfigurationException("pipeline.enable can't be used with bulk.partition.column");
+        }
 
         /* Initialize metric counters */
         sqlSourceCounter = new SqlSourceCounter("SOURCESQL." + this.getName());
 
         /* Establish connection with database */
-        hibernateHelper = new HibernateHelper(sqlSourceHelper);
+        AbstractQueryEngine engine;
+        if (sqlSourceHelper.isJdbcQueryEngine()) {
+            engine = new JdbcHelper(sqlSourceHelper);
+        } else {
+            engine = new HibernateHelper(sqlSourceHelper);
+        }
+        engine.setSqlSourceCounter(sqlSourceCounter);
+        queryEngine = engine;
+
+        pollScheduler = new PollScheduler(sqlSourceHelper, sqlSourceCounter);
+
+        tablePoller = new TablePoller(sqlSourceHelper, sqlSourceCounter, queryEngine, pollScheduler);
+
+        if (sqlSourceHelper.isPipelineEnabled()) {
+            queryPipeline = new QueryPipeline(sqlSourceHelper, queryEngine, sqlSourceCounter, pollScheduler);
+        }
 
-        /* Instantiate the custom Writer */
-        customWriter = new ChannelWriter();
+        if (sqlSourceHelper.isParallelBulkLoad()) {
+            try {
+                bulkLoader = new ParallelBulkLoader(sqlSourceHelper, sqlSourceCounter);
+            } catch (Exception e) {
+                throw new ConfigurationException("Bulk ranges in status file can't be read", e);
+            }
+        }
 
     }
 
@@ -79,46 +105,69 @@ public class SQLSource extends AbstractPollableSource implements Configurable{
      */
     @Override
     public Status doProcess() throws EventDeliveryException {
-        List<Map<String, Object>> result = null;
-        try {
-            hibernateHelper.establishSession();
-            sqlSourceCounter.startProcess();
-
-            result = hibernateHelper.executeQuery();
-
-            if (!result.isEmpty()) {
-                customWriter.write(result);
-                customWriter.flush();
-                sqlSourceCounter.incrementEventCount(result.size());
-
-                sqlSourceHelper.updateStatusFile();
-                LOG.info("finish flush from source to channel");
-            }
-
-            sqlSourceCounter.endProcess(result.size());
-        } catch (IOException | InterruptedException e) {
-            LOG.error("IOException or InterruptedException exception", e);
-            return Status.BACKOFF;
-        } catch (Exception e) {
-            LOG.error("Unknow Exception:", e);
-            return Status.BACKOFF;
-        } catch (Throwable t){
-            LOG.error("Unknow Error:", t);
-            return Status.BACKOFF;
+        if (queryPipeline != null) {
+            return deliverPipeline();
         }
-        finally {
-            hibernateHelper.closeSession();
+        if (bulkLoader != null) {
+            return loadBulk();
+        }
+        if (multiTablePoller != null) {
+            try {
+                return multiTablePoller.pollNext(getChannelProcessor());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Status.BACKOFF;
+            }
         }
 
-        if (result.size() < sqlSourceHelper.getMaxRows()) {
+        Status status = tablePoller.poll(getChannelProcessor());
+        if (status == Status.READY) {
             try {
-                Thread.sleep(sqlSourceHelper.getRunQueryDelay());
+                tablePoller.sleep();
             } catch (InterruptedException e) {
                 LOG.error("Thread sleep was interrupted:", e);
             }
         }
+        return status;
+    }
+
+    /**
+     * Delivery stage of the pipelined mode, fetch and serialization run in their own threads.
+     * The delivery already blocks waiting on the serializer, so an empty queue is not a backoff
+     */
+    private Status deliverPipeline() {
+        try {
+            queryPipeline.deliver(getChannelProcessor());
+            return Status.READY;
+        } catch (InterruptedException e) {
+            LOG.error("Pipeline delivery was interrupted:", e);
+            Thread.currentThread().interrupt();
+            return Status.BACKOFF;
+        } catch (Exception e) {
+            LOG.error("Pipeline delivery failed, batch will be retried:", e);
+            return Status.BACKOFF;
+        }
+    }
 
-        return Status.READY;
+    /**
+     * Parallel bulk load, the table is read once, then the source stays idle: the runner backs
+     * off on each poll, no delay is added to its backoff
+     */
+    private Status loadBulk() {
+        if (bulkLoader.isFinished())
+            return Status.BACKOFF;
+        try {
+            sqlSourceCounter.startProcess();
+            int rows = bulkLoader.load(getChannelProcessor());
+            sqlSourceCounter.endProcess(rows);
+            return Status.READY;
+        } catch (InterruptedException e) {
+            LOG.error("Bulk load was interrupted:", e);
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOG.error("Bulk load failed, the unfinished ranges will be read again:", e);
+        }
+        return Status.BACKOFF;
     }
 
     /**
@@ -128,7 +177,14 @@ public class SQLSource extends AbstractPollableSource implements Configurable{
     public void doStart() {
 
         LOG.info("Starting sql source {} ...", getName());
+        if (multiTablePoller != null) {
+            multiTablePoller.start(getChannelProcessor());
+            return;
+        }
         sqlSourceCounter.start();
+        if (queryPipeline != null) {
+            queryPipeline.start();
+        }
     }
 
     /**
@@ -138,11 +194,22 @@ public class SQLSource extends AbstractPollableSource implements Configurable{
     public void doStop() {
 
         LOG.info("Stopping sql source {} ...", getName());
+        if (multiTablePoller != null) {
+            multiTablePoller.stop();
+            return;
+        }
 
         try {
-            hibernateHelper.closeSession();
-            hibernateHelper.closeFactory();
-            customWriter.close();
+            if (queryPipeline != null) {
+                queryPipeline.stop();
+            }
+            if (bulkLoader != null) {
+                bulkLoader.stop();
+            }
+            queryEngine.closeSession();
+            queryEngine.close();
+            tablePoller.close();
+            sqlSourceHelper.close();
         } catch (IOException e) {
             LOG.warn("Error ChannelWriter object ", e);
         } catch (Exception e) {
@@ -151,50 +218,4 @@ public class SQLSource extends AbstractPollableSource implements Configurable{
             this.sqlSourceCounter.stop();
         }
     }
-
-    private class ChannelWriter {
-        private List<Event> events = new ArrayList<>();
-
-        public void write(List<Map<String, Object>> mapAlls) throws IOException {
-            for (Map<String, Object> map : mapAlls) {
-                Event event = new SimpleEvent();
-                //防止fastjson将datetime强转成时间戳
-//                String jsonBody = JSON.toJSONStringWithDateFormat(map,"yyyy-MM-dd HH:mm:ss"
-//                        SerializerFeature.WriteNullStringAsEmpty
-//                        ,SerializerFeature.WriteEnumUsingToString
-//                        ,SerializerFeature.WriteNullBooleanAsFalse
-//                        ,SerializerFeature.WriteNullListAsEmpty
-//                        ,SerializerFeature.WriteMapNullValue
-//                        , SerializerFeature.WriteBigDecimalAsPlain
-//                        );
-                String jsonBody = JSON.toJSONString(map, SerializerFeature.WriteNullStringAsEmpty
-                        , SerializerFeature.WriteEnumUsingToString
-                        , SerializerFeature.WriteNullBooleanAsFalse
-                        , SerializerFeature.WriteNullListAsEmpty
-                        , SerializerFeature.WriteMapNullValue
-                        , SerializerFeature.WriteBigDecimalAsPlain
-                );
-                //simple-json转json字符串有漏洞
-                //String jsonBody = JSONValue.toJSONString(map);
-                event.setBody(jsonBody.getBytes());
-
-                Map<String, String> headers = new HashMap<String, String>();
-                headers.put("timestamp", String.valueOf(System.currentTimeMillis()));
-                event.setHeaders(headers);
-
-                events.add(event);
-                if (events.size() >= sqlSourceHelper.getBatchSize())
-                    flush();
-            }
-        }
-
-        public void flush() throws IOException {
-            getChannelProcessor().processEventBatch(events);
-            events.clear();
-        }
-
-        public void close() throws IOException {
-            flush();
-        }
-    }
 }
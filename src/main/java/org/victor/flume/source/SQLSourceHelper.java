@@ -2,6 +2,10 @@ package org.victor.flume.source;
 
 import org.apache.flume.Context;
 import org.apache.flume.conf.ConfigurationException;
+import org.victor.flume.checkpoint.CheckpointStore;
+import org.victor.flume.checkpoint.FileCheckpointStore;
+import org.victor.flume.checkpoint.GroupCommitCheckpointStore;
+import org.victor.flume.checkpoint.MappedLogCheckpointStore;
 import org.json.simple.JSONValue;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
@@ -9,10 +13,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static org.json.simple.parser.ParseException.ERROR_UNEXPECTED_EXCEPTION;
 
@@ -24,11 +31,54 @@ import static org.json.simple.parser.ParseException.ERROR_UNEXPECTED_EXCEPTION;
  * <tt>table: </tt> table to read from <p>
  * <tt>columns.to.select: </tt> columns to select for import data (* will import all) <p>
  * <tt>run.query.delay: </tt> delay time to execute each query to database <p>
+ * <tt>poll.adaptive: </tt> Shorten the delay between polls while they return rows, lengthen it while they return none <p>
+ * <tt>poll.min.delay: </tt> Shortest delay between polls with poll.adaptive, ms <p>
+ * <tt>poll.max.delay: </tt> Longest delay between polls with poll.adaptive, ms <p>
+ * <tt>poll.backoff.factor: </tt> Factor the delay is multiplied or divided by at each poll <p>
+ * <tt>poll.jitter: </tt> Fraction of the delay added or removed at random <p>
  * <tt>status.file.path: </tt> Directory to save status file <p>
  * <tt>status.file.name: </tt> Name for status file (saves last row index processed) <p>
+ * <tt>checkpoint.store: </tt> file (default) or log, how the status file is written <p>
+ * <tt>checkpoint.commit.interval: </tt> Milliseconds between two writes of the status, 0 writes every update <p>
+ * <tt>checkpoint.log.size: </tt> Bytes of the checkpoint log before it is compacted <p>
  * <tt>batch.size: </tt> Batch size to send events from flume source to flume channel <p>
  * <tt>max.rows: </tt> Max rows to import from DB in one query <p>
  * <tt>custom.query: </tt> Custom query to execute to database (be careful) <p>
+ * <tt>query.engine: </tt> hibernate (default) or jdbc, how the queries are run <p>
+ * <tt>query.prepared: </tt> Run the incremental query as a statement built once, with the indexes bound as parameters <p>
+ * <tt>upper.bound: </tt> max (default), cached, clock or rows, how the upper bound of the incremental window is found <p>
+ * <tt>upper.bound.lag: </tt> Milliseconds of time column left for the next poll after a max that moved <p>
+ * <tt>upper.bound.ttl: </tt> Milliseconds a max is reused with upper.bound cached <p>
+ * <tt>catchup.slice.size: </tt> Seconds of time column read per query when the source is behind, 0 reads the whole window <p>
+ * <tt>catchup.adaptive: </tt> Size each slice from the row density of the previous one <p>
+ * <tt>bulk.partition.column: </tt> Numeric or temporal column splitting the bulk load in ranges read in parallel <p>
+ * <tt>bulk.partitions: </tt> Number of ranges of the parallel bulk load <p>
+ * <tt>bulk.parallelism: </tt> Ranges read at the same time, each on its own connection <p>
+ * <tt>keyset.columns: </tt> Primary key columns, pages the incremental query on (time column, key columns) <p>
+ * <tt>query.streaming: </tt> Read the result through a cursor instead of loading it all in memory <p>
+ * <tt>pipeline.enable: </tt> Fetch, serialize and deliver rows in separate stages running concurrently <p>
+ * <tt>pipeline.queue.size: </tt> Batches buffered between two pipeline stages <p>
+ * <tt>event.packing: </tt> none (default), ndjson, frame or columnar, how several rows are packed in one event <p>
+ * <tt>event.pack.rows: </tt> Most rows packed in one event <p>
+ * <tt>event.pack.bytes: </tt> Most bytes of row json packed in one event <p>
+ * <tt>event.compression: </tt> none (default), gzip, snappy or zstd, codec of the event bodies <p>
+ * <tt>event.compression.level: </tt> Compression level of gzip or zstd, -1 for the codec default <p>
+ * <tt>event.format: </tt> json (default) or avro, how each row is written, avro needs the jdbc query engine <p>
+ * <tt>event.avro.schema.literal: </tt> Put the avro schema in every event, not only its fingerprint <p>
+ * <tt>event.csv.delimiter: </tt> Cell separator of csv and tsv rows, one character or \t <p>
+ * <tt>event.csv.quoting: </tt> minimal, all or none, which csv cells are quoted <p>
+ * <tt>event.csv.header: </tt> Put the column names line in the csv.header event header <p>
+ * <tt>event.csv.null: </tt> Text written for null cells <p>
+ * <tt>delivery.buffer.events: </tt> Most events refused by the channel kept for retry, beyond the window is read again <p>
+ * <tt>delivery.retry.delay: </tt> ms before the first retry of the refused events, doubled on each refusal <p>
+ * <tt>delivery.retry.max.delay: </tt> Longest wait between two retries of the refused events <p>
+ * <tt>delivery.spill: </tt> Spill the refused events to disk next to the status file and keep reading, instead of waiting <p>
+ * <tt>delivery.spill.segment.bytes: </tt> Size of a memory mapped spill segment file <p>
+ * <tt>delivery.spill.max.bytes: </tt> Spilled bytes beyond which no window is read until the channel drains them <p>
+ * <tt>reconnect.resets: </tt> Failed queries in a row answered by a new connection before the factory is rebuilt <p>
+ * <tt>reconnect.backoff: </tt> ms polls skip the database after the factory is rebuilt, doubled on each further failure <p>
+ * <tt>reconnect.backoff.max: </tt> Longest time polls skip the database <p>
+ * <tt>reconnect.validation.timeout: </tt> Seconds to check a new connection is alive, 0 for no limit <p>
  *
  */
 
@@ -37,21 +87,58 @@ public class SQLSourceHelper {
     private static final Logger LOG = LoggerFactory.getLogger(SQLSourceHelper.class);
 
     private File file, directory;
-    private int runQueryDelay, batchSize, maxRows;
-    private String startFrom, currentIndex, timeColumn, timeColumnType, sourceType, transferMethod;
+    private int runQueryDelay, batchSize, maxRows, pipelineQueueSize, bulkPartitions, bulkParallelism;
+    private int eventPackRows, eventPackBytes, eventCompressionLevel, deliveryBufferEvents;
+    private long deliveryRetryDelay, deliveryRetryMaxDelay, spillMaxBytes;
+    private int spillSegmentBytes, reconnectResets, reconnectValidationTimeout;
+    private long reconnectBackoff, reconnectBackoffMax;
+    private long catchUpSliceSize, upperBoundLag, upperBoundTtl, pollMinDelay, pollMaxDelay;
+    private double pollBackoffFactor, pollJitter;
+    private volatile String currentIndex;
+    /* Key columns of the last row read, as a json array, only used with keyset.columns */
+    private volatile String currentKey;
+    private String startFrom, timeColumn, timeColumnType, sourceType, transferMethod, queryEngine, upperBound, eventPacking,
+            eventCompression, eventFormat, csvDelimiter, csvQuoting, csvNull;
     private String statusFilePath, statusFileName, connectionURL, table,
-            columnsToSelect, customQuery, query, sourceName,customCondition;
+            columnsToSelect, customQuery, query, sourceName,customCondition, bulkPartitionColumn;
 
     private Context context;
+    private CheckpointStore checkpointStore;
 
     private Map<String, String> statusFileJsonMap = new LinkedHashMap<String, String>();
 
-    private boolean readOnlySession;
+    private boolean pollAdaptive, readOnlySession, streamingQuery, pipelineEnabled, preparedQuery, catchUpAdaptive,
+            avroSchemaLiteral, csvHeader, spill;
+
+    /* Incremental query with ? parameters and the placeholder each parameter stands for */
+    private String preparedSelect;
+    private List<String> preparedPlaceholders = new ArrayList<String>();
+
+    /* Keyset pagination, first page of a window and pages following the last row read */
+    private String[] keysetColumns;
+    private String keysetFirstSelect, keysetNextSelect;
 
     private static final String DEFAULT_STATUS_DIRECTORY = "/var/lib/flume";
     private static final int DEFAULT_QUERY_DELAY = 10000;
     private static final int DEFAULT_BATCH_SIZE = 100;
     private static final int DEFAULT_MAX_ROWS = 10000;
+    private static final int DEFAULT_PIPELINE_QUEUE_SIZE = 4;
+    private static final int DEFAULT_BULK_PARTITIONS = 8;
+    private static final int DEFAULT_EVENT_PACK_ROWS = 100;
+    private static final int DEFAULT_EVENT_PACK_BYTES = 1024 * 1024;
+    private static final int DEFAULT_DELIVERY_BUFFER_EVENTS = 10000;
+    private static final long DEFAULT_DELIVERY_RETRY_DELAY = 100;
+    private static final long DEFAULT_DELIVERY_RETRY_MAX_DELAY = 10000;
+    private static final int DEFAULT_SPILL_SEGMENT_BYTES = 64 * 1024 * 1024;
+    private static final long DEFAULT_SPILL_MAX_BYTES = 1024L * 1024 * 1024;
+    private static final int DEFAULT_RECONNECT_RESETS = 2;
+    private static final long DEFAULT_RECONNECT_BACKOFF = 1000;
+    private static final long DEFAULT_RECONNECT_BACKOFF_MAX = 60000;
+    private static final int DEFAULT_RECONNECT_VALIDATION_TIMEOUT = 5;
+    private static final double DEFAULT_POLL_BACKOFF_FACTOR = 2;
+    private static final int DEFAULT_CHECKPOINT_LOG_SIZE = 1024 * 1024;
+    private static final long DEFAULT_UPPER_BOUND_LAG = 1000;
+    private static final long DEFAULT_UPPER_BOUND_TTL = 60000;
     private static final String DEFAULT_INCREMENTAL_VALUE = "0";
 
     private static final String SOURCE_NAME_STATUS_FILE = "SourceName";
@@ -59,6 +146,10 @@ public class SQLSourceHelper {
     private static final String COLUMNS_TO_SELECT_STATUS_FILE = "ColumnsToSelect";
     private static final String TABLE_STATUS_FILE = "Table";
     private static final String LAST_INDEX_STATUS_FILE = "LastIndex";
+    private static final String LAST_KEY_STATUS_FILE = "LastKey";
+    private static final String BULK_RANGES_STATUS_FILE = "BulkRanges";
+    private static final String SPILL_FETCHED_STATUS_FILE = "SpillFetched";
+    private static final String SPILL_DELIVERED_STATUS_FILE = "SpillDelivered";
     private static final String QUERY_STATUS_FILE = "Query";
 
     private static final String DB_SOURCE_TYPE_MYSQL = "mysql";
@@ -68,10 +159,22 @@ public class SQLSourceHelper {
     public static final String TIME_COLUMN_TYPE_INT = "int";
     //时间字段是字符串1970-01-01 00:00:00
     public static final String TIME_COLUMN_TYPE_STRING = "string";
+    //时间字段是timestamp/datetime类型,绑定参数时使用java.sql.Timestamp
+    public static final String TIME_COLUMN_TYPE_TIMESTAMP = "timestamp";
+
+    private static final String CURRENT_INDEX_PLACEHOLDER = "$@$";
+    private static final String MAX_TIME_PLACEHOLDER = "$&$";
+    private static final Pattern PLACEHOLDER_PATTERN = Pattern.compile("'(\\$[@&]\\$)'|(\\$[@&]\\$)");
 
     private static final String SOURCE_TRANSFER_METHOD_INCREAMING = "incrementing";
     private static final String SOURCE_TRANSFER_METHOD_BULK = "bulk";
 
+    private static final String CHECKPOINT_STORE_FILE = "file";
+    private static final String CHECKPOINT_STORE_LOG = "log";
+
+    private static final String QUERY_ENGINE_HIBERNATE = "hibernate";
+    private static final String QUERY_ENGINE_JDBC = "jdbc";
+
     /**
      * Builds an SQLSourceHelper containing the configuration parameters and
      * usefull utils for SQL Source
@@ -87,6 +190,11 @@ public class SQLSourceHelper {
         table = context.getString("table");
         columnsToSelect = context.getString("columns.to.select", "*");
         runQueryDelay = context.getInteger("run.query.delay", DEFAULT_QUERY_DELAY);
+        pollAdaptive = context.getBoolean("poll.adaptive", false);
+        pollMinDelay = context.getLong("poll.min.delay", (long) runQueryDelay / 10);
+        pollMaxDelay = context.getLong("poll.max.delay", (long) runQueryDelay * 6);
+        pollBackoffFactor = getDouble(context, "poll.backoff.factor", DEFAULT_POLL_BACKOFF_FACTOR);
+        pollJitter = getDouble(context, "poll.jitter", 0);
         directory = new File(statusFilePath);
         customQuery = context.getString("custom.query");
         customCondition = context.getString("custom.condition");
@@ -99,6 +207,42 @@ public class SQLSourceHelper {
 
         connectionURL = context.getString("hibernate.connection.url");
         readOnlySession = context.getBoolean("read.only", false);
+        queryEngine = context.getString("query.engine", QUERY_ENGINE_HIBERNATE);
+        streamingQuery = context.getBoolean("query.streaming", false);
+        preparedQuery = context.getBoolean("query.prepared", false);
+        upperBound = context.getString("upper.bound", UpperBound.MAX);
+        upperBoundLag = context.getLong("upper.bound.lag", DEFAULT_UPPER_BOUND_LAG);
+        upperBoundTtl = context.getLong("upper.bound.ttl", DEFAULT_UPPER_BOUND_TTL);
+        catchUpSliceSize = context.getLong("catchup.slice.size", 0L);
+        catchUpAdaptive = context.getBoolean("catchup.adaptive", false);
+        pipelineEnabled = context.getBoolean("pipeline.enable", false);
+        pipelineQueueSize = context.getInteger("pipeline.queue.size", DEFAULT_PIPELINE_QUEUE_SIZE);
+        keysetColumns = splitColumns(context.getString("keyset.columns"));
+        bulkPartitionColumn = context.getString("bulk.partition.column");
+        bulkPartitions = context.getInteger("bulk.partitions", DEFAULT_BULK_PARTITIONS);
+        bulkParallelism = context.getInteger("bulk.parallelism", bulkPartitions);
+        eventPacking = context.getString("event.packing", EventBuilder.PACKING_NONE);
+        eventPackRows = context.getInteger("event.pack.rows", DEFAULT_EVENT_PACK_ROWS);
+        eventPackBytes = context.getInteger("event.pack.bytes", DEFAULT_EVENT_PACK_BYTES);
+        eventCompression = context.getString("event.compression", EventCompressor.NONE);
+        eventCompressionLevel = context.getInteger("event.compression.level", -1);
+        eventFormat = context.getString("event.format", EventBuilder.FORMAT_JSON);
+        avroSchemaLiteral = context.getBoolean("event.avro.schema.literal", true);
+        boolean tsv = EventBuilder.FORMAT_TSV.equals(eventFormat);
+        csvDelimiter = context.getString("event.csv.delimiter", tsv ? "\t" : ",");
+        csvQuoting = context.getString("event.csv.quoting", tsv ? CsvRowEncoder.QUOTING_NONE : CsvRowEncoder.QUOTING_MINIMAL);
+        csvHeader = context.getBoolean("event.csv.header", false);
+        csvNull = context.getString("event.csv.null", "");
+        deliveryBufferEvents = context.getInteger("delivery.buffer.events", DEFAULT_DELIVERY_BUFFER_EVENTS);
+        deliveryRetryDelay = context.getLong("delivery.retry.delay", DEFAULT_DELIVERY_RETRY_DELAY);
+        deliveryRetryMaxDelay = context.getLong("delivery.retry.max.delay", DEFAULT_DELIVERY_RETRY_MAX_DELAY);
+        spill = context.getBoolean("delivery.spill", false);
+        spillSegmentBytes = context.getInteger("delivery.spill.segment.bytes", DEFAULT_SPILL_SEGMENT_BYTES);
+        spillMaxBytes = context.getLong("delivery.spill.max.bytes", DEFAULT_SPILL_MAX_BYTES);
+        reconnectResets = context.getInteger("reconnect.resets", DEFAULT_RECONNECT_RESETS);
+        reconnectBackoff = context.getLong("reconnect.backoff", DEFAULT_RECONNECT_BACKOFF);
+        reconnectBackoffMax = context.getLong("reconnect.backoff.max", DEFAULT_RECONNECT_BACKOFF_MAX);
+        reconnectValidationTimeout = context.getInteger("reconnect.validation.timeout", DEFAULT_RECONNECT_VALIDATION_TIMEOUT);
 
         this.sourceName = sourceName;
         startFrom = context.getString("start.from", DEFAULT_INCREMENTAL_VALUE);
@@ -111,14 +255,52 @@ public class SQLSourceHelper {
         }
 
         file = new File(statusFilePath + "/" + statusFileName);
+        checkpointStore = createCheckpointStore(context);
 
-        if (!isStatusFileCreated()) {
+        String checkpoint = readCheckpoint();
+        if (checkpoint == null) {
             currentIndex = startFrom;
             createStatusFile();
         } else
-            currentIndex = getStatusFileIndex(startFrom);
+            currentIndex = getStatusFileIndex(checkpoint, startFrom);
 
         query = buildQuery();
+
+        if (isKeysetPagination()) {
+            currentKey = statusFileJsonMap.get(LAST_KEY_STATUS_FILE);
+            buildKeysetQuery();
+        } else if (preparedQuery && isTransferIncrement()) {
+            buildPreparedQuery();
+        }
+    }
+
+    private CheckpointStore createCheckpointStore(Context context) {
+        String type = context.getString("checkpoint.store", CHECKPOINT_STORE_FILE);
+        long commitInterval = context.getLong("checkpoint.commit.interval", 0L);
+        CheckpointStore store;
+        if (type == null || CHECKPOINT_STORE_FILE.equals(type)) {
+            store = new FileCheckpointStore(file);
+        } else if (CHECKPOINT_STORE_LOG.equals(type)) {
+            int size = context.getInteger("checkpoint.log.size", DEFAULT_CHECKPOINT_LOG_SIZE);
+            try {
+                store = new MappedLogCheckpointStore(file, size > 0 ? size : DEFAULT_CHECKPOINT_LOG_SIZE);
+            } catch (IOException e) {
+                throw new ConfigurationException("Checkpoint log of " + file + " can't be opened", e);
+            }
+        } else {
+            throw new ConfigurationException("checkpoint.store must be file or log");
+        }
+        return commitInterval > 0 ? new GroupCommitCheckpointStore(store, commitInterval) : store;
+    }
+
+    private String readCheckpoint() {
+        try {
+            return checkpointStore.read();
+        } catch (IOException e) {
+            LOG.error("Exception reading status file, doing back up and creating new status file", e);
+            backupStatusFile();
+            return null;
+        }
     }
 
     public String maxQuery() {
@@ -146,6 +328,9 @@ public class SQLSourceHelper {
             StringBuffer result = new StringBuffer("SELECT " + columnsToSelect + " FROM " + table );
             if(!isTransferIncrement())
                 return result.toString();
+            if (isUpperBoundFromRows()) {
+                return result.append(" WHERE " + timeColumn + " > " + quoteIndex(currentIndex) + " ORDER BY " + timeColumn).toString();
+            }
             if (sourceType!= null && DB_SOURCE_TYPE_ORACLE.equals(sourceType)){
                 result.append(" WHERE "+ timeColumn + " > to_timestamp('" + currentIndex + "','yyyy-mm-dd hh24:mi:ss.ff') AND " + timeColumn + " <= to_timestamp('" + maxTime + "','yyyy-mm-dd hh24:mi:ss.ff')");
                 return result.toString();
@@ -167,8 +352,263 @@ public class SQLSourceHelper {
         return customQuery;
     }
 
-    private boolean isStatusFileCreated() {
-        return file.exists() && !file.isDirectory() ? true : false;
+    /**
+     * @return the index written in the sql text of the generated query
+     */
+    private String quoteIndex(String index) {
+        if (sourceType != null && DB_SOURCE_TYPE_ORACLE.equals(sourceType)) {
+            return "to_timestamp('" + index + "','yyyy-mm-dd hh24:mi:ss.ff')";
+        }
+        if (TIME_COLUMN_TYPE_INT.equals(timeColumnType)) {
+            return index;
+        }
+        return "'" + index + "'";
+    }
+
+    /**
+     * Incremental query of the current window, with the indexes bound as parameters when
+     * query.prepared is set, otherwise written in the sql text
+     */
+    public QueryStatement selectStatement(String maxTime) {
+        if (isKeysetPagination()) {
+            return keysetStatement(maxTime);
+        }
+        if (preparedSelect == null) {
+            return new QueryStatement(buildQuery(maxTime));
+        }
+        Object[] parameters = new Object[preparedPlaceholders.size()];
+        for (int i = 0; i < parameters.length; i++) {
+            String value = CURRENT_INDEX_PLACEHOLDER.equals(preparedPlaceholders.get(i)) ? currentIndex : maxTime;
+            parameters[i] = toParameter(value);
+        }
+        return new QueryStatement(preparedSelect, parameters);
+    }
+
+    /**
+     * Same query as buildQuery(maxTime) with ? in place of the current index and the max time
+     */
+    private void buildPreparedQuery() {
+        if (customQuery == null) {
+            StringBuilder result = new StringBuilder("SELECT " + columnsToSelect + " FROM " + table);
+            if (isUpperBoundFromRows()) {
+                String index = "?";
+                if (sourceType != null && DB_SOURCE_TYPE_ORACLE.equals(sourceType) && !TIME_COLUMN_TYPE_TIMESTAMP.equals(timeColumnType)) {
+                    index = "to_timestamp(?,'yyyy-mm-dd hh24:mi:ss.ff')";
+                }
+                preparedSelect = result.append(" WHERE " + timeColumn + " > " + index + " ORDER BY " + timeColumn).toString();
+                preparedPlaceholders.add(CURRENT_INDEX_PLACEHOLDER);
+                return;
+            }
+            if (sourceType != null && DB_SOURCE_TYPE_ORACLE.equals(sourceType) && !TIME_COLUMN_TYPE_TIMESTAMP.equals(timeColumnType)) {
+                result.append(" WHERE " + timeColumn + " > to_timestamp(?,'yyyy-mm-dd hh24:mi:ss.ff') AND " + timeColumn + " <= to_timestamp(?,'yyyy-mm-dd hh24:mi:ss.ff')");
+            } else {
+                result.append(" WHERE " + timeColumn + " > ? AND " + timeColumn + " <= ?");
+            }
+            preparedSelect = result.toString();
+            preparedPlaceholders.add(CURRENT_INDEX_PLACEHOLDER);
+            preparedPlaceholders.add(MAX_TIME_PLACEHOLDER);
+            return;
+        }
+
+        // '$@$' and $@$ both become a parameter, the value carries its own type
+        Matcher matcher = PLACEHOLDER_PATTERN.matcher(customQuery);
+        StringBuffer result = new StringBuffer();
+        while (matcher.find()) {
+            preparedPlaceholders.add(matcher.group(1) != null ? matcher.group(1) : matcher.group(2));
+            matcher.appendReplacement(result, "?");
+        }
+        matcher.appendTail(result);
+        preparedSelect = result.toString();
+    }
+
+    /**
+     * Page of the window following the last row read, (time column, key columns) greater than
+     * the ones of that row. The row value comparison is written out, with a leading time column
+     * range, so every database can run it as a range scan of a (time column, key columns) index
+     */
+    private QueryStatement keysetStatement(String maxTime) {
+        if (currentKey == null) {
+            return new QueryStatement(keysetFirstSelect, new Object[]{toParameter(currentIndex), toParameter(maxTime)});
+        }
+
+        List<Object> key = parseKey(currentKey);
+        List<Object> parameters = new ArrayList<Object>();
+        parameters.add(toParameter(currentIndex));
+        parameters.add(toParameter(currentIndex));
+        for (int i = 0; i < keysetColumns.length; i++) {
+            for (int j = 0; j < i; j++) {
+                parameters.add(key.get(j));
+            }
+            parameters.add(key.get(i));
+        }
+        parameters.add(toParameter(maxTime));
+        return new QueryStatement(keysetNextSelect, parameters.toArray());
+    }
+
+    private void buildKeysetQuery() {
+        if (customQuery != null) {
+            throw new ConfigurationException("keyset.columns can't be used with custom.query");
+        }
+        if (timeColumn == null) {
+            throw new ConfigurationException("keyset.columns needs time.column");
+        }
+
+        String time = "?";
+        if (sourceType != null && DB_SOURCE_TYPE_ORACLE.equals(sourceType) && !TIME_COLUMN_TYPE_TIMESTAMP.equals(timeColumnType)) {
+            time = "to_timestamp(?,'yyyy-mm-dd hh24:mi:ss.ff')";
+        }
+        StringBuilder orderBy = new StringBuilder(" ORDER BY " + timeColumn);
+        // (k1 > ? OR (k1 = ? AND k2 > ?) ...)
+        StringBuilder keyCondition = new StringBuilder("(");
+        for (int i = 0; i < keysetColumns.length; i++) {
+            orderBy.append(", " + keysetColumns[i]);
+            if (i > 0) {
+                keyCondition.append(" OR (");
+                for (int j = 0; j < i; j++) {
+                    keyCondition.append(keysetColumns[j] + " = ? AND ");
+                }
+                keyCondition.append(keysetColumns[i] + " > ?)");
+            } else {
+                keyCondition.append(keysetColumns[i] + " > ?");
+            }
+        }
+        keyCondition.append(")");
+
+        String select = "SELECT " + columnsToSelect + " FROM " + table;
+        keysetFirstSelect = select + " WHERE " + timeColumn + " > " + time + " AND " + timeColumn + " <= " + time + orderBy;
+        keysetNextSelect = select + " WHERE " + timeColumn + " >= " + time + " AND (" + timeColumn + " > " + time
+                + " OR " + keyCondition + ") AND " + timeColumn + " <= " + time + orderBy;
+    }
+
+    /**
+     * Move the watermark to the given row, the last one read
+     *
+     * @param header header of the row, must contain the time column and the key columns
+     */
+    void setLastRow(RowHeader header, Object[] row) {
+        int timeIndex = header.indexOf(timeColumn);
+        List<Object> key = new ArrayList<Object>(keysetColumns.length);
+        for (String column : keysetColumns) {
+            int index = header.indexOf(column);
+            if (timeIndex < 0 || index < 0) {
+                throw new ConfigurationException("columns.to.select must contain " + timeColumn + " and the keyset.columns");
+            }
+            Object value = row[index];
+            if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+                key.add(((Number) value).longValue());
+            } else {
+                key.add(value == null ? null : value.toString());
+            }
+        }
+        currentKey = JSONValue.toJSONString(key);
+        currentIndex = String.valueOf(row[timeIndex]);
+    }
+
+    /**
+     * @return query of the min or the max of the bulk partition column
+     */
+    String bulkBoundQuery(String function) {
+        return "SELECT " + function + "(" + bulkPartitionColumn + ") FROM " + table;
+    }
+
+    /**
+     * @return query reading all the rows of the range, not limited by max.rows
+     */
+    QueryStatement bulkRangeStatement(BulkRange range) {
+        String sql = "SELECT " + columnsToSelect + " FROM " + table + " WHERE " + range.condition(bulkPartitionColumn);
+        return new QueryStatement(sql, range.parameters()).unbounded();
+    }
+
+    /**
+     * @return ranges of the parallel bulk load and their progress as json, null before the load started
+     */
+    String getBulkRanges() {
+        return statusFileJsonMap.get(BULK_RANGES_STATUS_FILE);
+    }
+
+    synchronized void updateBulkRanges(String ranges) {
+        statusFileJsonMap.put(BULK_RANGES_STATUS_FILE, ranges);
+        writeStatusFile();
+    }
+
+    /**
+     * @return end of the spilled batches of the windows finished, null before anything was spilled
+     */
+    String getSpillFetched() {
+        return statusFileJsonMap.get(SPILL_FETCHED_STATUS_FILE);
+    }
+
+    /**
+     * @return next spilled batch to deliver, null before anything was spilled
+     */
+    String getSpillDelivered() {
+        return statusFileJsonMap.get(SPILL_DELIVERED_STATUS_FILE);
+    }
+
+    /**
+     * Spill positions written with the next index
+     */
+    synchronized void setSpillPositions(String fetched, String delivered) {
+        statusFileJsonMap.put(SPILL_FETCHED_STATUS_FILE, fetched);
+        statusFileJsonMap.put(SPILL_DELIVERED_STATUS_FILE, delivered);
+    }
+
+    /**
+     * @return directory of the spill segments, next to the status file
+     */
+    File getSpillDirectory() {
+        return new File(statusFilePath, statusFileName + ".spill");
+    }
+
+    private List<Object> parseKey(String key) {
+        try {
+            List<Object> values = (List<Object>) new JSONParser().parse(key);
+            if (values.size() != keysetColumns.length) {
+                throw new ConfigurationException("Last key " + key + " doesn't match keyset.columns");
+            }
+            return values;
+        } catch (ParseException e) {
+            throw new ConfigurationException("Last key " + key + " is not a json array", e);
+        }
+    }
+
+    private static double getDouble(Context context, String key, double defaultValue) {
+        String value = context.getString(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            throw new ConfigurationException(key + " must be a number", e);
+        }
+    }
+
+    private static String[] splitColumns(String columns) {
+        if (columns == null || columns.trim().isEmpty()) {
+            return null;
+        }
+        String[] result = columns.split(",");
+        for (int i = 0; i < result.length; i++) {
+            result[i] = result[i].trim();
+        }
+        return result;
+    }
+
+    /**
+     * Index value with the java type matching time.column.type, the default start.from of a
+     * timestamp column is the epoch
+     */
+    private Object toParameter(String value) {
+        if (TIME_COLUMN_TYPE_INT.equals(timeColumnType)) {
+            return Long.valueOf(value);
+        }
+        if (TIME_COLUMN_TYPE_TIMESTAMP.equals(timeColumnType)) {
+            if (DEFAULT_INCREMENTAL_VALUE.equals(value))
+                return new Timestamp(0L);
+            return Timestamp.valueOf(value);
+        }
+        return value;
     }
 
     private boolean isStatusDirectoryCreated() {
@@ -221,6 +661,9 @@ public class SQLSourceHelper {
         statusFileJsonMap.put(SOURCE_NAME_STATUS_FILE, sourceName);
         statusFileJsonMap.put(URL_STATUS_FILE, connectionURL);
         statusFileJsonMap.put(LAST_INDEX_STATUS_FILE, currentIndex);
+        if (currentKey != null) {
+            statusFileJsonMap.put(LAST_KEY_STATUS_FILE, currentKey);
+        }
 
         if (isCustomQuerySet()) {
             statusFileJsonMap.put(QUERY_STATUS_FILE, customQuery);
@@ -230,50 +673,65 @@ public class SQLSourceHelper {
         }
 
 
-        try {
-            Writer fileWriter = new FileWriter(file, false);
-            JSONValue.writeJSONString(statusFileJsonMap, fileWriter);
-            fileWriter.close();
-        } catch (IOException e) {
-            LOG.error("Error creating value to status file!!!", e);
-        }
+        writeStatusFile();
     }
 
     /**
      * Update status file with last read row index
      */
     public void updateStatusFile() {
+        updateStatusFile(currentIndex, currentKey);
+    }
 
-        statusFileJsonMap.put(LAST_INDEX_STATUS_FILE, currentIndex);
+    /**
+     * Update status file with the given index, used when the rows read are delivered
+     * after the current index has already moved on
+     *
+     * @param key key of the last row with keyset pagination, null otherwise
+     */
+    public void updateStatusFile(String index, String key) {
+
+        statusFileJsonMap.put(LAST_INDEX_STATUS_FILE, index);
+        if (key != null) {
+            statusFileJsonMap.put(LAST_KEY_STATUS_FILE, key);
+        }
+        writeStatusFile();
+    }
 
+    /*
+     * Bulk load workers update their range concurrently
+     */
+    private synchronized void writeStatusFile() {
         try {
-            Writer fileWriter = new FileWriter(file, false);
-            JSONValue.writeJSONString(statusFileJsonMap, fileWriter);
-            fileWriter.close();
+            checkpointStore.write(JSONValue.toJSONString(statusFileJsonMap));
         } catch (IOException e) {
             LOG.error("Error writing incremental value to status file!!!", e);
         }
     }
 
-    private String getStatusFileIndex(String configuredStartValue) {
+    private String getStatusFileIndex(String checkpoint, String configuredStartValue) {
 
-        if (!isStatusFileCreated()) {
-            LOG.info("Status file not created, using start value from config file and creating file");
+        try {
+            JSONParser jsonParser = new JSONParser();
+            statusFileJsonMap = (Map) jsonParser.parse(checkpoint);
+            checkJsonValues();
+            return statusFileJsonMap.get(LAST_INDEX_STATUS_FILE);
+
+        } catch (Exception e) {
+            LOG.error("Exception reading status file, doing back up and creating new status file", e);
+            backupStatusFile();
             return configuredStartValue;
-        } else {
-            try {
-                FileReader fileReader = new FileReader(file);
-
-                JSONParser jsonParser = new JSONParser();
-                statusFileJsonMap = (Map) jsonParser.parse(fileReader);
-                checkJsonValues();
-                return statusFileJsonMap.get(LAST_INDEX_STATUS_FILE);
+        }
+    }
 
-            } catch (Exception e) {
-                LOG.error("Exception reading status file, doing back up and creating new status file", e);
-                backupStatusFile();
-                return configuredStartValue;
-            }
+    /**
+     * Write the status not committed yet and release the checkpoint store
+     */
+    public void close() {
+        try {
+            checkpointStore.close();
+        } catch (IOException e) {
+            LOG.error("Error closing status file", e);
         }
     }
 
@@ -332,7 +790,11 @@ public class SQLSourceHelper {
     }
 
     private void backupStatusFile() {
-        file.renameTo(new File(statusFilePath + "/" + statusFileName + ".bak." + System.currentTimeMillis()));
+        try {
+            checkpointStore.backup();
+        } catch (IOException e) {
+            LOG.error("Error doing back up of status file", e);
+        }
     }
 
     private void checkMandatoryProperties() {
@@ -346,6 +808,76 @@ public class SQLSourceHelper {
         if (table == null && customQuery == null) {
             throw new ConfigurationException("property table not set");
         }
+        if (queryEngine != null && !QUERY_ENGINE_HIBERNATE.equals(queryEngine) && !QUERY_ENGINE_JDBC.equals(queryEngine)) {
+            throw new ConfigurationException("query.engine must be hibernate or jdbc");
+        }
+        if (upperBound != null && !UpperBound.MAX.equals(upperBound) && !UpperBound.CACHED.equals(upperBound)
+                && !UpperBound.CLOCK.equals(upperBound) && !UpperBound.ROWS.equals(upperBound)) {
+            throw new ConfigurationException("upper.bound must be max, cached, clock or rows");
+        }
+        if (UpperBound.ROWS.equals(upperBound) && (customQuery != null || keysetColumns != null)) {
+            throw new ConfigurationException("upper.bound rows needs the generated query, without custom.query or keyset.columns");
+        }
+        if (preparedQuery && TIME_COLUMN_TYPE_TIMESTAMP.equals(timeColumnType) && !DEFAULT_INCREMENTAL_VALUE.equals(startFrom)) {
+            try {
+                Timestamp.valueOf(startFrom);
+            } catch (IllegalArgumentException e) {
+                throw new ConfigurationException("start.from must be yyyy-mm-dd hh:mm:ss with query.prepared and time.column.type timestamp", e);
+            }
+        }
+        if (pollBackoffFactor < 1) {
+            throw new ConfigurationException("poll.backoff.factor must be 1 or more");
+        }
+        if (pollJitter < 0 || pollJitter > 1) {
+            throw new ConfigurationException("poll.jitter must be between 0 and 1");
+        }
+        if (bulkPartitionColumn != null && customQuery != null) {
+            throw new ConfigurationException("bulk.partition.column can't be used with custom.query");
+        }
+        if (eventPacking != null && !EventBuilder.PACKING_NONE.equals(eventPacking)) {
+            if (!EventBuilder.PACKING_NDJSON.equals(eventPacking) && !EventBuilder.PACKING_FRAME.equals(eventPacking)
+                    && !EventBuilder.PACKING_COLUMNAR.equals(eventPacking)) {
+                throw new ConfigurationException("event.packing must be none, ndjson, frame or columnar");
+            }
+            if (EventBuilder.PACKING_COLUMNAR.equals(eventPacking) && !isJdbcQueryEngine()) {
+                throw new ConfigurationException("event.packing columnar needs query.engine jdbc");
+            }
+            if (eventPackRows < 1 || eventPackBytes < 1) {
+                throw new ConfigurationException("event.pack.rows and event.pack.bytes must be 1 or more");
+            }
+        }
+        if (eventCompression != null && !EventCompressor.NONE.equals(eventCompression) && !EventCompressor.GZIP.equals(eventCompression)
+                && !EventCompressor.SNAPPY.equals(eventCompression) && !EventCompressor.ZSTD.equals(eventCompression)) {
+            throw new ConfigurationException("event.compression must be none, gzip, snappy or zstd");
+        }
+        if (deliveryBufferEvents < 0 || deliveryRetryDelay < 0) {
+            throw new ConfigurationException("delivery.buffer.events and delivery.retry.delay must be 0 or more");
+        }
+        if (spill && (spillSegmentBytes < 1 || spillMaxBytes < 1)) {
+            throw new ConfigurationException("delivery.spill.segment.bytes and delivery.spill.max.bytes must be 1 or more");
+        }
+        if (reconnectResets < 0 || reconnectBackoff < 0 || reconnectValidationTimeout < 0) {
+            throw new ConfigurationException("reconnect.resets, reconnect.backoff and reconnect.validation.timeout must be 0 or more");
+        }
+        if (EventBuilder.FORMAT_AVRO.equals(eventFormat)) {
+            // hibernate returns the values alone, the avro schema needs the column metadata
+            if (!isJdbcQueryEngine()) {
+                throw new ConfigurationException("event.format avro needs query.engine jdbc");
+            }
+            if (EventBuilder.PACKING_NDJSON.equals(eventPacking)) {
+                throw new ConfigurationException("event.format avro can't be packed as ndjson, use frame");
+            }
+        } else if (EventBuilder.FORMAT_CSV.equals(eventFormat) || EventBuilder.FORMAT_TSV.equals(eventFormat)) {
+            if (csvDelimiter == null || !"\\t".equals(csvDelimiter) && csvDelimiter.length() != 1) {
+                throw new ConfigurationException("event.csv.delimiter must be one character or \\t");
+            }
+            if (csvQuoting != null && !CsvRowEncoder.QUOTING_MINIMAL.equals(csvQuoting)
+                    && !CsvRowEncoder.QUOTING_ALL.equals(csvQuoting) && !CsvRowEncoder.QUOTING_NONE.equals(csvQuoting)) {
+                throw new ConfigurationException("event.csv.quoting must be minimal, all or none");
+            }
+        } else if (eventFormat != null && !EventBuilder.FORMAT_JSON.equals(eventFormat)) {
+            throw new ConfigurationException("event.format must be json, avro, csv or tsv");
+        }
     }
 
     /*
@@ -355,6 +887,19 @@ public class SQLSourceHelper {
         return directory.mkdir();
     }
 
+    /**
+     * @return the time of an index in epoch millis, -1 when it is not a time
+     */
+    long indexMillis(String index) {
+        try {
+            if (isTimeColumnIntType())
+                return Long.parseLong(index.trim()) * 1000L;
+            return Timestamp.valueOf(index.trim()).getTime();
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
     /*
      * @return long incremental value as parameter from this
      */
@@ -369,6 +914,36 @@ public class SQLSourceHelper {
         currentIndex = newValue;
     }
 
+    /*
+     * @return key columns of the last row read as a json array, null before the first row
+     */
+    String getCurrentKey() {
+        return currentKey;
+    }
+
+    void setCurrentKey(String key) {
+        currentKey = key;
+    }
+
+    /**
+     * @return true when the bulk load is split in ranges of bulk.partition.column read in parallel
+     */
+    boolean isParallelBulkLoad() {
+        return bulkPartitionColumn != null && !isTransferIncrement();
+    }
+
+    int getBulkPartitions() {
+        return bulkPartitions;
+    }
+
+    int getBulkParallelism() {
+        return bulkParallelism > 0 ? bulkParallelism : bulkPartitions;
+    }
+
+    boolean isKeysetPagination() {
+        return keysetColumns != null && isTransferIncrement();
+    }
+
     public String getTable() {
         return table;
     }
@@ -380,6 +955,26 @@ public class SQLSourceHelper {
         return runQueryDelay;
     }
 
+    boolean isPollAdaptive() {
+        return pollAdaptive;
+    }
+
+    long getPollMinDelay() {
+        return pollMinDelay;
+    }
+
+    long getPollMaxDelay() {
+        return pollMaxDelay;
+    }
+
+    double getPollBackoffFactor() {
+        return pollBackoffFactor;
+    }
+
+    double getPollJitter() {
+        return pollJitter;
+    }
+
     int getBatchSize() {
         return batchSize;
     }
@@ -419,4 +1014,134 @@ public class SQLSourceHelper {
     boolean isReadOnlySession() {
         return readOnlySession;
     }
+
+    boolean isJdbcQueryEngine() {
+        return QUERY_ENGINE_JDBC.equals(queryEngine);
+    }
+
+    String getUpperBound() {
+        return upperBound;
+    }
+
+    long getUpperBoundLag() {
+        return upperBoundLag;
+    }
+
+    long getUpperBoundTtl() {
+        return upperBoundTtl;
+    }
+
+    /**
+     * @return true when the incremental query has no upper bound and the index moves to the last time read
+     */
+    boolean isUpperBoundFromRows() {
+        return UpperBound.ROWS.equals(upperBound) && isTransferIncrement();
+    }
+
+    long getCatchUpSliceSize() {
+        return catchUpSliceSize;
+    }
+
+    boolean isCatchUpAdaptive() {
+        return catchUpAdaptive;
+    }
+
+    boolean isStreamingQuery() {
+        return streamingQuery;
+    }
+
+    boolean isPipelineEnabled() {
+        return pipelineEnabled;
+    }
+
+    int getPipelineQueueSize() {
+        return pipelineQueueSize;
+    }
+
+    String getEventPacking() {
+        return eventPacking;
+    }
+
+    int getEventPackRows() {
+        return eventPackRows;
+    }
+
+    int getEventPackBytes() {
+        return eventPackBytes;
+    }
+
+    String getEventCompression() {
+        return eventCompression;
+    }
+
+    int getEventCompressionLevel() {
+        return eventCompressionLevel;
+    }
+
+    String getEventFormat() {
+        return eventFormat;
+    }
+
+    boolean isAvroSchemaLiteral() {
+        return avroSchemaLiteral;
+    }
+
+    /**
+     * @return the cell separator, \t written out in the configuration being a tab
+     */
+    char getCsvDelimiter() {
+        return "\\t".equals(csvDelimiter) ? '\t' : csvDelimiter.charAt(0);
+    }
+
+    String getCsvQuoting() {
+        return csvQuoting;
+    }
+
+    boolean isCsvHeader() {
+        return csvHeader;
+    }
+
+    String getCsvNull() {
+        return csvNull;
+    }
+
+    int getDeliveryBufferEvents() {
+        return deliveryBufferEvents;
+    }
+
+    long getDeliveryRetryDelay() {
+        return deliveryRetryDelay;
+    }
+
+    long getDeliveryRetryMaxDelay() {
+        return deliveryRetryMaxDelay;
+    }
+
+    boolean isSpill() {
+        return spill;
+    }
+
+    int getSpillSegmentBytes() {
+        return spillSegmentBytes;
+    }
+
+    long getSpillMaxBytes() {
+        return spillMaxBytes;
+    }
+
+    int getReconnectResets() {
+        return reconnectResets;
+    }
+
+    long getReconnectBackoff() {
+        return reconnectBackoff;
+    }
+
+    long getReconnectBackoffMax() {
+        return reconnectBackoffMax;
+    }
+
+    int getReconnectValidationTimeout() {
+        return reconnectValidationTimeout;
+    }
 }
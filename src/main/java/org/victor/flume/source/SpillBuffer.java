@@ -0,0 +1,222 @@
+package org.victor.flume.source;
+
+import org.apache.flume.ChannelException;
+import org.apache.flume.Event;
+import org.apache.flume.FlumeException;
+import org.apache.flume.channel.ChannelProcessor;
+import org.apache.flume.event.SimpleEvent;
+import org.victor.flume.spill.SpillQueue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Batches the channel refused, spilled to memory mapped segments in the spill directory next to
+ * the status file, for delivery.spill. A window whose batches are spilled is finished once they
+ * are synced to disk: its index is written to the status file with the spill positions, and the
+ * source goes on reading the database while the channel drains the spill, up to
+ * delivery.spill.max.bytes. <p>
+ * The status file holds the fetched position, the end of the batches of the windows finished,
+ * and the delivered position, the next batch to put into the channel. After a restart the
+ * batches of a window not finished are dropped, the window is read again, and the batches
+ * spilled but not delivered are put into the channel before anything new. A crash between the
+ * delivery of a batch and the next status file write delivers it again.
+ *
+ */
+class SpillBuffer extends DeliveryBuffer implements Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final SQLSourceHelper sqlSourceHelper;
+    private final SpillQueue queue;
+    private final long maxBytes;
+
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream(64 * 1024);
+    private final DataOutputStream data = new DataOutputStream(output);
+
+    SpillBuffer(SQLSourceHelper sqlSourceHelper) throws IOException {
+        super(0, sqlSourceHelper.getDeliveryRetryDelay(), sqlSourceHelper.getDeliveryRetryMaxDelay());
+        this.sqlSourceHelper = sqlSourceHelper;
+        this.maxBytes = sqlSourceHelper.getSpillMaxBytes();
+        String fetched = sqlSourceHelper.getSpillFetched();
+        // a new status file starts the spill over, its batches belong to the old one
+        queue = new SpillQueue(sqlSourceHelper.getSpillDirectory(), sqlSourceHelper.getSpillSegmentBytes(),
+                fetched == null ? "0:0" : fetched, sqlSourceHelper.getSpillDelivered());
+        if (!queue.isEmpty())
+            schedule();
+    }
+
+    @Override
+    boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    @Override
+    boolean isDurable() {
+        return true;
+    }
+
+    @Override
+    boolean isFull() {
+        return queue.size() >= maxBytes;
+    }
+
+    /**
+     * @return events spilled and not delivered yet
+     */
+    @Override
+    int size() {
+        return (int) Math.min(queue.weight(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return bytes of the spilled batches not delivered yet
+     */
+    long bytes() {
+        return queue.size();
+    }
+
+    /**
+     * Spill a batch after the ones waiting, it always fits: the source stops reading the
+     * database while the spill is full
+     *
+     * @throws FlumeException when the spill can't be written, the window is read again
+     */
+    @Override
+    boolean offer(List<Event> batch, int rows) {
+        if (queue.isEmpty())
+            schedule();
+        try {
+            append(batch, rows);
+        } catch (IOException e) {
+            throw new FlumeException("Events can't be spilled to " + sqlSourceHelper.getSpillDirectory(), e);
+        }
+        return true;
+    }
+
+    private void append(List<Event> batch, int rows) throws IOException {
+        output.reset();
+        data.writeInt(rows);
+        data.writeInt(batch.size());
+        for (Event event : batch) {
+            Map<String, String> headers = event.getHeaders();
+            data.writeInt(headers.size());
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                writeString(header.getKey());
+                writeString(header.getValue());
+            }
+            data.writeInt(event.getBody().length);
+            data.write(event.getBody());
+        }
+        data.flush();
+        queue.append(output.toByteArray(), batch.size());
+    }
+
+    private void writeString(String value) throws IOException {
+        // not writeUTF, a header such as an avro schema can pass its 64k limit
+        byte[] bytes = value.getBytes(UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    /**
+     * Put the spilled batches into the channel in order, stopping at the first refusal. The
+     * delivered position moves after each batch put, the caller writes it to the status file
+     *
+     * @return rows delivered
+     * @throws FlumeException when the spill can't be read
+     */
+    @Override
+    int drain(ChannelProcessor channelProcessor) {
+        int rows = 0;
+        try {
+            byte[] record;
+            while ((record = queue.peek()) != null) {
+                DataInputStream input = new DataInputStream(new ByteArrayInputStream(record));
+                int batchRows = input.readInt();
+                List<Event> batch = read(input);
+                try {
+                    channelProcessor.processEventBatch(batch);
+                } catch (ChannelException e) {
+                    // the channel is taking batches, only wait longer when it took none
+                    if (rows > 0)
+                        resetDelay();
+                    refused(e);
+                    return rows;
+                }
+                queue.remove();
+                rows += batchRows;
+            }
+            resetDelay();
+            return rows;
+        } catch (IOException e) {
+            throw new FlumeException("Spilled events can't be read from " + sqlSourceHelper.getSpillDirectory(), e);
+        } finally {
+            positions();
+        }
+    }
+
+    private static List<Event> read(DataInputStream input) throws IOException {
+        int count = input.readInt();
+        List<Event> batch = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int headerCount = input.readInt();
+            Map<String, String> headers = new HashMap<>(headerCount * 2);
+            for (int h = 0; h < headerCount; h++) {
+                headers.put(readString(input), readString(input));
+            }
+            byte[] body = new byte[input.readInt()];
+            input.readFully(body);
+            Event event = new SimpleEvent();
+            event.setHeaders(headers);
+            event.setBody(body);
+            batch.add(event);
+        }
+        return batch;
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * The batches spilled for the window are synced, the status file written next holds their end
+     */
+    @Override
+    void commit() {
+        queue.commit();
+        positions();
+    }
+
+    @Override
+    void rollback() throws IOException {
+        queue.rewind();
+    }
+
+    /**
+     * Nothing is dropped, the spilled batches of the windows finished are still delivered
+     */
+    @Override
+    void clear() {
+    }
+
+    private void positions() {
+        sqlSourceHelper.setSpillPositions(queue.getFetchedPosition(), queue.getDeliveredPosition());
+    }
+
+    @Override
+    public void close() {
+        queue.close();
+    }
+}
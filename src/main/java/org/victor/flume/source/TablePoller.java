@@ -0,0 +1,343 @@
+package org.victor.flume.source;
+
+import org.apache.flume.ChannelException;
+import org.apache.flume.Event;
+import org.apache.flume.FlumeException;
+import org.apache.flume.PollableSource.Status;
+import org.apache.flume.channel.ChannelProcessor;
+import org.apache.flume.conf.ConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.victor.flume.metrics.SqlSourceCounter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Polls of one table or custom query: runs the query of the next window, puts its rows into the
+ * channel and writes the index of the window to the status file once they are delivered, or
+ * buffered or spilled when the channel refuses them. <p>
+ * A source polls a single table through one poller, the multi table mode through one per table.
+ *
+ */
+class TablePoller {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TablePoller.class);
+
+    private final SQLSourceHelper sqlSourceHelper;
+    private final SqlSourceCounter sqlSourceCounter;
+    private final QueryEngine queryEngine;
+    private final PollScheduler pollScheduler;
+    private final ChannelWriter customWriter;
+    private final DeliveryBuffer deliveryBuffer;
+    private SpillBuffer spillBuffer;
+    /* Index and key of the last window whose rows were all delivered, and of the window buffered */
+    private String committedIndex, committedKey, pendingIndex, pendingKey;
+
+    private ChannelProcessor channelProcessor;
+    /* Rows read by the last poll, when it queried the database */
+    private int rows;
+    private boolean queried;
+
+    TablePoller(SQLSourceHelper sqlSourceHelper, SqlSourceCounter sqlSourceCounter, QueryEngine queryEngine,
+                PollScheduler pollScheduler) {
+        this.sqlSourceHelper = sqlSourceHelper;
+        this.sqlSourceCounter = sqlSourceCounter;
+        this.queryEngine = queryEngine;
+        this.pollScheduler = pollScheduler;
+
+        if (sqlSourceHelper.isSpill()) {
+            try {
+                spillBuffer = new SpillBuffer(sqlSourceHelper);
+            } catch (IOException e) {
+                throw new ConfigurationException("Spill directory can't be opened", e);
+            }
+            deliveryBuffer = spillBuffer;
+            updateBufferMetrics();
+        } else {
+            deliveryBuffer = new DeliveryBuffer(sqlSourceHelper.getDeliveryBufferEvents(),
+                    sqlSourceHelper.getDeliveryRetryDelay(), sqlSourceHelper.getDeliveryRetryMaxDelay());
+        }
+        customWriter = new ChannelWriter(new EventBuilder(sqlSourceHelper));
+    }
+
+    SQLSourceHelper getSqlSourceHelper() {
+        return sqlSourceHelper;
+    }
+
+    SqlSourceCounter getSqlSourceCounter() {
+        return sqlSourceCounter;
+    }
+
+    /**
+     * Read the next window, or deliver the batches the channel refused before
+     *
+     * @return READY when a window was read, BACKOFF when the poll failed or waits for the channel
+     */
+    Status poll(ChannelProcessor channelProcessor) {
+        this.channelProcessor = channelProcessor;
+        rows = 0;
+        queried = false;
+
+        if (!deliveryBuffer.isEmpty()) {
+            if (!deliveryBuffer.isDurable())
+                return retryDelivery();
+            drainSpill();
+            if (deliveryBuffer.isFull())
+                return Status.BACKOFF;
+        }
+
+        if (!queryEngine.isAvailable()) {
+            // the connection recovers, no connection is opened before the circuit lets a query through
+            return Status.BACKOFF;
+        }
+        committedIndex = sqlSourceHelper.getCurrentIndex();
+        committedKey = sqlSourceHelper.getCurrentKey();
+        try {
+            queryEngine.establishSession();
+            sqlSourceCounter.startProcess();
+
+            if (sqlSourceHelper.isStreamingQuery()) {
+                rows = queryEngine.executeQuery(customWriter);
+            } else {
+                QueryResult result = queryEngine.executeQuery();
+                customWriter.write(result);
+                rows = result.size();
+            }
+
+            if (rows > 0) {
+                customWriter.flush();
+                LOG.info("finish flush from source to channel");
+            }
+            if (!deliveryBuffer.isEmpty() && !deliveryBuffer.isDurable()) {
+                // the index stays at the last window fully delivered until the buffer drains
+                LOG.warn(deliveryBuffer.size() + " events refused by the channel are buffered, the index stays at " + committedIndex);
+                pendingIndex = sqlSourceHelper.getCurrentIndex();
+                pendingKey = sqlSourceHelper.getCurrentKey();
+                sqlSourceHelper.setCurrentIndex(committedIndex);
+                sqlSourceHelper.setCurrentKey(committedKey);
+                sqlSourceCounter.endProcess(rows);
+                return Status.BACKOFF;
+            }
+            deliveryBuffer.commit();
+            commit();
+            queried = true;
+
+            sqlSourceCounter.endProcess(rows);
+        } catch (IOException | InterruptedException e) {
+            LOG.error("IOException or InterruptedException exception", e);
+            rollback();
+            return Status.BACKOFF;
+        } catch (Exception e) {
+            LOG.error("Unknow Exception:", e);
+            rollback();
+            return Status.BACKOFF;
+        } catch (Throwable t){
+            LOG.error("Unknow Error:", t);
+            rollback();
+            return Status.BACKOFF;
+        }
+        finally {
+            queryEngine.closeSession();
+        }
+        return Status.READY;
+    }
+
+    /**
+     * Wait before the next poll when the last one read a window, not when it delivered buffered events
+     */
+    void sleep() throws InterruptedException {
+        if (queried)
+            pollScheduler.sleep(rows, queryEngine.isCatchingUp());
+    }
+
+    /**
+     * @param status result of the last poll
+     * @return ms before the next poll
+     */
+    long nextDelay(Status status) {
+        if (status == Status.READY)
+            return queried ? pollScheduler.nextDelay(rows, queryEngine.isCatchingUp()) : 0;
+        if (!deliveryBuffer.isEmpty())
+            return deliveryBuffer.getRetryDelay();
+        return sqlSourceHelper.getRunQueryDelay();
+    }
+
+    /**
+     * Put the buffered batches of the last window into the channel, once their retry is due.
+     * The window is committed when the buffer is drained
+     */
+    private Status retryDelivery() {
+        if (!deliveryBuffer.isRetryDue())
+            return Status.BACKOFF;
+        sqlSourceCounter.incrementDeliveryRetries();
+        long start = System.nanoTime();
+        sqlSourceCounter.incrementEventCount(deliveryBuffer.drain(channelProcessor));
+        sqlSourceCounter.recordDeliver(System.nanoTime() - start);
+        sqlSourceCounter.setBufferedEvents(deliveryBuffer.size());
+        if (!deliveryBuffer.isEmpty())
+            return Status.BACKOFF;
+        LOG.info("buffered events delivered, index " + pendingIndex);
+        sqlSourceHelper.setCurrentIndex(pendingIndex);
+        sqlSourceHelper.setCurrentKey(pendingKey);
+        commit();
+        return Status.READY;
+    }
+
+    /**
+     * Put the spilled batches into the channel once their retry is due, ahead of the rows of the
+     * next poll. The windows of the batches are already committed, only the delivered position
+     * moves in the status file
+     */
+    private void drainSpill() {
+        if (!deliveryBuffer.isRetryDue())
+            return;
+        sqlSourceCounter.incrementDeliveryRetries();
+        long start = System.nanoTime();
+        try {
+            int rows = deliveryBuffer.drain(channelProcessor);
+            sqlSourceCounter.recordDeliver(System.nanoTime() - start);
+            if (rows > 0) {
+                sqlSourceCounter.incrementEventCount(rows);
+                sqlSourceHelper.updateStatusFile();
+            }
+            if (deliveryBuffer.isEmpty())
+                LOG.info("spilled events delivered");
+        } catch (FlumeException e) {
+            LOG.error("Spilled events can't be delivered", e);
+        }
+        updateBufferMetrics();
+    }
+
+    private void updateBufferMetrics() {
+        sqlSourceCounter.setBufferedEvents(deliveryBuffer.size());
+        if (spillBuffer != null)
+            sqlSourceCounter.setSpilledBytes(spillBuffer.bytes());
+    }
+
+    /**
+     * Every row of the window is in the channel, write its index to the status file
+     */
+    private void commit() {
+        String index = sqlSourceHelper.getCurrentIndex();
+        String key = sqlSourceHelper.getCurrentKey();
+        if (index.equals(committedIndex) && (key == null || key.equals(committedKey)))
+            return;
+        sqlSourceHelper.updateStatusFile();
+        if (sqlSourceHelper.isTransferIncrement())
+            sqlSourceCounter.setWatermark(sqlSourceHelper.indexMillis(index));
+        committedIndex = index;
+        committedKey = key;
+    }
+
+    /**
+     * The poll failed, its rows not delivered are read again from the last window committed
+     */
+    private void rollback() {
+        customWriter.clear();
+        try {
+            deliveryBuffer.rollback();
+        } catch (IOException e) {
+            LOG.error("Spilled events of the window can't be dropped", e);
+        }
+        updateBufferMetrics();
+        sqlSourceHelper.setCurrentIndex(committedIndex);
+        sqlSourceHelper.setCurrentKey(committedKey);
+    }
+
+    /**
+     * Send the rows left, free the event builder and close the spill, the query engine is closed
+     * by its owner
+     */
+    void close() throws IOException {
+        try {
+            if (channelProcessor != null)
+                customWriter.flush();
+        } finally {
+            customWriter.close();
+        }
+        if (spillBuffer != null)
+            spillBuffer.close();
+    }
+
+    private class ChannelWriter implements RowHandler {
+        private List<Event> events = new ArrayList<>();
+        private final EventBuilder eventBuilder;
+        /* Time spent building the events of the batch and rows not counted as delivered yet */
+        private long serializeNanos;
+        private int pendingRows;
+
+        ChannelWriter(EventBuilder eventBuilder) {
+            this.eventBuilder = eventBuilder;
+        }
+
+        public void write(QueryResult result) throws IOException {
+            for (Object[] row : result.getRows()) {
+                handle(result.getHeader(), row);
+            }
+        }
+
+        @Override
+        public void handle(RowHeader header, Object[] row) throws IOException {
+            long start = System.nanoTime();
+            int bytes = eventBuilder.add(header, row, events);
+            serializeNanos += System.nanoTime() - start;
+            sqlSourceCounter.addPollBytes(bytes);
+            pendingRows++;
+            if (events.size() >= sqlSourceHelper.getBatchSize())
+                send();
+        }
+
+        /**
+         * Send the events built, with the rows left in the last pack
+         */
+        public void flush() throws IOException {
+            eventBuilder.finish(events);
+            send();
+        }
+
+        /**
+         * Put the events into the channel. A batch refused, or coming after one refused, waits
+         * in the delivery buffer, the poll fails when it does not fit
+         */
+        private void send() throws IOException {
+            if (events.isEmpty())
+                return;
+            sqlSourceCounter.recordSerialize(serializeNanos);
+            serializeNanos = 0;
+            if (deliveryBuffer.isEmpty()) {
+                try {
+                    long start = System.nanoTime();
+                    channelProcessor.processEventBatch(events);
+                    sqlSourceCounter.recordDeliver(System.nanoTime() - start);
+                    sqlSourceCounter.incrementEventCount(pendingRows);
+                    pendingRows = 0;
+                    events.clear();
+                    return;
+                } catch (ChannelException e) {
+                    LOG.warn("Channel refused a batch of " + events.size() + " events, it is buffered: " + e.getMessage());
+                }
+            }
+            if (!deliveryBuffer.offer(events, pendingRows))
+                throw new IOException("Events refused by the channel exceed delivery.buffer.events, the window is read again");
+            updateBufferMetrics();
+            events = new ArrayList<>();
+            pendingRows = 0;
+        }
+
+        /**
+         * Drop the events not sent yet
+         */
+        void clear() {
+            eventBuilder.clear();
+            events.clear();
+            pendingRows = 0;
+            serializeNanos = 0;
+        }
+
+        public void close() {
+            eventBuilder.close();
+        }
+    }
+}
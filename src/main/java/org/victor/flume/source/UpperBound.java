@@ -0,0 +1,98 @@
+package org.victor.flume.source;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Timestamp;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upper bound of the incremental window, following upper.bound: <p>
+ * <tt>max: </tt> max(time.column) queried on every poll <p>
+ * <tt>cached: </tt> max(time.column) queried again once upper.bound.ttl ms passed <p>
+ * <tt>clock: </tt> local clock minus upper.bound.lag, no query <p>
+ * <tt>rows: </tt> no upper bound, the index moves to the last time read <p>
+ * Rows stamped in the last upper.bound.lag ms before a max that just moved may still have
+ * transactions in flight, the window stops before them until the max stays the same for a poll.
+ *
+ */
+class UpperBound {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UpperBound.class);
+
+    static final String MAX = "max";
+    static final String CACHED = "cached";
+    static final String CLOCK = "clock";
+    static final String ROWS = "rows";
+
+    private final SQLSourceHelper sqlSourceHelper;
+    private final String strategy;
+    private final long lag;
+    private final long ttl;
+
+    /* Last max read from the database and when it was read */
+    private String lastMax;
+    private long lastMaxTime;
+
+    UpperBound(SQLSourceHelper sqlSourceHelper) {
+        this.sqlSourceHelper = sqlSourceHelper;
+        this.strategy = sqlSourceHelper.getUpperBound();
+        this.lag = sqlSourceHelper.getUpperBoundLag();
+        this.ttl = sqlSourceHelper.getUpperBoundTtl();
+    }
+
+    /**
+     * @return true when max(time.column) must be queried for the next window
+     */
+    boolean needsMaxQuery() {
+        if (MAX.equals(strategy))
+            return true;
+        if (CACHED.equals(strategy))
+            return lastMax == null || System.currentTimeMillis() - lastMaxTime >= ttl;
+        return false;
+    }
+
+    /**
+     * @param max max(time.column) just queried, null when needsMaxQuery was false
+     * @return upper bound of the next window, empty string when it comes from the rows
+     */
+    String next(String max) {
+        if (ROWS.equals(strategy))
+            return "";
+        if (CLOCK.equals(strategy))
+            return format(System.currentTimeMillis() - lag);
+
+        if (max == null)
+            return lastMax;
+        String bound = max;
+        if (lag > 0 && !max.equals(lastMax))
+            bound = shift(max);
+        lastMax = max;
+        lastMaxTime = System.currentTimeMillis();
+        return bound;
+    }
+
+    /**
+     * Forget the cached max, read again on the next poll
+     */
+    void reset() {
+        lastMax = null;
+    }
+
+    private String shift(String max) {
+        try {
+            if (sqlSourceHelper.isTimeColumnIntType())
+                return Long.toString(Long.parseLong(max.trim()) - TimeUnit.MILLISECONDS.toSeconds(lag + 999));
+            return new Timestamp(Timestamp.valueOf(max.trim()).getTime() - lag).toString();
+        } catch (IllegalArgumentException e) {
+            LOG.debug("Max " + max + " is not a time, no lag window", e);
+            return max;
+        }
+    }
+
+    private String format(long millis) {
+        if (sqlSourceHelper.isTimeColumnIntType())
+            return Long.toString(TimeUnit.MILLISECONDS.toSeconds(millis));
+        return new Timestamp(millis).toString();
+    }
+}
@@ -0,0 +1,124 @@
+package org.victor.flume.source;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Timestamp;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits a large incremental window (current index, max time] in slices of catchup.slice.size
+ * seconds, read one after the other without poll delay until the source is caught up. <p>
+ * A slice returning max.rows rows may have been truncated, the index then stays where it is and
+ * the slice is halved, so no row is skipped. With catchup.adaptive the span of the next slice
+ * follows the row density of the last one, aiming at half max.rows per slice.
+ *
+ */
+class WindowSlicer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WindowSlicer.class);
+
+    private final SQLSourceHelper sqlSourceHelper;
+    private final long sliceSize;
+    private final boolean adaptive;
+
+    /* Span of the next slice, in seconds */
+    private long span;
+    private long lastSpan;
+    private boolean catchingUp;
+
+    WindowSlicer(SQLSourceHelper sqlSourceHelper) {
+        this.sqlSourceHelper = sqlSourceHelper;
+        this.sliceSize = sqlSourceHelper.getCatchUpSliceSize();
+        this.adaptive = sqlSourceHelper.isCatchUpAdaptive();
+        this.span = sliceSize;
+    }
+
+    boolean isEnabled() {
+        // keyset pages are already bounded by max.rows, windows bounded by their rows have no end to slice
+        return sliceSize > 0 && sqlSourceHelper.isTransferIncrement() && !sqlSourceHelper.isKeysetPagination()
+                && !sqlSourceHelper.isUpperBoundFromRows();
+    }
+
+    /**
+     * @return true while the last slice did not reach the max time
+     */
+    boolean isCatchingUp() {
+        return catchingUp;
+    }
+
+    /**
+     * @return upper bound of the next slice, never past the max time nor before the current index
+     */
+    String upperBound(String currentIndex, String maxTime) {
+        long lower, max;
+        try {
+            lower = toSeconds(currentIndex);
+            max = toSeconds(maxTime);
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Index " + currentIndex + " or " + maxTime + " can't be sliced, reading the whole window", e);
+            catchingUp = false;
+            lastSpan = 0;
+            return maxTime;
+        }
+
+        if (max < lower) {
+            // a max shifted back by upper.bound.lag, the empty slice must not move the index back
+            catchingUp = false;
+            lastSpan = 1;
+            return currentIndex;
+        }
+        if (max - lower <= span) {
+            catchingUp = false;
+            lastSpan = Math.max(max - lower, 1);
+            return maxTime;
+        }
+        catchingUp = true;
+        lastSpan = span;
+        String upper = fromSeconds(lower + span);
+        LOG.info("追数据分片: " + currentIndex + " -> " + upper + ", 最大时间:" + maxTime);
+        return upper;
+    }
+
+    /**
+     * Account the rows read in the last slice and size the next one
+     *
+     * @return false if the slice was truncated by max.rows and must be read again, smaller
+     */
+    boolean accept(int rows) {
+        int maxRows = sqlSourceHelper.getMaxRows();
+        if (maxRows > 0 && rows >= maxRows) {
+            if (lastSpan > 1) {
+                span = lastSpan / 2;
+                catchingUp = true;
+                LOG.info("分片达到max.rows,缩小为" + span + "秒重新读取");
+                return false;
+            }
+            LOG.warn("A one second slice returned max.rows rows, rows past max.rows are skipped, raise max.rows");
+            return true;
+        }
+
+        if (!adaptive) {
+            span = sliceSize;
+        } else if (rows == 0) {
+            span = lastSpan * 2;
+        } else {
+            // aim at half max.rows per slice
+            long target = maxRows > 0 ? Math.max(maxRows / 2, 1) : rows;
+            span = Math.max(1, lastSpan * target / rows);
+        }
+        return true;
+    }
+
+    private long toSeconds(String index) {
+        if (sqlSourceHelper.isTimeColumnIntType())
+            return Long.parseLong(index.trim());
+        return TimeUnit.MILLISECONDS.toSeconds(Timestamp.valueOf(index.trim()).getTime());
+    }
+
+    private String fromSeconds(long seconds) {
+        if (sqlSourceHelper.isTimeColumnIntType())
+            return Long.toString(seconds);
+        return new Timestamp(TimeUnit.SECONDS.toMillis(seconds)).toString();
+    }
+}
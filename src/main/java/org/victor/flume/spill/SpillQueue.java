@@ -0,0 +1,409 @@
+package org.victor.flume.spill;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Records queued on disk in memory mapped segment files, appended at the tail and read in order
+ * from the head. A segment is a file of fixed size named after its sequence number, a record is
+ * its length, the crc32 of its weight and content, its weight and its content, and a zero length
+ * ends the records of a segment. A segment is deleted once its records are read. <p>
+ * Two positions, each a segment and an offset in it, describe the queue for a checkpoint:
+ * the fetched position ends the records made durable by the last {@link #commit()}, the
+ * delivered position is the next record to read. Reopened at these positions the queue drops
+ * the records appended after the commit and skips the records read. <p>
+ * The weight of a record, the events it holds for instance, is summed over the records left
+ * to read. Not thread safe. <p>
+ * A mapping outlives the channel of its file until its buffer is collected, which keeps the disk
+ * space of a deleted segment in use and fails the delete on Windows. The buffer of a segment is
+ * released before the segment is deleted, and both buffers on {@link #close()}: through the
+ * cleaner of the jdk when it is reachable, otherwise only its reference is dropped and the space
+ * comes back at the next garbage collection.
+ *
+ */
+public class SpillQueue implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpillQueue.class);
+
+    /* record length, crc32 and weight */
+    private static final int RECORD_HEADER = 12;
+    private static final int MIN_SEGMENT_SIZE = 4096;
+    private static final String SUFFIX = ".segment";
+
+    private final File directory;
+    private final int segmentSize;
+    private final CRC32 crc = new CRC32();
+
+    private long tailSegment, headSegment;
+    private MappedByteBuffer tail, head;
+    private int writeOffset, readOffset;
+
+    /* position of the last commit, and the bytes and weight left to read at that point */
+    private long committedSegment;
+    private int committedOffset;
+    private long committedBytes, committedWeight;
+
+    private long bytes, weight;
+
+    /* length of the record returned by the last peek, -1 when none */
+    private int peeked = -1;
+
+    /**
+     * @param directory holds the segments, created when missing
+     * @param segmentSize bytes of a segment, a larger record gets a segment of its own size
+     * @param fetched fetched position of the checkpoint, null to keep every valid record
+     * @param delivered delivered position of the checkpoint, null to read from the first record
+     */
+    public SpillQueue(File directory, int segmentSize, String fetched, String delivered) throws IOException {
+        this.directory = directory;
+        this.segmentSize = Math.max(segmentSize, MIN_SEGMENT_SIZE);
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Spill directory " + directory + " can't be created");
+        open(parse(fetched), parse(delivered));
+    }
+
+    private void open(long[] fetched, long[] delivered) throws IOException {
+        long[] segments = segments();
+        if (fetched != null && Arrays.binarySearch(segments, fetched[0]) < 0) {
+            // every record up to the fetched position was read, the later ones were never committed
+            for (long segment : segments) {
+                file(segment).delete();
+            }
+            segments = new long[0];
+            fetched = new long[]{fetched[0] + 1, 0};
+        }
+        if (segments.length == 0) {
+            long first = fetched != null ? fetched[0] : 0;
+            tailSegment = headSegment = first;
+            tail = head = map(file(first), segmentSize);
+            writeOffset = readOffset = 0;
+            tail.putInt(0, 0);
+            commit();
+            return;
+        }
+
+        if (fetched != null) {
+            for (long segment : segments) {
+                if (segment > fetched[0] && file(segment).delete())
+                    LOG.info("Spill segment " + segment + " written after the last commit dropped");
+            }
+            tailSegment = fetched[0];
+            tail = map(file(tailSegment), 0);
+            writeOffset = (int) fetched[1];
+            if (writeOffset + 4 <= tail.capacity())
+                tail.putInt(writeOffset, 0);
+        } else {
+            tailSegment = segments[segments.length - 1];
+            tail = map(file(tailSegment), 0);
+            writeOffset = end(tail, 0);
+        }
+
+        headSegment = segments[0];
+        readOffset = 0;
+        if (delivered != null && delivered[0] >= headSegment) {
+            for (long segment = headSegment; segment < delivered[0]; segment++) {
+                file(segment).delete();
+            }
+            headSegment = delivered[0];
+            readOffset = (int) delivered[1];
+        }
+        head = headSegment == tailSegment ? tail : map(file(headSegment), 0);
+
+        bytes = weight = 0;
+        for (long segment = headSegment; segment <= tailSegment; segment++) {
+            MappedByteBuffer buffer = segment == headSegment ? head : segment == tailSegment ? tail : map(file(segment), 0);
+            int position = segment == headSegment ? readOffset : 0;
+            int end = segment == tailSegment ? writeOffset : buffer.capacity();
+            while (position + RECORD_HEADER <= end) {
+                int length = buffer.getInt(position);
+                if (length <= 0)
+                    break;
+                bytes += RECORD_HEADER + length;
+                weight += buffer.getInt(position + 8);
+                position += RECORD_HEADER + length;
+            }
+            if (buffer != head && buffer != tail)
+                unmap(buffer);
+        }
+        commit();
+        if (bytes > 0)
+            LOG.info("Spill " + directory + " holds " + bytes + " bytes to deliver");
+    }
+
+    /**
+     * @return offset after the last valid record of the segment
+     */
+    private int end(MappedByteBuffer buffer, int position) {
+        while (position + RECORD_HEADER <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + RECORD_HEADER + length > buffer.capacity())
+                break;
+            if (checksum(buffer, position, length) != buffer.getInt(position + 4)) {
+                LOG.warn("Torn spill record at " + position + " of segment " + tailSegment + ", dropped");
+                break;
+            }
+            position += RECORD_HEADER + length;
+        }
+        return position;
+    }
+
+    /**
+     * @return the sequence numbers of the segments, in order
+     */
+    private long[] segments() {
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        if (names == null)
+            return new long[0];
+        long[] segments = new long[names.length];
+        for (int i = 0; i < names.length; i++) {
+            segments[i] = Long.parseLong(names[i].substring(0, names[i].length() - SUFFIX.length()));
+        }
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private File file(long segment) {
+        return new File(directory, String.format("%020d", segment) + SUFFIX);
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            // the mapping stays valid once the channel is closed
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    Math.max(size, randomAccessFile.length()));
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static long[] parse(String position) {
+        if (position == null)
+            return null;
+        int separator = position.indexOf(':');
+        return new long[]{Long.parseLong(position.substring(0, separator)), Long.parseLong(position.substring(separator + 1))};
+    }
+
+    private int checksum(MappedByteBuffer buffer, int position, int length) {
+        byte[] content = new byte[length + 4];
+        buffer.position(position + 8);
+        buffer.get(content);
+        crc.reset();
+        crc.update(content, 0, content.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @return true when every record was read
+     */
+    public boolean isEmpty() {
+        return bytes == 0;
+    }
+
+    /**
+     * @return bytes of the records left to read
+     */
+    public long size() {
+        return bytes;
+    }
+
+    /**
+     * @return summed weight of the records left to read
+     */
+    public long weight() {
+        return weight;
+    }
+
+    /**
+     * Append a record after the last one, durable once committed
+     */
+    public void append(byte[] content, int recordWeight) throws IOException {
+        // room for the record and the zero length ending the segment
+        int needed = RECORD_HEADER + content.length + 4;
+        if (writeOffset + needed > tail.capacity())
+            roll(needed);
+        crc.reset();
+        crc.update(new byte[]{(byte) (recordWeight >>> 24), (byte) (recordWeight >>> 16),
+                (byte) (recordWeight >>> 8), (byte) recordWeight}, 0, 4);
+        crc.update(content, 0, content.length);
+        tail.position(writeOffset + 8);
+        tail.putInt(recordWeight);
+        tail.put(content);
+        tail.putInt(0);
+        tail.putInt(writeOffset + 4, (int) crc.getValue());
+        tail.putInt(writeOffset, content.length);
+        writeOffset += RECORD_HEADER + content.length;
+        bytes += RECORD_HEADER + content.length;
+        weight += recordWeight;
+    }
+
+    /**
+     * Continue in a new segment, the full one is synced first
+     */
+    private void roll(int needed) throws IOException {
+        tail.force();
+        // the head maps the segment again once it reaches it
+        if (tail != head)
+            unmap(tail);
+        tailSegment++;
+        tail = map(file(tailSegment), Math.max(segmentSize, needed));
+        writeOffset = 0;
+        tail.putInt(0, 0);
+    }
+
+    /**
+     * Sync the records appended since the last commit, the fetched position moves after them
+     */
+    public void commit() {
+        tail.force();
+        committedSegment = tailSegment;
+        committedOffset = writeOffset;
+        committedBytes = bytes;
+        committedWeight = weight;
+    }
+
+    /**
+     * Drop the records appended since the last commit
+     */
+    public void rewind() throws IOException {
+        if (tailSegment != committedSegment) {
+            if (tail != head)
+                unmap(tail);
+            for (long segment = tailSegment; segment > committedSegment; segment--) {
+                delete(segment);
+            }
+            tailSegment = committedSegment;
+            tail = headSegment == tailSegment ? head : map(file(tailSegment), 0);
+        }
+        writeOffset = committedOffset;
+        tail.putInt(writeOffset, 0);
+        bytes = committedBytes;
+        weight = committedWeight;
+        peeked = -1;
+    }
+
+    /**
+     * @return the content of the next record to read, null when there is none
+     */
+    public byte[] peek() throws IOException {
+        while (headSegment < tailSegment || readOffset < writeOffset) {
+            int length = readOffset + RECORD_HEADER <= head.capacity() ? head.getInt(readOffset) : 0;
+            if (length > 0) {
+                if (readOffset + RECORD_HEADER + length > head.capacity()
+                        || checksum(head, readOffset, length) != head.getInt(readOffset + 4))
+                    throw new IOException("Corrupt spill record at " + readOffset + " of segment " + headSegment);
+                byte[] content = new byte[length];
+                head.position(readOffset + RECORD_HEADER);
+                head.get(content);
+                peeked = length;
+                return content;
+            }
+            if (headSegment == tailSegment)
+                break;
+            // every record of the segment was read
+            unmap(head);
+            head = null;
+            delete(headSegment);
+            headSegment++;
+            head = headSegment == tailSegment ? tail : map(file(headSegment), 0);
+            readOffset = 0;
+        }
+        return null;
+    }
+
+    /**
+     * Move past the record returned by the last peek
+     */
+    public void remove() {
+        if (peeked < 0)
+            throw new IllegalStateException("No record peeked");
+        int recordWeight = head.getInt(readOffset + 8);
+        readOffset += RECORD_HEADER + peeked;
+        bytes -= RECORD_HEADER + peeked;
+        weight -= recordWeight;
+        committedBytes -= RECORD_HEADER + peeked;
+        committedWeight -= recordWeight;
+        peeked = -1;
+    }
+
+    /**
+     * @return segment and offset after the last committed record
+     */
+    public String getFetchedPosition() {
+        return committedSegment + ":" + committedOffset;
+    }
+
+    /**
+     * @return segment and offset of the next record to read
+     */
+    public String getDeliveredPosition() {
+        return headSegment + ":" + readOffset;
+    }
+
+    /**
+     * Sync and release the segments mapped, the queue can't be used after
+     */
+    @Override
+    public void close() {
+        if (tail == null)
+            return;
+        tail.force();
+        if (head != tail)
+            unmap(head);
+        unmap(tail);
+        head = tail = null;
+    }
+
+    private void delete(long segment) {
+        if (!file(segment).delete())
+            LOG.warn("Spill segment " + segment + " can't be deleted");
+    }
+
+    /**
+     * Release the mapping of the buffer now instead of when it is collected, the buffer must not
+     * be read after
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            // java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (NoSuchMethodException e) {
+            // java 8, the cleaner of the buffer below
+        } catch (Exception e) {
+            LOG.debug("Spill segment not unmapped, released once collected", e);
+            return;
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null)
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+        } catch (Exception e) {
+            LOG.debug("Spill segment not unmapped, released once collected", e);
+        }
+    }
+}
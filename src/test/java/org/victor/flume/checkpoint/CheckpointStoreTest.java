@@ -0,0 +1,92 @@
+package org.victor.flume.checkpoint;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class CheckpointStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void fileStore() throws Exception {
+		File file = new File(folder.getRoot(), "status");
+		FileCheckpointStore store = new FileCheckpointStore(file);
+		assertNull(store.read());
+		store.write("{\"LastIndex\":\"1\"}");
+		store.write("{\"LastIndex\":\"2\"}");
+		assertEquals("{\"LastIndex\":\"2\"}", new FileCheckpointStore(file).read());
+		assertFalse(new File(folder.getRoot(), "status.tmp").exists());
+	}
+
+	@Test
+	public void logStoreCompacts() throws Exception {
+		File file = new File(folder.getRoot(), "status");
+		MappedLogCheckpointStore store = new MappedLogCheckpointStore(file, 4096);
+		assertNull(store.read());
+		for (int i = 0; i < 1000; i++) {
+			store.write("{\"LastIndex\":\"" + i + "\"}");
+		}
+		store.close();
+		assertEquals(4096, new File(folder.getRoot(), "status.log").length());
+		assertEquals("{\"LastIndex\":\"999\"}", new MappedLogCheckpointStore(file, 4096).read());
+	}
+
+	@Test
+	public void logStoreGrowsForLargeCheckpoints() throws Exception {
+		File file = new File(folder.getRoot(), "status");
+		MappedLogCheckpointStore store = new MappedLogCheckpointStore(file, 4096);
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 3000; i++) {
+			large.append(i % 10);
+		}
+		store.write(large.toString());
+		store.write(large.toString() + "x");
+		assertEquals(large.toString() + "x", new MappedLogCheckpointStore(file, 4096).read());
+	}
+
+	@Test
+	public void logStoreIgnoresTornRecord() throws Exception {
+		File file = new File(folder.getRoot(), "status");
+		MappedLogCheckpointStore store = new MappedLogCheckpointStore(file, 4096);
+		store.write("first");
+		store.write("second");
+		store.close();
+
+		// corrupt the content of the second record
+		RandomAccessFile log = new RandomAccessFile(new File(folder.getRoot(), "status.log"), "rw");
+		log.seek(8 + 5 + 8);
+		log.write('x');
+		log.close();
+
+		store = new MappedLogCheckpointStore(file, 4096);
+		assertEquals("first", store.read());
+		store.write("third");
+		assertEquals("third", new MappedLogCheckpointStore(file, 4096).read());
+	}
+
+	@Test
+	public void logStoreReadsPlainStatusFile() throws Exception {
+		File file = new File(folder.getRoot(), "status");
+		new FileCheckpointStore(file).write("{\"LastIndex\":\"7\"}");
+		assertEquals("{\"LastIndex\":\"7\"}", new MappedLogCheckpointStore(file, 4096).read());
+	}
+
+	@Test
+	public void groupCommit() throws Exception {
+		File file = new File(folder.getRoot(), "status");
+		GroupCommitCheckpointStore store = new GroupCommitCheckpointStore(new FileCheckpointStore(file), 60000);
+		store.write("1");
+		store.write("2");
+		assertEquals("2", store.read());
+		assertFalse(file.exists());
+		store.close();
+		assertEquals("2", new FileCheckpointStore(file).read());
+	}
+}
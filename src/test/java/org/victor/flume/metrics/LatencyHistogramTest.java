@@ -0,0 +1,50 @@
+package org.victor.flume.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void bucketsCoverTheirValues() {
+		for (long value = 0; value < 1000000; value += 7) {
+			int bucket = LatencyHistogram.bucket(value);
+			assertTrue(value <= LatencyHistogram.upperBound(bucket));
+			assertTrue(bucket == 0 || value > LatencyHistogram.upperBound(bucket - 1));
+			// at most one eighth above the value
+			assertTrue(LatencyHistogram.upperBound(bucket) - value <= value / 8 + 1);
+		}
+	}
+
+	@Test
+	public void percentiles() {
+		LatencyHistogram histogram = new LatencyHistogram(1, TimeUnit.HOURS);
+		assertEquals(0, histogram.getPercentile(0.99));
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i);
+		}
+		assertEquals(1000, histogram.getCount());
+		assertEquals(1000, histogram.getMax());
+		long p50 = histogram.getPercentile(0.5);
+		assertTrue(p50 >= 500 && p50 <= 500 * 9 / 8);
+		long p99 = histogram.getPercentile(0.99);
+		assertTrue(p99 >= 990 && p99 <= 1000);
+	}
+
+	@Test
+	public void throughputOfShortPolls() throws Exception {
+		SqlSourceCounter counter = new SqlSourceCounter("SOURCESQL.histogram");
+		counter.startProcess();
+		Thread.sleep(20);
+		counter.incrementEventCount(100);
+		counter.addPollBytes(4000);
+		counter.endProcess(100);
+		assertTrue(counter.getCurrentThroughput() > 0);
+		assertEquals(100, counter.getRowsPerPoll());
+		assertEquals(4000, counter.getBytesPerPoll());
+		assertEquals(-1, counter.getWatermarkLag());
+	}
+}
@@ -0,0 +1,88 @@
+package org.victor.flume.source;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.DecoderFactory;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AvroRowEncoderTest {
+
+	private RowHeader header = new RowHeader(
+			new String[]{"id", "price", "updated", "name", "order-no"},
+			new int[]{Types.BIGINT, Types.DECIMAL, Types.TIMESTAMP, Types.VARCHAR, Types.INTEGER},
+			new String[]{"java.lang.Long", "java.math.BigDecimal", "java.sql.Timestamp", "java.lang.String", "java.lang.Integer"},
+			new int[]{19, 10, 23, 255, 10},
+			new int[]{0, 2, 3, 0, 0});
+
+	private GenericRecord decode(Map<String, String> headers, byte[] body) throws Exception {
+		Schema schema = new Schema.Parser().parse(headers.get(AvroRowEncoder.SCHEMA_LITERAL_HEADER));
+		GenericDatumReader<GenericRecord> reader = new GenericDatumReader<GenericRecord>(schema);
+		return reader.read(null, DecoderFactory.get().binaryDecoder(body, null));
+	}
+
+	@Test
+	public void encodesRow() throws Exception {
+		AvroRowEncoder encoder = new AvroRowEncoder("orders", true);
+		Timestamp updated = new Timestamp(1500000000123L);
+		byte[] body = encoder.encode(header, new Object[]{7L, new BigDecimal("12.5"), updated, "café", null});
+		Map<String, String> headers = new HashMap<String, String>();
+		encoder.putHeaders(header, headers);
+
+		GenericRecord record = decode(headers, body);
+		assertEquals(7L, record.get("id"));
+		assertEquals(new BigInteger("1250"), new BigInteger(((ByteBuffer) record.get("price")).array()));
+		assertEquals(updated.getTime(), record.get("updated"));
+		assertEquals("café", record.get("name").toString());
+		assertNull(record.get("order_no"));
+	}
+
+	@Test
+	public void schemaCarriesLogicalTypes() throws Exception {
+		AvroRowEncoder encoder = new AvroRowEncoder("orders", true);
+		Map<String, String> headers = new HashMap<String, String>();
+		encoder.putHeaders(header, headers);
+		Schema schema = new Schema.Parser().parse(headers.get(AvroRowEncoder.SCHEMA_LITERAL_HEADER));
+
+		assertEquals("orders", schema.getName());
+		Schema price = schema.getField("price").schema().getTypes().get(1);
+		assertEquals("decimal", price.getProp("logicalType"));
+		assertEquals(2, price.getJsonProp("scale").getIntValue());
+		assertEquals("timestamp-millis", schema.getField("updated").schema().getTypes().get(1).getProp("logicalType"));
+		assertEquals("order-no", schema.getField("order_no").getProp("sqlName"));
+		assertEquals(16, headers.get(AvroRowEncoder.SCHEMA_FINGERPRINT_HEADER).length());
+	}
+
+	@Test
+	public void fingerprintWithoutLiteral() throws Exception {
+		Map<String, String> withLiteral = new HashMap<String, String>();
+		new AvroRowEncoder("orders", true).putHeaders(header, withLiteral);
+		Map<String, String> headers = new HashMap<String, String>();
+		new AvroRowEncoder("orders", false).putHeaders(header, headers);
+
+		assertNull(headers.get(AvroRowEncoder.SCHEMA_LITERAL_HEADER));
+		assertEquals(withLiteral.get(AvroRowEncoder.SCHEMA_FINGERPRINT_HEADER), headers.get(AvroRowEncoder.SCHEMA_FINGERPRINT_HEADER));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void needsColumnDetails() throws Exception {
+		new AvroRowEncoder("orders", true).encode(new RowHeader(new String[]{"id"}), new Object[]{1});
+	}
+
+	@Test
+	public void avroNames() {
+		assertEquals("order_no", AvroRowEncoder.avroName("order-no"));
+		assertEquals("_1st", AvroRowEncoder.avroName("1st"));
+		assertEquals("_", AvroRowEncoder.avroName(""));
+	}
+}
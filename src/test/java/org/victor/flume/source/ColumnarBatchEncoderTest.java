@@ -0,0 +1,80 @@
+package org.victor.flume.source;
+
+import java.nio.ByteBuffer;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericArray;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.flume.Event;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ColumnarBatchEncoderTest {
+
+	private RowHeader header = new RowHeader(
+			new String[]{"id", "city"},
+			new int[]{Types.INTEGER, Types.VARCHAR},
+			new String[]{"java.lang.Integer", "java.lang.String"},
+			new int[]{10, 64},
+			new int[]{0, 0});
+
+	private GenericRecord decode(Event event) throws Exception {
+		Map<String, String> headers = event.getHeaders();
+		Schema schema = new Schema.Parser().parse(headers.get(AvroRowEncoder.SCHEMA_LITERAL_HEADER));
+		GenericDatumReader<GenericRecord> reader = new GenericDatumReader<GenericRecord>(schema);
+		return reader.read(null, DecoderFactory.get().binaryDecoder(event.getBody(), null));
+	}
+
+	@Test
+	public void packsColumns() throws Exception {
+		EventBuilder builder = new EventBuilder(new JsonRowEncoder(), EventBuilder.PACKING_COLUMNAR, 4, 1024, null, null);
+		List<Event> events = new ArrayList<Event>();
+		String[] cities = {"Lyon", "Oslo", null, "Lyon", "Oslo"};
+		for (int id = 0; id < cities.length; id++) {
+			builder.add(header, new Object[]{id, cities[id]}, events);
+		}
+		builder.finish(events);
+
+		assertEquals(2, events.size());
+		assertEquals("4", events.get(0).getHeaders().get(EventBuilder.ROWS_HEADER));
+		GenericRecord batch = decode(events.get(0));
+
+		GenericRecord ids = (GenericRecord) batch.get("id");
+		assertEquals(0, ((ByteBuffer) ids.get("validity")).remaining());
+		assertEquals("[0, 1, 2, 3]", ids.get("values").toString());
+
+		GenericRecord city = (GenericRecord) batch.get("city");
+		ByteBuffer validity = (ByteBuffer) city.get("validity");
+		assertEquals(1, validity.remaining());
+		assertEquals(0x0b, validity.get(0));
+		assertEquals("[Lyon, Oslo]", city.get("dictionary").toString());
+		assertEquals("[0, 1, 0]", city.get("indices").toString());
+
+		// the vectors start over for the next pack
+		GenericRecord last = decode(events.get(1));
+		assertEquals(1, ((GenericArray<?>) ((GenericRecord) last.get("city")).get("dictionary")).size());
+		assertEquals("[4]", ((GenericRecord) last.get("id")).get("values").toString());
+	}
+
+	@Test
+	public void newHeaderClosesPack() throws Exception {
+		EventBuilder builder = new EventBuilder(new JsonRowEncoder(), EventBuilder.PACKING_COLUMNAR, 100, 1024, null, null);
+		List<Event> events = new ArrayList<Event>();
+		builder.add(header, new Object[]{1, "Lyon"}, events);
+		RowHeader other = new RowHeader(new String[]{"id"}, new int[]{Types.INTEGER},
+				new String[]{"java.lang.Integer"}, new int[]{10}, new int[]{0});
+		builder.add(other, new Object[]{2}, events);
+		builder.finish(events);
+
+		assertEquals(2, events.size());
+		assertNotNull(decode(events.get(0)).get("city"));
+		assertEquals("[2]", ((GenericRecord) decode(events.get(1)).get("id")).get("values").toString());
+	}
+}
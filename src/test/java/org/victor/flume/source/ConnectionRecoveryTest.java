@@ -0,0 +1,72 @@
+package org.victor.flume.source;
+
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLSyntaxErrorException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.victor.flume.source.ConnectionRecovery.Tier;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ConnectionRecoveryTest {
+
+	SQLSourceHelper sqlSourceHelper = mock(SQLSourceHelper.class);
+
+	@Before
+	public void setup() {
+		when(sqlSourceHelper.getReconnectResets()).thenReturn(2);
+		when(sqlSourceHelper.getReconnectBackoff()).thenReturn(1000L);
+		when(sqlSourceHelper.getReconnectBackoffMax()).thenReturn(3000L);
+	}
+
+	@Test
+	public void resetsBeforeRebuild() {
+		ConnectionRecovery recovery = new ConnectionRecovery(sqlSourceHelper);
+		assertEquals(Tier.RESET, recovery.failed(0));
+		assertEquals(Tier.RESET, recovery.failed(10));
+		assertFalse(recovery.isOpen(10));
+		assertEquals(25, recovery.succeeded(25));
+		assertEquals(-1, recovery.succeeded(30));
+		assertEquals(Tier.RESET, recovery.failed(40));
+	}
+
+	@Test
+	public void circuitBacksOff() {
+		ConnectionRecovery recovery = new ConnectionRecovery(sqlSourceHelper);
+		recovery.failed(0);
+		recovery.failed(0);
+		assertEquals(Tier.REBUILD, recovery.failed(0));
+		assertTrue(recovery.isOpen(999));
+		assertFalse(recovery.isOpen(1000));
+		assertEquals(Tier.REBUILD, recovery.failed(1000));
+		assertEquals(3000, recovery.getOpenUntil());
+		recovery.failed(3000);
+		assertEquals(6000, recovery.getOpenUntil());
+		recovery.failed(6000);
+		assertEquals(9000, recovery.getOpenUntil());
+
+		assertEquals(9500, recovery.succeeded(9500));
+		assertFalse(recovery.isOpen(9500));
+		recovery.failed(10000);
+		recovery.failed(10000);
+		recovery.failed(10000);
+		assertEquals(11000, recovery.getOpenUntil());
+	}
+
+	@Test
+	public void connectionFailures() {
+		assertTrue(ConnectionRecovery.isConnectionFailure(new SQLException("Communication link failure", "08S01")));
+		assertTrue(ConnectionRecovery.isConnectionFailure(new SQLTransientConnectionException("Pool exhausted")));
+		assertTrue(ConnectionRecovery.isConnectionFailure(new SQLRecoverableException("Socket closed")));
+		assertTrue(ConnectionRecovery.isConnectionFailure(new SQLException("wrapped", new SQLException("broken", "08006"))));
+		assertFalse(ConnectionRecovery.isConnectionFailure(new SQLSyntaxErrorException("Column not found", "42S22")));
+		assertFalse(ConnectionRecovery.isConnectionFailure(new SQLException("Permission denied", "42501")));
+		assertFalse(ConnectionRecovery.isConnectionFailure(new SQLTimeoutException("Query timed out")));
+		assertFalse(ConnectionRecovery.isConnectionFailure(new SQLException("no state")));
+	}
+}
@@ -0,0 +1,84 @@
+package org.victor.flume.source;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import org.hibernate.SessionFactory;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ConnectionRegistryTest {
+
+	private static Properties credentials(String user) {
+		Properties properties = new Properties();
+		properties.setProperty("user", user);
+		properties.setProperty("password", "secret");
+		return properties;
+	}
+
+	@Test
+	public void poolsSharedBySettings() {
+		JdbcConnectionPool first = ConnectionRegistry.acquirePool("jdbc:test:shared", credentials("app"), true, 2);
+		JdbcConnectionPool second = ConnectionRegistry.acquirePool("jdbc:test:shared", credentials("app"), true, 3);
+		JdbcConnectionPool otherUser = ConnectionRegistry.acquirePool("jdbc:test:shared", credentials("etl"), true, 1);
+		JdbcConnectionPool writable = ConnectionRegistry.acquirePool("jdbc:test:shared", credentials("app"), false, 1);
+		try {
+			assertSame(first, second);
+			assertNotSame(first, otherUser);
+			assertNotSame(first, writable);
+		} finally {
+			ConnectionRegistry.releasePool(first, 2);
+			ConnectionRegistry.releasePool(second, 3);
+			ConnectionRegistry.releasePool(otherUser, 1);
+			ConnectionRegistry.releasePool(writable, 1);
+		}
+	}
+
+	@Test
+	public void lastReleaseClosesPool() throws Exception {
+		JdbcConnectionPool first = ConnectionRegistry.acquirePool("jdbc:test:closed", credentials("app"), true, 1);
+		JdbcConnectionPool second = ConnectionRegistry.acquirePool("jdbc:test:closed", credentials("app"), true, 1);
+		ConnectionRegistry.releasePool(first, 1);
+		ConnectionRegistry.releasePool(second, 1);
+		try {
+			second.borrow();
+			fail("a released pool hands out no connection");
+		} catch (SQLException e) {
+			assertEquals("Connection pool closed", e.getMessage());
+		}
+		// the next source gets a new pool
+		JdbcConnectionPool next = ConnectionRegistry.acquirePool("jdbc:test:closed", credentials("app"), true, 1);
+		assertNotSame(first, next);
+		ConnectionRegistry.releasePool(next, 1);
+	}
+
+	@Test
+	public void rebuildLeavesFactoryOfOthers() throws Exception {
+		JdbcHelperTest.TestDriver.register();
+		JdbcHelperTest.TestDriver.connection = mock(Connection.class);
+		Properties settings = new Properties();
+		settings.setProperty("hibernate.connection.url", JdbcHelperTest.TestDriver.URL + ":registry");
+		settings.setProperty("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+		settings.setProperty("hibernate.temp.use_jdbc_metadata_defaults", "false");
+
+		SessionFactory first = ConnectionRegistry.acquireSessionFactory(settings);
+		SessionFactory other = ConnectionRegistry.acquireSessionFactory(settings);
+		assertSame(first, other);
+
+		SessionFactory rebuilt = ConnectionRegistry.rebuildSessionFactory(settings, first);
+		assertNotSame(first, rebuilt);
+		assertFalse("still held by the other source", other.isClosed());
+		SessionFactory next = ConnectionRegistry.acquireSessionFactory(settings);
+		assertSame(rebuilt, next);
+
+		ConnectionRegistry.releaseSessionFactory(settings, other);
+		assertTrue(other.isClosed());
+		ConnectionRegistry.releaseSessionFactory(settings, next);
+		assertFalse(rebuilt.isClosed());
+		ConnectionRegistry.releaseSessionFactory(settings, rebuilt);
+		assertTrue(rebuilt.isClosed());
+	}
+}
@@ -0,0 +1,68 @@
+package org.victor.flume.source;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.flume.Event;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CsvRowEncoderTest {
+
+	private RowHeader header = new RowHeader(new String[]{"id", "name", "price"});
+
+	private String encode(CsvRowEncoder encoder, Object... row) throws Exception {
+		return new String(encoder.encode(header, row), "UTF-8");
+	}
+
+	@Test
+	public void quotesOnlyWhenNeeded() throws Exception {
+		CsvRowEncoder encoder = new CsvRowEncoder(',', CsvRowEncoder.QUOTING_MINIMAL, false, "");
+		assertEquals("1,plain,10.50", encode(encoder, 1, "plain", new BigDecimal("10.50")));
+		assertEquals("2,\"a,b\",", encode(encoder, 2, "a,b", null));
+		assertEquals("3,\"say \"\"hi\"\"\",1", encode(encoder, 3, "say \"hi\"", 1));
+		assertEquals("4,\"two\nlines\",1", encode(encoder, 4, "two\nlines", 1));
+	}
+
+	@Test
+	public void quotesAll() throws Exception {
+		CsvRowEncoder encoder = new CsvRowEncoder(';', CsvRowEncoder.QUOTING_ALL, false, "");
+		assertEquals("\"1\";\"x\";\"2\"", encode(encoder, 1, "x", 2));
+	}
+
+	@Test
+	public void tsvWithHiveNulls() throws Exception {
+		CsvRowEncoder encoder = new CsvRowEncoder('\t', CsvRowEncoder.QUOTING_NONE, false, "\\N");
+		assertEquals("1\tsay \"hi\"\t\\N", encode(encoder, 1, "say \"hi\"", null));
+	}
+
+	@Test
+	public void headerLine() throws Exception {
+		CsvRowEncoder encoder = new CsvRowEncoder(',', CsvRowEncoder.QUOTING_MINIMAL, true, "");
+		Map<String, String> headers = new HashMap<String, String>();
+		encoder.putHeaders(header, headers);
+		assertEquals("id,name,price", headers.get(CsvRowEncoder.CSV_HEADER));
+
+		headers.clear();
+		new CsvRowEncoder(',', CsvRowEncoder.QUOTING_MINIMAL, false, "").putHeaders(header, headers);
+		assertTrue(headers.isEmpty());
+	}
+
+	@Test
+	public void packedAsDocument() throws Exception {
+		CsvRowEncoder encoder = new CsvRowEncoder(',', CsvRowEncoder.QUOTING_MINIMAL, true, "");
+		EventBuilder builder = new EventBuilder(encoder, EventBuilder.PACKING_NDJSON, 10, 1024, null, null);
+		List<Event> events = new ArrayList<Event>();
+		builder.add(header, new Object[]{1, "a", 2}, events);
+		builder.add(header, new Object[]{2, "b", null}, events);
+		builder.finish(events);
+
+		assertEquals(1, events.size());
+		assertEquals("1,a,2\n2,b,\n", new String(events.get(0).getBody(), "UTF-8"));
+		assertEquals("id,name,price", events.get(0).getHeaders().get(CsvRowEncoder.CSV_HEADER));
+	}
+}
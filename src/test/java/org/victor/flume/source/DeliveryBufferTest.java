@@ -0,0 +1,78 @@
+package org.victor.flume.source;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.flume.ChannelFullException;
+import org.apache.flume.Event;
+import org.apache.flume.channel.ChannelProcessor;
+import org.apache.flume.event.SimpleEvent;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class DeliveryBufferTest {
+
+	ChannelProcessor channelProcessor = mock(ChannelProcessor.class);
+
+	private List<Event> batch(int events) {
+		List<Event> batch = new ArrayList<Event>();
+		for (int i = 0; i < events; i++) {
+			batch.add(new SimpleEvent());
+		}
+		return batch;
+	}
+
+	@Test
+	public void boundedByEvents() {
+		DeliveryBuffer buffer = new DeliveryBuffer(5, 100, 1000);
+		assertTrue(buffer.isEmpty());
+		assertTrue(buffer.offer(batch(3), 3));
+		assertFalse(buffer.offer(batch(3), 3));
+		assertTrue(buffer.offer(batch(2), 2));
+		assertEquals(5, buffer.size());
+		assertFalse(buffer.isRetryDue());
+
+		buffer.clear();
+		assertTrue(buffer.isEmpty());
+		assertEquals(0, buffer.size());
+	}
+
+	@Test
+	public void drainsInOrderAndBacksOff() {
+		DeliveryBuffer buffer = new DeliveryBuffer(100, 100, 300);
+		List<Event> first = batch(2), second = batch(3);
+		buffer.offer(first, 2);
+		buffer.offer(second, 30);
+
+		doNothing().doThrow(new ChannelFullException("full")).when(channelProcessor).processEventBatch(anyListOf(Event.class));
+		assertEquals(2, buffer.drain(channelProcessor));
+		assertEquals(3, buffer.size());
+		assertEquals(200, buffer.getRetryDelay());
+
+		doThrow(new ChannelFullException("full")).when(channelProcessor).processEventBatch(anyListOf(Event.class));
+		assertEquals(0, buffer.drain(channelProcessor));
+		assertEquals(300, buffer.getRetryDelay());
+
+		reset(channelProcessor);
+		assertEquals(30, buffer.drain(channelProcessor));
+		assertTrue(buffer.isEmpty());
+		assertEquals(100, buffer.getRetryDelay());
+		verify(channelProcessor).processEventBatch(second);
+		verifyNoMoreInteractions(channelProcessor);
+	}
+
+	@Test
+	public void otherFailuresPropagate() {
+		DeliveryBuffer buffer = new DeliveryBuffer(100, 100, 300);
+		buffer.offer(batch(1), 1);
+		doThrow(new IllegalStateException("interceptor")).when(channelProcessor).processEventBatch(anyListOf(Event.class));
+		try {
+			buffer.drain(channelProcessor);
+			fail();
+		} catch (IllegalStateException e) {
+			assertEquals(1, buffer.size());
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package org.victor.flume.source;
+
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.flume.Event;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EventBuilderTest {
+
+	private RowHeader header = new RowHeader(new String[]{"id", "ts"});
+
+	private Object[] row(int id) {
+		return new Object[]{id, new Timestamp(1500000000000L + (id % 3) * 1000L)};
+	}
+
+	@Test
+	public void oneEventPerRow() throws Exception {
+		EventBuilder builder = new EventBuilder();
+		List<Event> events = new ArrayList<Event>();
+		int bytes = builder.add(header, row(1), events);
+		builder.finish(events);
+
+		assertEquals(1, events.size());
+		assertEquals(bytes, events.get(0).getBody().length);
+		assertNull(events.get(0).getHeaders().get(EventBuilder.ROWS_HEADER));
+	}
+
+	@Test
+	public void ndjsonPacks() throws Exception {
+		EventBuilder builder = new EventBuilder(new JsonRowEncoder(), EventBuilder.PACKING_NDJSON, 3, 1024, "t.ts", null);
+		List<Event> events = new ArrayList<Event>();
+		for (int id = 1; id <= 4; id++) {
+			builder.add(header, row(id), events);
+		}
+		assertEquals(1, events.size());
+		builder.finish(events);
+		assertEquals(2, events.size());
+
+		Event first = events.get(0);
+		String[] lines = new String(first.getBody(), "UTF-8").split("\n");
+		assertEquals(3, lines.length);
+		assertEquals(new String(new JsonRowEncoder().encode(header, row(2)), "UTF-8"), lines[1]);
+		assertEquals("3", first.getHeaders().get(EventBuilder.ROWS_HEADER));
+		assertEquals(EventBuilder.PACKING_NDJSON, first.getHeaders().get(EventBuilder.PACKING_HEADER));
+		assertEquals(row(3)[1].toString(), first.getHeaders().get(EventBuilder.WATERMARK_MIN_HEADER));
+		assertEquals(row(2)[1].toString(), first.getHeaders().get(EventBuilder.WATERMARK_MAX_HEADER));
+		assertEquals("1", events.get(1).getHeaders().get(EventBuilder.ROWS_HEADER));
+	}
+
+	@Test
+	public void framePacksUpToBytes() throws Exception {
+		int length = new JsonRowEncoder().encode(header, row(1)).length;
+		EventBuilder builder = new EventBuilder(new JsonRowEncoder(), EventBuilder.PACKING_FRAME, 100, 2 * (length + 4), null, null);
+		List<Event> events = new ArrayList<Event>();
+		for (int id = 1; id <= 5; id++) {
+			builder.add(header, row(id), events);
+		}
+		builder.finish(events);
+
+		assertEquals(3, events.size());
+		ByteBuffer body = ByteBuffer.wrap(events.get(0).getBody());
+		assertEquals(length, body.getInt());
+		body.position(body.position() + length);
+		assertEquals(length, body.getInt());
+		body.position(body.position() + length);
+		assertFalse(body.hasRemaining());
+		assertEquals("2", events.get(0).getHeaders().get(EventBuilder.ROWS_HEADER));
+		assertNull(events.get(0).getHeaders().get(EventBuilder.WATERMARK_MIN_HEADER));
+	}
+
+	@Test
+	public void compressedPacks() throws Exception {
+		EventBuilder builder = new EventBuilder(new JsonRowEncoder(), EventBuilder.PACKING_NDJSON, 2, 1024, null,
+				EventCompressor.create(EventCompressor.SNAPPY, -1));
+		List<Event> events = new ArrayList<Event>();
+		builder.add(header, row(1), events);
+		builder.add(header, row(2), events);
+
+		assertEquals(1, events.size());
+		assertEquals(EventCompressor.SNAPPY, events.get(0).getHeaders().get(EventCompressor.COMPRESSION_HEADER));
+		JsonRowEncoder encoder = new JsonRowEncoder();
+		String expected = new String(encoder.encode(header, row(1)), "UTF-8") + "\n" + new String(encoder.encode(header, row(2)), "UTF-8") + "\n";
+		assertEquals(expected, new String(org.xerial.snappy.Snappy.uncompress(events.get(0).getBody()), "UTF-8"));
+	}
+}
@@ -0,0 +1,90 @@
+package org.victor.flume.source;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import com.github.luben.zstd.Zstd;
+import org.apache.flume.conf.ConfigurationException;
+import org.junit.Test;
+import org.xerial.snappy.Snappy;
+
+import static org.junit.Assert.*;
+
+public class EventCompressorTest {
+
+	private byte[] rows(int count) throws Exception {
+		StringBuilder rows = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			rows.append("{\"id\":").append(i).append(",\"name\":\"row ").append(i).append("\",\"ts\":\"2019-07-04 00:00:00.0\"}\n");
+		}
+		return rows.toString().getBytes("UTF-8");
+	}
+
+	private static byte[] gunzip(byte[] compressed) throws Exception {
+		GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	@Test
+	public void gzip() throws Exception {
+		EventCompressor compressor = EventCompressor.create(EventCompressor.GZIP, -1);
+		for (int count : new int[]{1000, 1, 200}) {
+			byte[] rows = rows(count);
+			byte[] compressed = compressor.compress(rows, 0, rows.length);
+			assertArrayEquals(rows, gunzip(compressed));
+		}
+		byte[] rows = rows(1000);
+		assertTrue(compressor.compress(rows, 0, rows.length).length < rows.length / 5);
+	}
+
+	@Test
+	public void snappy() throws Exception {
+		EventCompressor compressor = EventCompressor.create(EventCompressor.SNAPPY, -1);
+		byte[] rows = rows(100);
+		byte[] compressed = compressor.compress(rows, 10, rows.length - 10);
+		assertArrayEquals(Arrays.copyOfRange(rows, 10, rows.length), Snappy.uncompress(compressed));
+	}
+
+	@Test
+	public void zstd() throws Exception {
+		EventCompressor compressor = EventCompressor.create(EventCompressor.ZSTD, -1);
+		byte[] rows = rows(100);
+		byte[] compressed = compressor.compress(rows, 0, rows.length);
+		assertEquals(rows.length, Zstd.getFrameContentSize(compressed));
+		assertArrayEquals(rows, Zstd.decompress(compressed, rows.length));
+	}
+
+	@Test
+	public void zstdClosed() throws Exception {
+		EventCompressor compressor = EventCompressor.create(EventCompressor.ZSTD, -1);
+		byte[] rows = rows(10);
+		compressor.compress(rows, 0, rows.length);
+		compressor.close();
+		compressor.close();
+		try {
+			compressor.compress(rows, 0, rows.length);
+			fail("the context is freed");
+		} catch (IllegalStateException e) {
+			assertEquals("Compression context is closed", e.getMessage());
+		}
+	}
+
+	@Test
+	public void none() throws Exception {
+		assertNull(EventCompressor.create(null, -1));
+		assertNull(EventCompressor.create(EventCompressor.NONE, -1));
+	}
+
+	@Test(expected = ConfigurationException.class)
+	public void unknownCodec() throws Exception {
+		EventCompressor.create("lzo", -1);
+	}
+}
@@ -0,0 +1,214 @@
+package org.victor.flume.source;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.flume.Context;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.victor.flume.metrics.SqlSourceCounter;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+public class HibernateHelperTest {
+
+	SQLSourceHelper sqlSourceHelper = mock(SQLSourceHelper.class);
+	SqlSourceCounter sqlSourceCounter = new SqlSourceCounter("SOURCESQL.hibernate");
+	Connection connection = mock(Connection.class);
+	PreparedStatement statement = mock(PreparedStatement.class);
+	final AtomicReference<String> index = new AtomicReference<String>("0");
+	/* Ids handed to the row handler, and the header of each */
+	final List<Object> handed = new ArrayList<Object>();
+	final List<RowHeader> headers = new ArrayList<RowHeader>();
+	RowHandler handler = new RowHandler() {
+		@Override
+		public void handle(RowHeader header, Object[] row) {
+			handed.add(row[0]);
+			headers.add(header);
+		}
+	};
+	HibernateHelper engine;
+
+	@BeforeClass
+	public static void registerDriver() throws SQLException {
+		JdbcHelperTest.TestDriver.register();
+	}
+
+	@Before
+	public void setup() throws SQLException {
+		JdbcHelperTest.TestDriver.down = false;
+		JdbcHelperTest.TestDriver.connection = connection;
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put("hibernate.connection.url", JdbcHelperTest.TestDriver.URL + ":hibernate");
+		properties.put("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+		properties.put("hibernate.temp.use_jdbc_metadata_defaults", "false");
+		when(sqlSourceHelper.getContext()).thenReturn(new Context(properties));
+		when(sqlSourceHelper.selectStatement(anyString())).thenReturn(new QueryStatement("SELECT id FROM t"));
+		when(sqlSourceHelper.getBatchSize()).thenReturn(50);
+		when(sqlSourceHelper.getReconnectResets()).thenReturn(2);
+		when(sqlSourceHelper.getReconnectBackoff()).thenReturn(60000L);
+		when(sqlSourceHelper.getReconnectBackoffMax()).thenReturn(60000L);
+		when(connection.isValid(anyInt())).thenReturn(true);
+		when(connection.prepareStatement(anyString(), anyInt(), anyInt())).thenReturn(statement);
+		when(connection.prepareStatement(anyString())).thenReturn(statement);
+		when(sqlSourceHelper.getCurrentIndex()).thenAnswer(new Answer<String>() {
+			@Override
+			public String answer(InvocationOnMock invocation) {
+				return index.get();
+			}
+		});
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				index.set((String) invocation.getArguments()[0]);
+				return null;
+			}
+		}).when(sqlSourceHelper).setCurrentIndex(anyString());
+	}
+
+	@After
+	public void close() {
+		if (engine != null) {
+			engine.closeSession();
+			engine.close();
+		}
+	}
+
+	/**
+	 * @param values id of each row, an SQLException is thrown by next() when reached
+	 */
+	private static ResultSet resultSet(Object... values) throws SQLException {
+		ResultSet resultSet = mock(ResultSet.class);
+		ResultSetMetaData metaData = mock(ResultSetMetaData.class);
+		when(metaData.getColumnCount()).thenReturn(1);
+		when(metaData.getColumnLabel(1)).thenReturn("id");
+		when(metaData.getColumnName(1)).thenReturn("id");
+		when(metaData.getColumnType(1)).thenReturn(Types.INTEGER);
+		when(resultSet.getMetaData()).thenReturn(metaData);
+		when(resultSet.findColumn("id")).thenReturn(1);
+		final Iterator<Object> rows = Arrays.asList(values).iterator();
+		final Object[] current = new Object[1];
+		when(resultSet.next()).thenAnswer(new Answer<Boolean>() {
+			@Override
+			public Boolean answer(InvocationOnMock invocation) throws SQLException {
+				if (!rows.hasNext())
+					return false;
+				current[0] = rows.next();
+				if (current[0] instanceof SQLException)
+					throw (SQLException) current[0];
+				return true;
+			}
+		});
+		Answer<Object> value = new Answer<Object>() {
+			@Override
+			public Object answer(InvocationOnMock invocation) {
+				return current[0];
+			}
+		};
+		when(resultSet.getObject(anyInt())).thenAnswer(value);
+		when(resultSet.getObject(anyString())).thenAnswer(value);
+		when(resultSet.getInt(anyInt())).thenAnswer(value);
+		when(resultSet.getInt(anyString())).thenAnswer(value);
+		return resultSet;
+	}
+
+	/**
+	 * Incremental int index read up to max(id), 1000
+	 */
+	private void window(int maxRows) throws SQLException {
+		when(sqlSourceHelper.isTransferIncrement()).thenReturn(true);
+		when(sqlSourceHelper.isTimeColumnIntType()).thenReturn(true);
+		when(sqlSourceHelper.getUpperBound()).thenReturn(UpperBound.MAX);
+		when(sqlSourceHelper.maxQuery()).thenReturn("SELECT MAX(id) FROM t");
+		when(sqlSourceHelper.getMaxRows()).thenReturn(maxRows);
+	}
+
+	private HibernateHelper engine() throws Exception {
+		engine = new HibernateHelper(sqlSourceHelper);
+		engine.setSqlSourceCounter(sqlSourceCounter);
+		engine.establishSession();
+		return engine;
+	}
+
+	@Test
+	public void rowsHandedInOrder() throws Exception {
+		ResultSet rows = resultSet(1, 2, 3);
+		when(statement.executeQuery()).thenReturn(rows);
+
+		assertEquals(3, engine().executeQuery(handler));
+		assertEquals(Arrays.<Object>asList(1, 2, 3), handed);
+		verify(statement).setFetchSize(50);
+		verify(rows, atLeastOnce()).close();
+	}
+
+	@Test
+	public void headerSharedByRows() throws Exception {
+		ResultSet rows = resultSet(1, 2);
+		when(statement.executeQuery()).thenReturn(rows);
+
+		engine().executeQuery(handler);
+		assertEquals("id", headers.get(0).getName(0));
+		assertSame(headers.get(0), headers.get(1));
+	}
+
+	@Test
+	public void boundedByMaxRows() throws Exception {
+		window(2);
+		final ResultSet max = resultSet(1000), rows = resultSet(1, 2);
+		when(statement.executeQuery()).thenReturn(max, rows);
+
+		assertEquals(2, engine().executeQuery(handler));
+		// the dialect reads max.rows as a limit of the query
+		verify(connection).prepareStatement("SELECT id FROM t limit ?");
+		verify(statement).setInt(1, 2);
+		assertEquals("1000", index.get());
+	}
+
+	@Test
+	public void queryErrorMidStreamKeepsIndex() throws Exception {
+		window(10);
+		ResultSet max = resultSet(1000), failing = resultSet(1, new SQLException("Division by zero", "22012"));
+		when(statement.executeQuery()).thenReturn(max, failing);
+
+		try {
+			engine().executeQuery(handler);
+			fail("the row can't be read");
+		} catch (SQLException e) {
+			assertEquals("22012", e.getSQLState());
+		}
+		// the row read before the error is handed over, the window is read again
+		assertEquals(Arrays.<Object>asList(1), handed);
+		assertEquals("0", index.get());
+		assertEquals(0, sqlSourceCounter.getConnectionResets());
+	}
+
+	@Test
+	public void lostConnectionMidStreamKeepsIndex() throws Exception {
+		window(10);
+		ResultSet max = resultSet(1000), lost = resultSet(1, new SQLRecoverableException("Connection reset", "08S01"));
+		when(statement.executeQuery()).thenReturn(max, lost);
+
+		assertEquals(1, engine().executeQuery(handler));
+		assertEquals("0", index.get());
+		assertEquals(1, sqlSourceCounter.getConnectionResets());
+		assertTrue(engine.isAvailable());
+	}
+}
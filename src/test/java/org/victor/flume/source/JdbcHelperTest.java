@@ -0,0 +1,407 @@
+package org.victor.flume.source;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLSyntaxErrorException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import org.apache.flume.Context;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.victor.flume.metrics.SqlSourceCounter;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+public class JdbcHelperTest {
+
+	SQLSourceHelper sqlSourceHelper = mock(SQLSourceHelper.class);
+	SqlSourceCounter sqlSourceCounter = new SqlSourceCounter("SOURCESQL.jdbc");
+	Connection connection = mock(Connection.class);
+	PreparedStatement statement = mock(PreparedStatement.class);
+	PreparedStatement maxStatement = mock(PreparedStatement.class);
+	final AtomicReference<String> index = new AtomicReference<String>("0");
+	/* Ids handed to the row handler, and the header of each */
+	final List<Object> handed = new ArrayList<Object>();
+	final List<RowHeader> headers = new ArrayList<RowHeader>();
+	RowHandler handler = new RowHandler() {
+		@Override
+		public void handle(RowHeader header, Object[] row) {
+			handed.add(row[0]);
+			headers.add(header);
+		}
+	};
+
+	@BeforeClass
+	public static void registerDriver() throws SQLException {
+		TestDriver.register();
+	}
+
+	@Before
+	public void setup() throws SQLException {
+		TestDriver.connects = 0;
+		TestDriver.down = false;
+		TestDriver.connection = connection;
+		when(sqlSourceHelper.getContext()).thenReturn(new Context());
+		when(sqlSourceHelper.getConnectionURL()).thenReturn(TestDriver.URL);
+		when(sqlSourceHelper.selectStatement(anyString())).thenReturn(new QueryStatement("SELECT id FROM t"));
+		when(sqlSourceHelper.getReconnectResets()).thenReturn(2);
+		when(sqlSourceHelper.getReconnectBackoff()).thenReturn(60000L);
+		when(sqlSourceHelper.getReconnectBackoffMax()).thenReturn(60000L);
+		when(connection.isValid(anyInt())).thenReturn(true);
+		when(connection.prepareStatement(anyString(), anyInt(), anyInt())).thenReturn(statement);
+		when(connection.prepareStatement(anyString())).thenReturn(maxStatement);
+		when(sqlSourceHelper.getCurrentIndex()).thenAnswer(new Answer<String>() {
+			@Override
+			public String answer(InvocationOnMock invocation) {
+				return index.get();
+			}
+		});
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				index.set((String) invocation.getArguments()[0]);
+				return null;
+			}
+		}).when(sqlSourceHelper).setCurrentIndex(anyString());
+	}
+
+	/**
+	 * @param values id of each row, an SQLException is thrown by next() when reached
+	 */
+	static ResultSet resultSet(Object... values) throws SQLException {
+		ResultSet resultSet = mock(ResultSet.class);
+		ResultSetMetaData metaData = mock(ResultSetMetaData.class);
+		when(metaData.getColumnCount()).thenReturn(1);
+		when(metaData.getColumnLabel(1)).thenReturn("id");
+		when(metaData.getColumnType(1)).thenReturn(Types.INTEGER);
+		when(metaData.getColumnClassName(1)).thenReturn(Integer.class.getName());
+		when(resultSet.getMetaData()).thenReturn(metaData);
+		final Iterator<Object> rows = Arrays.asList(values).iterator();
+		final Object[] current = new Object[1];
+		when(resultSet.next()).thenAnswer(new Answer<Boolean>() {
+			@Override
+			public Boolean answer(InvocationOnMock invocation) throws SQLException {
+				if (!rows.hasNext())
+					return false;
+				current[0] = rows.next();
+				if (current[0] instanceof SQLException)
+					throw (SQLException) current[0];
+				return true;
+			}
+		});
+		when(resultSet.getObject(1)).thenAnswer(new Answer<Object>() {
+			@Override
+			public Object answer(InvocationOnMock invocation) {
+				return current[0];
+			}
+		});
+		return resultSet;
+	}
+
+	/**
+	 * Incremental int index sliced by 100, max(id) is 1000
+	 */
+	private void slices(int maxRows) throws SQLException {
+		window(maxRows);
+		when(sqlSourceHelper.getCatchUpSliceSize()).thenReturn(100L);
+	}
+
+	/**
+	 * Incremental int index read up to max(id), 1000
+	 */
+	private void window(int maxRows) throws SQLException {
+		when(sqlSourceHelper.isTransferIncrement()).thenReturn(true);
+		when(sqlSourceHelper.isTimeColumnIntType()).thenReturn(true);
+		when(sqlSourceHelper.getUpperBound()).thenReturn(UpperBound.MAX);
+		when(sqlSourceHelper.maxQuery()).thenReturn("SELECT MAX(id) FROM t");
+		when(sqlSourceHelper.getMaxRows()).thenReturn(maxRows);
+		when(maxStatement.executeQuery()).thenAnswer(new Answer<ResultSet>() {
+			@Override
+			public ResultSet answer(InvocationOnMock invocation) throws SQLException {
+				return resultSet(1000);
+			}
+		});
+	}
+
+	private JdbcHelper engine() {
+		JdbcHelper engine = new JdbcHelper(sqlSourceHelper);
+		engine.setSqlSourceCounter(sqlSourceCounter);
+		return engine;
+	}
+
+	@Test
+	public void openCircuitOpensNoConnection() throws Exception {
+		when(sqlSourceHelper.getReconnectResets()).thenReturn(0);
+		TestDriver.down = true;
+		JdbcHelper engine = engine();
+		try {
+			engine.establishSession();
+			fail("the database is down");
+		} catch (SQLNonTransientConnectionException e) {
+			assertEquals(1, TestDriver.connects);
+		}
+		assertFalse(engine.isAvailable());
+		assertEquals(1, sqlSourceCounter.getCircuitOpen());
+
+		engine.establishSession();
+		assertEquals(0, engine.executeQuery(mock(RowHandler.class)));
+		assertTrue(engine.executeQuery().isEmpty());
+		assertEquals(1, TestDriver.connects);
+	}
+
+	@Test
+	public void queryErrorFailsPollOnly() throws Exception {
+		when(statement.executeQuery()).thenThrow(new SQLSyntaxErrorException("Column not found", "42S22"));
+		JdbcHelper engine = engine();
+		for (int i = 0; i < 4; i++) {
+			engine.establishSession();
+			try {
+				engine.executeQuery(mock(RowHandler.class));
+				fail("the query is wrong");
+			} catch (SQLSyntaxErrorException e) {
+				assertTrue(engine.isAvailable());
+			}
+		}
+		assertEquals(1, TestDriver.connects);
+		assertEquals(0, sqlSourceCounter.getConnectionResets());
+		assertEquals(0, sqlSourceCounter.getConnectionRebuilds());
+	}
+
+	@Test
+	public void oneReconnectPerPoll() throws Exception {
+		when(statement.executeQuery()).thenThrow(new SQLRecoverableException("Connection reset"));
+		JdbcHelper engine = engine();
+		for (int poll = 1; poll <= 2; poll++) {
+			engine.establishSession();
+			assertEquals(0, engine.executeQuery(mock(RowHandler.class)));
+			// the failed connection is replaced at once, checked alive
+			assertEquals(poll + 1, TestDriver.connects);
+			assertEquals(poll, sqlSourceCounter.getConnectionResets());
+			assertTrue(engine.isAvailable());
+		}
+
+		engine.establishSession();
+		assertEquals(0, engine.executeQuery(mock(RowHandler.class)));
+		assertEquals(3, TestDriver.connects);
+		assertEquals(1, sqlSourceCounter.getConnectionRebuilds());
+		assertFalse(engine.isAvailable());
+	}
+
+	@Test
+	public void failedReconnectWaitsNextPoll() throws Exception {
+		when(statement.executeQuery()).thenThrow(new SQLRecoverableException("Connection reset"));
+		JdbcHelper engine = engine();
+		engine.establishSession();
+		TestDriver.down = true;
+		assertEquals(0, engine.executeQuery(mock(RowHandler.class)));
+		assertEquals(2, TestDriver.connects);
+		assertEquals(1, sqlSourceCounter.getConnectionResets());
+		assertTrue(engine.isAvailable());
+	}
+
+	@Test
+	public void truncatedSliceNotStreamed() throws Exception {
+		slices(2);
+		ResultSet truncated = resultSet(1, 2), half = resultSet(1);
+		when(statement.executeQuery()).thenReturn(truncated, half);
+		JdbcHelper engine = engine();
+		engine.establishSession();
+
+		assertEquals(0, engine.executeQuery(handler));
+		assertTrue(handed.isEmpty());
+		assertEquals("0", index.get());
+
+		assertEquals(1, engine.executeQuery(handler));
+		assertEquals(Arrays.<Object>asList(1), handed);
+		assertEquals("50", index.get());
+	}
+
+	@Test
+	public void truncatedSliceNotListed() throws Exception {
+		slices(2);
+		ResultSet truncated = resultSet(1, 2), half = resultSet(1);
+		when(statement.executeQuery()).thenReturn(truncated, half);
+		JdbcHelper engine = engine();
+		engine.establishSession();
+
+		assertTrue(engine.executeQuery().isEmpty());
+		assertEquals("0", index.get());
+		assertEquals(1, engine.executeQuery().size());
+		assertEquals("50", index.get());
+	}
+
+	@Test
+	public void lostSliceNotStreamed() throws Exception {
+		slices(10);
+		ResultSet lost = resultSet(1, new SQLRecoverableException("Connection reset"));
+		when(statement.executeQuery()).thenReturn(lost);
+		JdbcHelper engine = engine();
+		engine.establishSession();
+
+		assertEquals(0, engine.executeQuery(handler));
+		assertTrue(handed.isEmpty());
+		assertEquals("0", index.get());
+	}
+
+	@Test
+	public void rowsHandedInOrder() throws Exception {
+		window(10);
+		ResultSet rows = resultSet(1, 2, 3);
+		when(statement.executeQuery()).thenReturn(rows);
+		JdbcHelper engine = engine();
+		engine.establishSession();
+
+		assertEquals(3, engine.executeQuery(handler));
+		assertEquals(Arrays.<Object>asList(1, 2, 3), handed);
+		assertEquals("id", headers.get(0).getName(0));
+		assertEquals("1000", index.get());
+		verify(rows).close();
+	}
+
+	@Test
+	public void boundedByMaxRows() throws Exception {
+		when(sqlSourceHelper.getMaxRows()).thenReturn(2);
+		when(sqlSourceHelper.getBatchSize()).thenReturn(50);
+		ResultSet rows = resultSet(1, 2);
+		when(statement.executeQuery()).thenReturn(rows);
+		JdbcHelper engine = engine();
+		engine.establishSession();
+
+		assertEquals(2, engine.executeQuery(handler));
+		verify(statement).setMaxRows(2);
+		verify(statement).setFetchSize(50);
+
+		ResultSet all = resultSet(1, 2, 3);
+		when(statement.executeQuery()).thenReturn(all);
+		when(sqlSourceHelper.selectStatement(anyString())).thenReturn(new QueryStatement("SELECT id FROM t").unbounded());
+		assertEquals(3, engine.executeQuery(handler));
+		verify(statement).setMaxRows(0);
+	}
+
+	@Test
+	public void headerReadOnce() throws Exception {
+		ResultSet first = resultSet(1), second = resultSet(2), renamed = resultSet(3);
+		when(renamed.getMetaData().getColumnLabel(1)).thenReturn("code");
+		when(statement.executeQuery()).thenReturn(first, second, renamed);
+		JdbcHelper engine = engine();
+		engine.establishSession();
+
+		engine.executeQuery(handler);
+		// the list and the stream of rows share the header
+		assertSame(headers.get(0), engine.executeQuery().getHeader());
+		engine.executeQuery(handler);
+		assertNotSame(headers.get(0), headers.get(1));
+		assertEquals("code", headers.get(1).getName(0));
+	}
+
+	@Test
+	public void queryErrorMidStreamKeepsIndex() throws Exception {
+		window(10);
+		ResultSet failing = resultSet(1, new SQLException("Division by zero", "22012"));
+		when(statement.executeQuery()).thenReturn(failing);
+		JdbcHelper engine = engine();
+		engine.establishSession();
+
+		try {
+			engine.executeQuery(handler);
+			fail("the row can't be read");
+		} catch (SQLException e) {
+			assertEquals("22012", e.getSQLState());
+		}
+		// the row read before the error is handed over, the window is read again
+		assertEquals(Arrays.<Object>asList(1), handed);
+		assertEquals("0", index.get());
+		verify(failing).close();
+	}
+
+	@Test
+	public void lostConnectionMidStreamKeepsIndex() throws Exception {
+		window(10);
+		ResultSet lost = resultSet(1, new SQLRecoverableException("Connection reset"));
+		when(statement.executeQuery()).thenReturn(lost);
+		JdbcHelper engine = engine();
+		engine.establishSession();
+
+		assertEquals(1, engine.executeQuery(handler));
+		assertEquals("0", index.get());
+		assertEquals(1, sqlSourceCounter.getConnectionResets());
+	}
+
+	/**
+	 * Hands out the connection of the test, counting the attempts
+	 */
+	public static class TestDriver implements Driver {
+		static final String URL = "jdbc:jdbchelpertest:db";
+		static volatile int connects;
+		static volatile boolean down;
+		static volatile Connection connection;
+		private static boolean registered;
+
+		static synchronized void register() throws SQLException {
+			if (!registered)
+				DriverManager.registerDriver(new TestDriver());
+			registered = true;
+		}
+
+		@Override
+		public Connection connect(String url, Properties info) throws SQLException {
+			if (!acceptsURL(url))
+				return null;
+			connects++;
+			if (down)
+				throw new SQLNonTransientConnectionException("Connection refused", "08001");
+			return connection;
+		}
+
+		@Override
+		public boolean acceptsURL(String url) {
+			return url.startsWith(URL);
+		}
+
+		@Override
+		public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+			return new DriverPropertyInfo[0];
+		}
+
+		@Override
+		public int getMajorVersion() {
+			return 1;
+		}
+
+		@Override
+		public int getMinorVersion() {
+			return 0;
+		}
+
+		@Override
+		public boolean jdbcCompliant() {
+			return false;
+		}
+
+		@Override
+		public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+			throw new SQLFeatureNotSupportedException();
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package org.victor.flume.source;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import com.alibaba.fastjson.JSON;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class JsonRowEncoderTest {
+
+	private JsonRowEncoder encoder = new JsonRowEncoder();
+
+	/**
+	 * Compares with fastjson serializing the map hibernate's ALIAS_TO_ENTITY_MAP used to build
+	 */
+	private void assertSameAsFastjson(Map<String, Object> row) throws Exception {
+		String[] names = row.keySet().toArray(new String[0]);
+		Object[] cells = new Object[names.length];
+		Map<String, Object> map = new HashMap<String, Object>(names.length);
+		for (int i = 0; i < names.length; i++) {
+			cells[i] = row.get(names[i]);
+			map.put(names[i], cells[i]);
+		}
+		RowHeader header = new RowHeader(names);
+
+		byte[] expected = JSON.toJSONString(map, JsonRowEncoder.FEATURES).getBytes("UTF-8");
+		assertEquals(new String(expected, "UTF-8"), new String(encoder.encode(header, cells), "UTF-8"));
+		assertArrayEquals(expected, encoder.encode(header, cells));
+	}
+
+	@Test
+	public void encodeColumnTypes() throws Exception {
+		Map<String, Object> row = new LinkedHashMap<String, Object>();
+		row.put("string", "a\"b\\c/d\b\f\n\r\t\u0000\u001f\u007f\u0080\u009f\u00a0\u2028\u2029\u4e2d\ud83d\ude00");
+		row.put("nullValue", null);
+		row.put("int", Integer.MIN_VALUE);
+		row.put("long", Long.MIN_VALUE);
+		row.put("maxLong", Long.MAX_VALUE);
+		row.put("short", (short) -3);
+		row.put("byte", (byte) 4);
+		row.put("bigInteger", new BigInteger("123456789012345678901234567890"));
+		row.put("bigDecimal", new BigDecimal("1E+3"));
+		row.put("decimal", new BigDecimal("-1.50"));
+		row.put("double", 1.0E20d);
+		row.put("nan", Double.NaN);
+		row.put("float", 0.1f);
+		row.put("boolean", true);
+		row.put("timestamp", new Timestamp(1500000000123L));
+		row.put("date", new java.sql.Date(1500000000000L));
+		row.put("time", new Time(3600000L));
+		row.put("utilDate", new Date(1500000000123L));
+		row.put("bytes", new byte[]{1, 2, 3, -1});
+		row.put("char", '"');
+		row.put("list", new ArrayList<Object>(Arrays.asList(1, "x")));
+		row.put("\u4e2d\n", 0);
+		assertSameAsFastjson(row);
+	}
+
+	@Test
+	public void encodeLoneSurrogate() throws Exception {
+		Map<String, Object> row = new HashMap<String, Object>();
+		row.put("value", "a\ud83db\ude00");
+		assertSameAsFastjson(row);
+	}
+
+	@Test
+	public void encodeRandomStrings() throws Exception {
+		Random random = new Random(42);
+		for (int i = 0; i < 2000; i++) {
+			char[] chars = new char[random.nextInt(40)];
+			for (int j = 0; j < chars.length; j++)
+				chars[j] = (char) (random.nextBoolean() ? random.nextInt(0x100) : random.nextInt(0x10000));
+			Map<String, Object> row = new HashMap<String, Object>();
+			row.put("value", new String(chars));
+			row.put("id", random.nextLong());
+			assertSameAsFastjson(row);
+		}
+	}
+
+	@Test
+	public void encodeFloatingPoint() throws Exception {
+		Map<String, Object> row = new HashMap<String, Object>();
+		row.put("double", 5.19608339E17d);
+		row.put("float", 5.1960834E17f);
+		row.put("exponent", 1.0E23d);
+		row.put("infinite", Float.POSITIVE_INFINITY);
+		assertSameAsFastjson(row);
+
+		Random random = new Random(42);
+		for (int i = 0; i < 20000; i++) {
+			row.put("double", Double.longBitsToDouble(random.nextLong()));
+			row.put("float", Float.intBitsToFloat(random.nextInt()));
+			row.put("exponent", random.nextDouble() * Math.pow(10, random.nextInt(40) - 20));
+			assertSameAsFastjson(row);
+		}
+	}
+
+	@Test
+	public void encodeWideRow() throws Exception {
+		Map<String, Object> row = new LinkedHashMap<String, Object>();
+		for (int i = 200; i > 0; i--)
+			row.put("column_" + i, i);
+		assertSameAsFastjson(row);
+	}
+
+	@Test
+	public void encodeChangingShape() throws Exception {
+		Map<String, Object> row = new HashMap<String, Object>();
+		row.put("a", 1);
+		row.put("b", "x");
+		assertSameAsFastjson(row);
+
+		Map<String, Object> other = new HashMap<String, Object>();
+		other.put("c", 2);
+		assertSameAsFastjson(other);
+		assertSameAsFastjson(row);
+	}
+}
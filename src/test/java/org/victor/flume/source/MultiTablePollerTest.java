@@ -0,0 +1,49 @@
+package org.victor.flume.source;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.flume.Context;
+import org.apache.flume.conf.ConfigurationException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MultiTablePollerTest {
+
+	private Context source() {
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put("hibernate.connection.url", "jdbc:h2:mem:test");
+		properties.put("status.file.name", "status");
+		properties.put("run.query.delay", "5000");
+		properties.put("tables", "orders customers");
+		properties.put("table.workers", "2");
+		properties.put("tables.orders.table", "orders");
+		properties.put("tables.orders.run.query.delay", "1000");
+		properties.put("tables.customers.table", "customers");
+		properties.put("tables.customers.status.file.name", "clients");
+		return new Context(properties);
+	}
+
+	@Test
+	public void tableOverridesSource() {
+		Context orders = MultiTablePoller.tableContext(source(), "orders");
+		assertEquals("orders", orders.getString("table"));
+		assertEquals("1000", orders.getString("run.query.delay"));
+		assertEquals("jdbc:h2:mem:test", orders.getString("hibernate.connection.url"));
+		assertEquals("2", orders.getString("table.workers"));
+		assertNull(orders.getString("tables"));
+		assertNull(orders.getString("tables.customers.table"));
+	}
+
+	@Test
+	public void statusFilePerTable() {
+		assertEquals("status.orders", MultiTablePoller.tableContext(source(), "orders").getString("status.file.name"));
+		assertEquals("clients", MultiTablePoller.tableContext(source(), "customers").getString("status.file.name"));
+	}
+
+	@Test(expected = ConfigurationException.class)
+	public void tableWithoutProperties() {
+		MultiTablePoller.tableContext(source(), "invoices");
+	}
+}
@@ -0,0 +1,212 @@
+package org.victor.flume.source;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.channel.ChannelProcessor;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.victor.flume.metrics.SqlSourceCounter;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+public class ParallelBulkLoaderTest {
+
+	SQLSourceHelper sqlSourceHelper = mock(SQLSourceHelper.class);
+	SqlSourceCounter sqlSourceCounter = new SqlSourceCounter("SOURCESQL.bulk");
+	ChannelProcessor channelProcessor = mock(ChannelProcessor.class);
+	Connection connection = mock(Connection.class);
+	/* Statement reading each range, by its sql */
+	final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+	/* Last ranges written to the status file */
+	final AtomicReference<String> saved = new AtomicReference<String>();
+	/* Events delivered, in order */
+	final List<String> delivered = new ArrayList<String>();
+
+	@BeforeClass
+	public static void registerDriver() throws SQLException {
+		JdbcHelperTest.TestDriver.register();
+	}
+
+	@Before
+	public void setup() throws Exception {
+		JdbcHelperTest.TestDriver.down = false;
+		JdbcHelperTest.TestDriver.connection = connection;
+		when(sqlSourceHelper.getContext()).thenReturn(new Context());
+		when(sqlSourceHelper.getConnectionURL()).thenReturn(JdbcHelperTest.TestDriver.URL);
+		when(sqlSourceHelper.getBatchSize()).thenReturn(100);
+		when(sqlSourceHelper.getBulkPartitions()).thenReturn(2);
+		when(sqlSourceHelper.getBulkParallelism()).thenReturn(1);
+		when(sqlSourceHelper.getTable()).thenReturn("t");
+		when(sqlSourceHelper.bulkRangeStatement(any(BulkRange.class))).thenAnswer(new Answer<QueryStatement>() {
+			@Override
+			public QueryStatement answer(InvocationOnMock invocation) {
+				return new QueryStatement(sql((BulkRange) invocation.getArguments()[0]), new Object[0]).unbounded();
+			}
+		});
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				saved.set((String) invocation.getArguments()[0]);
+				return null;
+			}
+		}).when(sqlSourceHelper).updateBulkRanges(anyString());
+		when(connection.prepareStatement(anyString(), anyInt(), anyInt())).thenAnswer(new Answer<PreparedStatement>() {
+			@Override
+			public PreparedStatement answer(InvocationOnMock invocation) {
+				return statements.get((String) invocation.getArguments()[0]);
+			}
+		});
+		doAnswer(new Answer<Void>() {
+			@Override
+			@SuppressWarnings("unchecked")
+			public Void answer(InvocationOnMock invocation) throws Exception {
+				for (Event event : (List<Event>) invocation.getArguments()[0]) {
+					delivered.add(new String(event.getBody(), "UTF-8"));
+				}
+				return null;
+			}
+		}).when(channelProcessor).processEventBatch(anyListOf(Event.class));
+	}
+
+	private static String sql(BulkRange range) {
+		return "SELECT id FROM t WHERE " + range.condition("id");
+	}
+
+	/**
+	 * @param first rows of the range on the first read, then on the next ones, an SQLException
+	 * fails the read when reached
+	 */
+	private void range(BulkRange range, ResultSet first, ResultSet... next) throws SQLException {
+		PreparedStatement statement = mock(PreparedStatement.class);
+		when(statement.executeQuery()).thenReturn(first, next);
+		statements.put(sql(range), statement);
+	}
+
+	private static List<String> names(List<BulkRange> ranges) {
+		List<String> names = new ArrayList<String>();
+		for (BulkRange range : ranges) {
+			names.add(range + (range.isDone() ? " done" : ""));
+		}
+		return names;
+	}
+
+	@Test
+	public void splitEvenly() {
+		List<BulkRange> ranges = BulkRange.split(0L, 100L, 4);
+		assertEquals(Arrays.asList("[null]", "[null, 25)", "[25, 50)", "[50, 75)", "[75, null)"), names(ranges));
+		assertEquals("id IS NULL", ranges.get(0).condition("id"));
+		assertEquals("id < ?", ranges.get(1).condition("id"));
+		assertEquals("id >= ? AND id < ?", ranges.get(2).condition("id"));
+		assertArrayEquals(new Object[]{25L, 50L}, ranges.get(2).parameters());
+		assertEquals("id >= ?", ranges.get(4).condition("id"));
+	}
+
+	@Test
+	public void splitSpreadsRemainder() {
+		assertEquals(Arrays.asList("[null]", "[null, 3)", "[3, 6)", "[6, null)"), names(BulkRange.split(0L, 10L, 3)));
+		// more partitions than values, empty ranges are skipped
+		assertEquals(Arrays.asList("[null]", "[null, 1)", "[1, 2)", "[2, null)"), names(BulkRange.split(0L, 3L, 10)));
+	}
+
+	@Test
+	public void splitSingleValue() {
+		List<BulkRange> ranges = BulkRange.split(7L, 7L, 4);
+		assertEquals(Arrays.asList("[null]", "[null, null)"), names(ranges));
+		assertEquals("id IS NOT NULL", ranges.get(1).condition("id"));
+		assertEquals(Arrays.asList("[null]", "[null, null)"), names(BulkRange.split(null, null, 4)));
+	}
+
+	@Test
+	public void splitTimes() throws Exception {
+		List<BulkRange> ranges = BulkRange.split(new Timestamp(0L), new Timestamp(4000L), 2);
+		assertArrayEquals(new Object[]{new Timestamp(2000L)}, ranges.get(1).parameters());
+		ranges.get(1).setDone();
+		assertEquals(names(ranges), names(BulkRange.parse(BulkRange.toJson(ranges))));
+		assertArrayEquals(new Object[]{new Timestamp(2000L)}, BulkRange.parse(BulkRange.toJson(ranges)).get(2).parameters());
+	}
+
+	@Test
+	public void probedRangesLoaded() throws Exception {
+		when(sqlSourceHelper.bulkBoundQuery("min")).thenReturn("SELECT min(id) FROM t");
+		when(sqlSourceHelper.bulkBoundQuery("max")).thenReturn("SELECT max(id) FROM t");
+		PreparedStatement min = mock(PreparedStatement.class), max = mock(PreparedStatement.class);
+		ResultSet minValue = JdbcHelperTest.resultSet(0L), maxValue = JdbcHelperTest.resultSet(100L);
+		when(min.executeQuery()).thenReturn(minValue);
+		when(max.executeQuery()).thenReturn(maxValue);
+		when(connection.prepareStatement("SELECT min(id) FROM t")).thenReturn(min);
+		when(connection.prepareStatement("SELECT max(id) FROM t")).thenReturn(max);
+		List<BulkRange> expected = BulkRange.split(0L, 100L, 2);
+		range(expected.get(0), JdbcHelperTest.resultSet());
+		range(expected.get(1), JdbcHelperTest.resultSet(1, 2));
+		range(expected.get(2), JdbcHelperTest.resultSet(60));
+
+		ParallelBulkLoader loader = new ParallelBulkLoader(sqlSourceHelper, sqlSourceCounter);
+		assertFalse(loader.isFinished());
+		assertEquals(3, loader.load(channelProcessor));
+		assertEquals(Arrays.asList("{\"id\":1}", "{\"id\":2}", "{\"id\":60}"), delivered);
+		assertTrue(loader.isFinished());
+		assertEquals(Arrays.asList("[null] done", "[null, 50) done", "[50, null) done"), names(BulkRange.parse(saved.get())));
+	}
+
+	@Test
+	public void failedRangeReadAgainFromStart() throws Exception {
+		List<BulkRange> ranges = BulkRange.split(0L, 100L, 2);
+		when(sqlSourceHelper.getBulkRanges()).thenReturn(BulkRange.toJson(ranges));
+		range(ranges.get(0), JdbcHelperTest.resultSet());
+		range(ranges.get(1), JdbcHelperTest.resultSet(1, new SQLException("Division by zero", "22012")),
+				JdbcHelperTest.resultSet(1, 2));
+		range(ranges.get(2), JdbcHelperTest.resultSet(60));
+
+		ParallelBulkLoader loader = new ParallelBulkLoader(sqlSourceHelper, sqlSourceCounter);
+		try {
+			loader.load(channelProcessor);
+			fail("the range can't be read");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof SQLException);
+		}
+		assertFalse(loader.isFinished());
+		assertEquals(Arrays.asList("[null] done", "[null, 50)", "[50, null) done"), names(BulkRange.parse(saved.get())));
+
+		delivered.clear();
+		assertEquals(2, loader.load(channelProcessor));
+		assertEquals(Arrays.asList("{\"id\":1}", "{\"id\":2}"), delivered);
+		assertTrue(loader.isFinished());
+		verify(statements.get(sql(ranges.get(2))), times(1)).executeQuery();
+	}
+
+	@Test
+	public void resumedFromStatusFile() throws Exception {
+		List<BulkRange> ranges = BulkRange.split(0L, 100L, 2);
+		ranges.get(0).setDone();
+		ranges.get(1).setDone();
+		when(sqlSourceHelper.getBulkRanges()).thenReturn(BulkRange.toJson(ranges));
+		range(ranges.get(2), JdbcHelperTest.resultSet(60, 70));
+
+		ParallelBulkLoader loader = new ParallelBulkLoader(sqlSourceHelper, sqlSourceCounter);
+		assertFalse(loader.isFinished());
+		assertEquals(2, loader.load(channelProcessor));
+		assertEquals(Arrays.asList("{\"id\":60}", "{\"id\":70}"), delivered);
+		assertTrue(loader.isFinished());
+		// no probe, the ranges of the status file are kept
+		verify(connection, never()).prepareStatement(anyString());
+		verify(connection, times(1)).prepareStatement(anyString(), anyInt(), anyInt());
+	}
+}
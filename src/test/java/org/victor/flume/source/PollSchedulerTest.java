@@ -0,0 +1,59 @@
+package org.victor.flume.source;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.victor.flume.metrics.SqlSourceCounter;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class PollSchedulerTest {
+
+	SQLSourceHelper sqlSourceHelper = mock(SQLSourceHelper.class);
+	SqlSourceCounter sqlSourceCounter = new SqlSourceCounter("SOURCESQL.test");
+
+	@Before
+	public void setup() {
+		when(sqlSourceHelper.getMaxRows()).thenReturn(100);
+		when(sqlSourceHelper.getRunQueryDelay()).thenReturn(1000);
+		when(sqlSourceHelper.getPollMinDelay()).thenReturn(100L);
+		when(sqlSourceHelper.getPollMaxDelay()).thenReturn(4000L);
+		when(sqlSourceHelper.getPollBackoffFactor()).thenReturn(2d);
+	}
+
+	@Test
+	public void fixedDelay() {
+		PollScheduler scheduler = new PollScheduler(sqlSourceHelper, sqlSourceCounter);
+		assertEquals(1000, scheduler.nextDelay(0, false));
+		assertEquals(1000, scheduler.nextDelay(10, false));
+		assertEquals(0, scheduler.nextDelay(100, false));
+		assertEquals(0, scheduler.nextDelay(10, true));
+	}
+
+	@Test
+	public void adaptiveDelay() {
+		when(sqlSourceHelper.isPollAdaptive()).thenReturn(true);
+		PollScheduler scheduler = new PollScheduler(sqlSourceHelper, sqlSourceCounter);
+		assertEquals(2000, scheduler.nextDelay(0, false));
+		assertEquals(4000, scheduler.nextDelay(0, false));
+		assertEquals(4000, scheduler.nextDelay(0, false));
+		assertEquals(4000, sqlSourceCounter.getPollInterval());
+		assertEquals(2000, scheduler.nextDelay(1, false));
+		assertEquals(0, scheduler.nextDelay(100, false));
+		assertEquals(1000, scheduler.nextDelay(1, false));
+		assertEquals(500, scheduler.nextDelay(1, false));
+		assertEquals(250, scheduler.nextDelay(1, false));
+		assertEquals(125, scheduler.nextDelay(1, false));
+		assertEquals(100, scheduler.nextDelay(1, false));
+	}
+
+	@Test
+	public void jitter() {
+		when(sqlSourceHelper.getPollJitter()).thenReturn(0.5);
+		PollScheduler scheduler = new PollScheduler(sqlSourceHelper, sqlSourceCounter);
+		for (int i = 0; i < 100; i++) {
+			long delay = scheduler.nextDelay(0, false);
+			assertTrue(delay >= 500 && delay <= 1500);
+		}
+	}
+}
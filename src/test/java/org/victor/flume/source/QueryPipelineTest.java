@@ -0,0 +1,152 @@
+package org.victor.flume.source;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.flume.Event;
+import org.apache.flume.channel.ChannelProcessor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.victor.flume.metrics.SqlSourceCounter;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+public class QueryPipelineTest {
+
+	private static final RowHeader HEADER = new RowHeader(new String[]{"id"});
+
+	SQLSourceHelper sqlSourceHelper = mock(SQLSourceHelper.class);
+	ChannelProcessor channelProcessor = mock(ChannelProcessor.class);
+	SqlSourceCounter sqlSourceCounter = new SqlSourceCounter("SOURCESQL.pipeline");
+
+	final AtomicReference<String> index = new AtomicReference<String>("0");
+	/* Events delivered and indexes written to the status file, in order */
+	final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+	QueryPipeline pipeline;
+
+	@Before
+	public void setup() {
+		when(sqlSourceHelper.getPipelineQueueSize()).thenReturn(4);
+		when(sqlSourceHelper.getBatchSize()).thenReturn(100);
+		when(sqlSourceHelper.getMaxRows()).thenReturn(100);
+		when(sqlSourceHelper.getRunQueryDelay()).thenReturn(10);
+		when(sqlSourceHelper.getTable()).thenReturn("t");
+		when(sqlSourceHelper.getCurrentIndex()).thenAnswer(new Answer<String>() {
+			@Override
+			public String answer(InvocationOnMock invocation) {
+				return index.get();
+			}
+		});
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				index.set((String) invocation.getArguments()[0]);
+				return null;
+			}
+		}).when(sqlSourceHelper).setCurrentIndex(anyString());
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				log.add("index " + invocation.getArguments()[0]);
+				return null;
+			}
+		}).when(sqlSourceHelper).updateStatusFile(anyString(), anyString());
+		doAnswer(new Answer<Void>() {
+			@Override
+			@SuppressWarnings("unchecked")
+			public Void answer(InvocationOnMock invocation) throws Exception {
+				for (Event event : (List<Event>) invocation.getArguments()[0]) {
+					log.add(new String(event.getBody(), "UTF-8"));
+				}
+				return null;
+			}
+		}).when(channelProcessor).processEventBatch(anyListOf(Event.class));
+	}
+
+	@After
+	public void stop() {
+		if (pipeline != null)
+			pipeline.stop();
+	}
+
+	@Test
+	public void failedWindowReadAgain() throws Exception {
+		final AtomicBoolean fail = new AtomicBoolean(true);
+		EventBuilder eventBuilder = new EventBuilder() {
+			@Override
+			int add(RowHeader header, Object[] row, List<Event> events) throws IOException {
+				if (row[0].equals(2) && fail.getAndSet(false))
+					throw new IllegalStateException("row 2 can't be serialized");
+				return super.add(header, row, events);
+			}
+		};
+		pipeline = new QueryPipeline(sqlSourceHelper, new WindowsEngine(), sqlSourceCounter,
+				new PollScheduler(sqlSourceHelper, sqlSourceCounter), eventBuilder);
+		pipeline.start();
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!log.contains("index 20") && System.currentTimeMillis() < deadline) {
+			pipeline.deliver(channelProcessor);
+		}
+		assertEquals(Arrays.asList("{\"id\":1}", "{\"id\":2}", "index 10", "{\"id\":3}", "index 20"), log);
+		assertFalse(fail.get());
+	}
+
+	/**
+	 * Window 0 to 10 holds the rows 1 and 2, window 10 to 20 the row 3, nothing comes after
+	 */
+	private class WindowsEngine implements QueryEngine {
+		@Override
+		public int executeQuery(RowHandler handler) throws Exception {
+			if ("0".equals(index.get())) {
+				handler.handle(HEADER, new Object[]{1});
+				handler.handle(HEADER, new Object[]{2});
+				index.set("10");
+				return 2;
+			}
+			if ("10".equals(index.get())) {
+				handler.handle(HEADER, new Object[]{3});
+				index.set("20");
+				return 1;
+			}
+			return 0;
+		}
+
+		@Override
+		public boolean isAvailable() {
+			return true;
+		}
+
+		@Override
+		public void establishSession() {
+		}
+
+		@Override
+		public void closeSession() {
+		}
+
+		@Override
+		public QueryResult executeQuery() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean isCatchingUp() {
+			return false;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -3,6 +3,7 @@ package org.victor.flume.source;
 import java.io.File;
 import java.io.IOException;
 import java.sql.Date;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -94,6 +95,108 @@ public class SQLSourceHelperTest {
 		assertEquals("SELECT column FROM table",sqlSourceHelper.getQuery());
 	}
 	
+	@Test
+	public void getPreparedSelectStatement() {
+		when(context.getBoolean("query.prepared", false)).thenReturn(true);
+		when(context.getString("source.transfer.method")).thenReturn("incrementing");
+		when(context.getString("time.column")).thenReturn("updateTime");
+		when(context.getString("time.column.type")).thenReturn("int");
+		SQLSourceHelper sqlSourceHelper = new SQLSourceHelper(context,"Source Name");
+		QueryStatement statement = sqlSourceHelper.selectStatement("20");
+		assertEquals("SELECT * FROM table WHERE updateTime > ? AND updateTime <= ?", statement.getSql());
+		assertArrayEquals(new Object[]{0L, 20L}, statement.getParameters());
+	}
+
+	@Test
+	public void getPreparedCustomSelectStatement() {
+		when(context.getBoolean("query.prepared", false)).thenReturn(true);
+		when(context.getString("source.transfer.method")).thenReturn("incrementing");
+		when(context.getString("time.column.type")).thenReturn("timestamp");
+		when(context.getString("start.from", "0")).thenReturn("2019-07-03 14:52:00");
+		when(context.getString("custom.query")).thenReturn("SELECT * FROM t WHERE ts <= '$&$' AND ts > $@$");
+		SQLSourceHelper sqlSourceHelper = new SQLSourceHelper(context,"Source Name");
+		QueryStatement statement = sqlSourceHelper.selectStatement("2019-07-04 00:00:00.0");
+		assertEquals("SELECT * FROM t WHERE ts <= ? AND ts > ?", statement.getSql());
+		assertArrayEquals(new Object[]{Timestamp.valueOf("2019-07-04 00:00:00"), Timestamp.valueOf("2019-07-03 14:52:00")},
+				statement.getParameters());
+	}
+
+	@Test
+	public void getPreparedTimestampStatementFromDefault() {
+		when(context.getBoolean("query.prepared", false)).thenReturn(true);
+		when(context.getString("source.transfer.method")).thenReturn("incrementing");
+		when(context.getString("time.column")).thenReturn("updateTime");
+		when(context.getString("time.column.type")).thenReturn("timestamp");
+		SQLSourceHelper sqlSourceHelper = new SQLSourceHelper(context,"Source Name");
+		QueryStatement statement = sqlSourceHelper.selectStatement("2019-07-04 00:00:00.0");
+		assertArrayEquals(new Object[]{new Timestamp(0L), Timestamp.valueOf("2019-07-04 00:00:00")}, statement.getParameters());
+	}
+
+	@Test(expected = ConfigurationException.class)
+	public void preparedTimestampStartFromNotATime() {
+		when(context.getBoolean("query.prepared", false)).thenReturn(true);
+		when(context.getString("time.column.type")).thenReturn("timestamp");
+		when(context.getString("start.from", "0")).thenReturn("20190703");
+		new SQLSourceHelper(context,"Source Name");
+	}
+
+	@Test
+	public void getKeysetSelectStatement() {
+		when(context.getString("source.transfer.method")).thenReturn("incrementing");
+		when(context.getString("time.column")).thenReturn("updateTime");
+		when(context.getString("time.column.type")).thenReturn("int");
+		when(context.getString("keyset.columns")).thenReturn("tenant, id");
+		SQLSourceHelper sqlSourceHelper = new SQLSourceHelper(context,"Source Name");
+		QueryStatement statement = sqlSourceHelper.selectStatement("20");
+		assertEquals("SELECT * FROM table WHERE updateTime > ? AND updateTime <= ? ORDER BY updateTime, tenant, id", statement.getSql());
+		assertArrayEquals(new Object[]{0L, 20L}, statement.getParameters());
+
+		sqlSourceHelper.setLastRow(new RowHeader(new String[]{"ID", "UPDATETIME", "TENANT"}), new Object[]{7, 12L, "a"});
+		assertEquals("12", sqlSourceHelper.getCurrentIndex());
+		statement = sqlSourceHelper.selectStatement("20");
+		assertEquals("SELECT * FROM table WHERE updateTime >= ? AND (updateTime > ? OR (tenant > ? OR (tenant = ? AND id > ?)))"
+				+ " AND updateTime <= ? ORDER BY updateTime, tenant, id", statement.getSql());
+		assertArrayEquals(new Object[]{12L, 12L, "a", "a", 7L, 20L}, statement.getParameters());
+	}
+
+	@Test
+	public void getRowsBoundedStatement() {
+		when(context.getString("source.transfer.method")).thenReturn("incrementing");
+		when(context.getString("time.column")).thenReturn("updateTime");
+		when(context.getString("time.column.type")).thenReturn("int");
+		when(context.getString("upper.bound", "max")).thenReturn("rows");
+		SQLSourceHelper sqlSourceHelper = new SQLSourceHelper(context,"Source Name");
+		assertEquals("SELECT * FROM table WHERE updateTime > 0 ORDER BY updateTime", sqlSourceHelper.selectStatement("").getSql());
+	}
+
+	@Test(expected = ConfigurationException.class)
+	public void rowsBoundWithCustomQuery() {
+		when(context.getString("upper.bound", "max")).thenReturn("rows");
+		when(context.getString("custom.query")).thenReturn("SELECT * FROM t WHERE ts > $@$");
+		new SQLSourceHelper(context,"Source Name");
+	}
+
+	@Test
+	public void getBulkRangeStatements() throws Exception {
+		when(context.getString("source.transfer.method")).thenReturn("bulk");
+		when(context.getString("bulk.partition.column")).thenReturn("id");
+		SQLSourceHelper sqlSourceHelper = new SQLSourceHelper(context,"Source Name");
+		assertTrue(sqlSourceHelper.isParallelBulkLoad());
+		assertEquals("SELECT min(id) FROM table", sqlSourceHelper.bulkBoundQuery("min"));
+
+		List<BulkRange> ranges = BulkRange.parse(BulkRange.toJson(BulkRange.split(1, 30, 3)));
+		assertEquals(4, ranges.size());
+		String[] sql = {"SELECT * FROM table WHERE id IS NULL", "SELECT * FROM table WHERE id < ?",
+				"SELECT * FROM table WHERE id >= ? AND id < ?", "SELECT * FROM table WHERE id >= ?"};
+		Object[][] parameters = {{}, {10L}, {10L, 20L}, {20L}};
+		for (int i = 0; i < ranges.size(); i++) {
+			QueryStatement statement = sqlSourceHelper.bulkRangeStatement(ranges.get(i));
+			assertEquals(sql[i], statement.getSql());
+			assertArrayEquals(parameters[i], statement.getParameters());
+			assertFalse(statement.isBounded());
+		}
+	}
+
 	@Test
 	public void chekGetAllRowsWithNullParam() {
 		SQLSourceHelper sqlSourceHelper = new SQLSourceHelper(context,"Source Name");
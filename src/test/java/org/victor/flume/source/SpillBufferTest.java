@@ -0,0 +1,170 @@
+package org.victor.flume.source;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.flume.ChannelFullException;
+import org.apache.flume.Event;
+import org.apache.flume.channel.ChannelProcessor;
+import org.apache.flume.event.EventBuilder;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+public class SpillBufferTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	SQLSourceHelper sqlSourceHelper = mock(SQLSourceHelper.class);
+	ChannelProcessor channelProcessor = mock(ChannelProcessor.class);
+	/* Spill positions written to the status file */
+	final AtomicReference<String> fetched = new AtomicReference<String>();
+	final AtomicReference<String> delivered = new AtomicReference<String>();
+	/* Bodies put into the channel, with their table header, in order */
+	final List<String> channel = new ArrayList<String>();
+	/* Batches the channel takes before it is full */
+	int accepted = Integer.MAX_VALUE;
+
+	@Before
+	public void setup() {
+		when(sqlSourceHelper.getSpillDirectory()).thenReturn(folder.getRoot());
+		when(sqlSourceHelper.getSpillSegmentBytes()).thenReturn(4096);
+		when(sqlSourceHelper.getSpillMaxBytes()).thenReturn(1L << 20);
+		when(sqlSourceHelper.getDeliveryRetryDelay()).thenReturn(100L);
+		when(sqlSourceHelper.getDeliveryRetryMaxDelay()).thenReturn(1000L);
+		when(sqlSourceHelper.getSpillFetched()).thenAnswer(new Answer<String>() {
+			@Override
+			public String answer(InvocationOnMock invocation) {
+				return fetched.get();
+			}
+		});
+		when(sqlSourceHelper.getSpillDelivered()).thenAnswer(new Answer<String>() {
+			@Override
+			public String answer(InvocationOnMock invocation) {
+				return delivered.get();
+			}
+		});
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				fetched.set((String) invocation.getArguments()[0]);
+				delivered.set((String) invocation.getArguments()[1]);
+				return null;
+			}
+		}).when(sqlSourceHelper).setSpillPositions(anyString(), anyString());
+		doAnswer(new Answer<Void>() {
+			@Override
+			@SuppressWarnings("unchecked")
+			public Void answer(InvocationOnMock invocation) throws Exception {
+				if (accepted-- <= 0)
+					throw new ChannelFullException("full");
+				for (Event event : (List<Event>) invocation.getArguments()[0]) {
+					channel.add(event.getHeaders().get("table") + ":" + new String(event.getBody(), "UTF-8"));
+				}
+				return null;
+			}
+		}).when(channelProcessor).processEventBatch(anyListOf(Event.class));
+	}
+
+	/**
+	 * Events of the rows, one kilobyte each so a few batches fill a segment
+	 */
+	private static List<Event> batch(String... rows) {
+		List<Event> batch = new ArrayList<Event>();
+		for (String row : rows) {
+			char[] padding = new char[1000 - row.length()];
+			Arrays.fill(padding, ' ');
+			batch.add(EventBuilder.withBody((row + new String(padding)).getBytes(),
+					Collections.singletonMap("table", "t")));
+		}
+		return batch;
+	}
+
+	private List<String> channel() {
+		List<String> rows = new ArrayList<String>();
+		for (String event : channel) {
+			rows.add(event.trim());
+		}
+		return rows;
+	}
+
+	@Test
+	public void refusedBatchesDrainedInOrder() throws Exception {
+		SpillBuffer buffer = new SpillBuffer(sqlSourceHelper);
+		assertTrue(buffer.isEmpty());
+		assertTrue(buffer.isDurable());
+		assertTrue(buffer.offer(batch("1", "2"), 2));
+		assertTrue(buffer.offer(batch("3", "4", "5"), 3));
+		assertTrue(buffer.offer(batch("6"), 1));
+		buffer.commit();
+		assertEquals(6, buffer.size());
+		assertFalse(buffer.isRetryDue());
+
+		accepted = 1;
+		assertEquals(2, buffer.drain(channelProcessor));
+		assertEquals(4, buffer.size());
+		assertEquals(Arrays.asList("t:1", "t:2"), channel());
+		assertEquals(0, buffer.drain(channelProcessor));
+		assertEquals(400, buffer.getRetryDelay());
+
+		accepted = Integer.MAX_VALUE;
+		assertEquals(4, buffer.drain(channelProcessor));
+		assertTrue(buffer.isEmpty());
+		assertEquals(Arrays.asList("t:1", "t:2", "t:3", "t:4", "t:5", "t:6"), channel());
+		assertEquals(fetched.get(), delivered.get());
+		buffer.close();
+	}
+
+	@Test
+	public void recoveredAfterRestart() throws Exception {
+		SpillBuffer buffer = new SpillBuffer(sqlSourceHelper);
+		for (int i = 0; i < 8; i += 2) {
+			buffer.offer(batch(Integer.toString(i), Integer.toString(i + 1)), 2);
+		}
+		buffer.commit();
+		accepted = 1;
+		assertEquals(2, buffer.drain(channelProcessor));
+		// spilled by a window not finished when the source stopped
+		buffer.offer(batch("lost"), 1);
+		buffer.close();
+
+		accepted = Integer.MAX_VALUE;
+		channel.clear();
+		SpillBuffer restarted = new SpillBuffer(sqlSourceHelper);
+		assertEquals(6, restarted.size());
+		assertEquals(6, restarted.drain(channelProcessor));
+		assertEquals(Arrays.asList("t:2", "t:3", "t:4", "t:5", "t:6", "t:7"), channel());
+		assertTrue(restarted.isEmpty());
+		restarted.close();
+	}
+
+	@Test
+	public void rollbackDropsWindow() throws Exception {
+		SpillBuffer buffer = new SpillBuffer(sqlSourceHelper);
+		buffer.offer(batch("1"), 1);
+		buffer.commit();
+		buffer.offer(batch("2", "3", "4", "5"), 4);
+		buffer.offer(batch("6", "7", "8", "9"), 4);
+		buffer.rollback();
+		assertEquals(1, buffer.size());
+		buffer.offer(batch("10"), 1);
+		buffer.commit();
+
+		assertEquals(2, buffer.drain(channelProcessor));
+		assertEquals(Arrays.asList("t:1", "t:10"), channel());
+		// the segments of the window dropped and the ones read are deleted
+		assertEquals(1, folder.getRoot().list().length);
+		buffer.close();
+	}
+}
@@ -0,0 +1,163 @@
+package org.victor.flume.source;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.flume.ChannelFullException;
+import org.apache.flume.Event;
+import org.apache.flume.PollableSource.Status;
+import org.apache.flume.channel.ChannelProcessor;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.victor.flume.metrics.SqlSourceCounter;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+public class TablePollerTest {
+
+	private static final RowHeader HEADER = new RowHeader(new String[]{"id"});
+
+	SQLSourceHelper sqlSourceHelper = mock(SQLSourceHelper.class);
+	SqlSourceCounter sqlSourceCounter = new SqlSourceCounter("SOURCESQL.poller");
+	ChannelProcessor channelProcessor = mock(ChannelProcessor.class);
+	final AtomicReference<String> index = new AtomicReference<String>("0");
+	/* Events put into the channel and indexes written to the status file, in order */
+	final List<String> log = new ArrayList<String>();
+	/* Batches the channel takes before it is full */
+	int accepted;
+	int queries;
+
+	@Before
+	public void setup() {
+		when(sqlSourceHelper.isStreamingQuery()).thenReturn(true);
+		when(sqlSourceHelper.getBatchSize()).thenReturn(100);
+		when(sqlSourceHelper.getDeliveryBufferEvents()).thenReturn(100);
+		when(sqlSourceHelper.getRunQueryDelay()).thenReturn(10);
+		when(sqlSourceHelper.getCurrentIndex()).thenAnswer(new Answer<String>() {
+			@Override
+			public String answer(InvocationOnMock invocation) {
+				return index.get();
+			}
+		});
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				index.set((String) invocation.getArguments()[0]);
+				return null;
+			}
+		}).when(sqlSourceHelper).setCurrentIndex(anyString());
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				log.add("index " + index.get());
+				return null;
+			}
+		}).when(sqlSourceHelper).updateStatusFile();
+		doAnswer(new Answer<Void>() {
+			@Override
+			@SuppressWarnings("unchecked")
+			public Void answer(InvocationOnMock invocation) throws Exception {
+				if (accepted-- <= 0)
+					throw new ChannelFullException("full");
+				for (Event event : (List<Event>) invocation.getArguments()[0]) {
+					log.add(new String(event.getBody(), "UTF-8"));
+				}
+				return null;
+			}
+		}).when(channelProcessor).processEventBatch(anyListOf(Event.class));
+	}
+
+	private TablePoller poller() {
+		return new TablePoller(sqlSourceHelper, sqlSourceCounter, new WindowsEngine(),
+				new PollScheduler(sqlSourceHelper, sqlSourceCounter));
+	}
+
+	@Test
+	public void refusedWindowHoldsIndex() {
+		TablePoller poller = poller();
+		assertEquals(Status.BACKOFF, poller.poll(channelProcessor));
+		// the rows are buffered, the index stays at the last window delivered
+		assertEquals("0", index.get());
+		assertTrue(log.isEmpty());
+		assertEquals(2, sqlSourceCounter.getBufferedEvents());
+
+		// still refused, nothing is read from the database meanwhile
+		assertEquals(Status.BACKOFF, poller.poll(channelProcessor));
+		assertEquals("0", index.get());
+		assertEquals(1, queries);
+
+		accepted = 1;
+		assertEquals(Status.READY, poller.poll(channelProcessor));
+		assertEquals(Arrays.asList("{\"id\":1}", "{\"id\":2}", "index 10"), log);
+		assertEquals("10", index.get());
+		assertEquals(1, queries);
+
+		accepted = 1;
+		assertEquals(Status.READY, poller.poll(channelProcessor));
+		assertEquals(Arrays.asList("{\"id\":1}", "{\"id\":2}", "index 10", "{\"id\":3}", "index 20"), log);
+		assertEquals(2, queries);
+	}
+
+	@Test
+	public void deliveredWindowCommitted() {
+		accepted = 1;
+		assertEquals(Status.READY, poller().poll(channelProcessor));
+		assertEquals(Arrays.asList("{\"id\":1}", "{\"id\":2}", "index 10"), log);
+		assertEquals(0, sqlSourceCounter.getBufferedEvents());
+	}
+
+	/**
+	 * Window 0 to 10 holds the rows 1 and 2, window 10 to 20 the row 3, nothing comes after
+	 */
+	private class WindowsEngine implements QueryEngine {
+		@Override
+		public int executeQuery(RowHandler handler) throws Exception {
+			queries++;
+			if ("0".equals(index.get())) {
+				handler.handle(HEADER, new Object[]{1});
+				handler.handle(HEADER, new Object[]{2});
+				index.set("10");
+				return 2;
+			}
+			if ("10".equals(index.get())) {
+				handler.handle(HEADER, new Object[]{3});
+				index.set("20");
+				return 1;
+			}
+			return 0;
+		}
+
+		@Override
+		public boolean isAvailable() {
+			return true;
+		}
+
+		@Override
+		public void establishSession() {
+		}
+
+		@Override
+		public void closeSession() {
+		}
+
+		@Override
+		public QueryResult executeQuery() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean isCatchingUp() {
+			return false;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
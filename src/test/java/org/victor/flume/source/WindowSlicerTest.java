@@ -0,0 +1,118 @@
+package org.victor.flume.source;
+
+import java.sql.Timestamp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class WindowSlicerTest {
+
+	SQLSourceHelper sqlSourceHelper = mock(SQLSourceHelper.class);
+
+	@Before
+	public void setup() {
+		when(sqlSourceHelper.isTransferIncrement()).thenReturn(true);
+		when(sqlSourceHelper.isTimeColumnIntType()).thenReturn(true);
+		when(sqlSourceHelper.getCatchUpSliceSize()).thenReturn(100L);
+		when(sqlSourceHelper.getMaxRows()).thenReturn(10);
+	}
+
+	@Test
+	public void disabled() {
+		assertTrue(new WindowSlicer(sqlSourceHelper).isEnabled());
+		when(sqlSourceHelper.isKeysetPagination()).thenReturn(true);
+		assertFalse(new WindowSlicer(sqlSourceHelper).isEnabled());
+		when(sqlSourceHelper.isKeysetPagination()).thenReturn(false);
+		when(sqlSourceHelper.getCatchUpSliceSize()).thenReturn(0L);
+		assertFalse(new WindowSlicer(sqlSourceHelper).isEnabled());
+	}
+
+	@Test
+	public void slicesUpToMaxTime() {
+		WindowSlicer slicer = new WindowSlicer(sqlSourceHelper);
+		assertEquals("100", slicer.upperBound("0", "250"));
+		assertTrue(slicer.isCatchingUp());
+		assertTrue(slicer.accept(5));
+		assertEquals("200", slicer.upperBound("100", "250"));
+		assertTrue(slicer.accept(5));
+		assertEquals("250", slicer.upperBound("200", "250"));
+		assertFalse(slicer.isCatchingUp());
+		assertTrue(slicer.accept(5));
+	}
+
+	@Test
+	public void truncatedSliceHalved() {
+		WindowSlicer slicer = new WindowSlicer(sqlSourceHelper);
+		assertEquals("100", slicer.upperBound("0", "1000"));
+		assertFalse(slicer.accept(10));
+		assertTrue(slicer.isCatchingUp());
+		assertEquals("50", slicer.upperBound("0", "1000"));
+		assertFalse(slicer.accept(10));
+		assertEquals("25", slicer.upperBound("0", "1000"));
+		assertTrue(slicer.accept(3));
+		// the slice size comes back once a slice is accepted
+		assertEquals("125", slicer.upperBound("25", "1000"));
+	}
+
+	@Test
+	public void truncatedSecondAccepted() {
+		when(sqlSourceHelper.getCatchUpSliceSize()).thenReturn(1L);
+		WindowSlicer slicer = new WindowSlicer(sqlSourceHelper);
+		assertEquals("1", slicer.upperBound("0", "1000"));
+		assertTrue(slicer.accept(10));
+	}
+
+	@Test
+	public void adaptiveSpan() {
+		when(sqlSourceHelper.isCatchUpAdaptive()).thenReturn(true);
+		when(sqlSourceHelper.getMaxRows()).thenReturn(100);
+		WindowSlicer slicer = new WindowSlicer(sqlSourceHelper);
+		assertEquals("100", slicer.upperBound("0", "10000"));
+		// 10 rows in 100 s, 50 rows are expected in 500 s
+		assertTrue(slicer.accept(10));
+		assertEquals("600", slicer.upperBound("100", "10000"));
+		assertTrue(slicer.accept(0));
+		assertEquals("1600", slicer.upperBound("600", "10000"));
+		assertTrue(slicer.accept(80));
+		assertEquals("2225", slicer.upperBound("1600", "10000"));
+	}
+
+	@Test
+	public void laggedMaxBeforeIndex() {
+		when(sqlSourceHelper.getUpperBound()).thenReturn(UpperBound.MAX);
+		when(sqlSourceHelper.getUpperBoundLag()).thenReturn(5000L);
+		UpperBound upperBound = new UpperBound(sqlSourceHelper);
+		WindowSlicer slicer = new WindowSlicer(sqlSourceHelper);
+
+		// the max just moved 2 s past the index, shifted back by the lag it falls before it
+		String shifted = upperBound.next("10000");
+		assertEquals("9995", shifted);
+		assertEquals("9998", slicer.upperBound("9998", shifted));
+		assertFalse(slicer.isCatchingUp());
+		assertTrue(slicer.accept(0));
+
+		// the max stayed the same, the window reaches it
+		assertEquals("10000", slicer.upperBound("9998", upperBound.next("10000")));
+	}
+
+	@Test
+	public void timestampIndex() {
+		when(sqlSourceHelper.isTimeColumnIntType()).thenReturn(false);
+		when(sqlSourceHelper.getCatchUpSliceSize()).thenReturn(3600L);
+		WindowSlicer slicer = new WindowSlicer(sqlSourceHelper);
+		String upper = slicer.upperBound("2020-01-01 00:00:00", "2020-01-03 00:00:00");
+		assertEquals(Timestamp.valueOf("2020-01-01 01:00:00"), Timestamp.valueOf(upper));
+		assertTrue(slicer.isCatchingUp());
+	}
+
+	@Test
+	public void indexNotATime() {
+		when(sqlSourceHelper.isTimeColumnIntType()).thenReturn(false);
+		WindowSlicer slicer = new WindowSlicer(sqlSourceHelper);
+		assertEquals("b", slicer.upperBound("a", "b"));
+		assertFalse(slicer.isCatchingUp());
+	}
+}
@@ -0,0 +1,131 @@
+package org.victor.flume.spill;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+public class SpillQueueTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static byte[] record(int i) {
+		byte[] content = new byte[1000];
+		content[0] = (byte) i;
+		return content;
+	}
+
+	private static int take(SpillQueue queue) throws Exception {
+		byte[] content = queue.peek();
+		queue.remove();
+		return content[0];
+	}
+
+	@Test
+	public void readsInOrderAcrossSegments() throws Exception {
+		File directory = folder.getRoot();
+		SpillQueue queue = new SpillQueue(directory, 4096, null, null);
+		for (int i = 0; i < 10; i++) {
+			queue.append(record(i), 2);
+		}
+		queue.commit();
+		assertEquals(20, queue.weight());
+		assertEquals(3, directory.list().length);
+
+		for (int i = 0; i < 10; i++) {
+			assertEquals(i, take(queue));
+		}
+		assertNull(queue.peek());
+		assertTrue(queue.isEmpty());
+		assertEquals(0, queue.weight());
+		// segments read are deleted, the last one takes the next records
+		assertEquals(1, directory.list().length);
+	}
+
+	@Test
+	public void reopensAtCheckpointPositions() throws Exception {
+		File directory = folder.getRoot();
+		SpillQueue queue = new SpillQueue(directory, 4096, null, null);
+		for (int i = 0; i < 6; i++) {
+			queue.append(record(i), 1);
+		}
+		queue.commit();
+		assertEquals(0, take(queue));
+		assertEquals(1, take(queue));
+		String fetched = queue.getFetchedPosition();
+		String delivered = queue.getDeliveredPosition();
+		// spilled after the checkpoint, never committed
+		for (int i = 6; i < 12; i++) {
+			queue.append(record(i), 1);
+		}
+		queue.close();
+
+		SpillQueue reopened = new SpillQueue(directory, 4096, fetched, delivered);
+		assertEquals(4, reopened.weight());
+		for (int i = 2; i < 6; i++) {
+			assertEquals(i, take(reopened));
+		}
+		assertNull(reopened.peek());
+		reopened.append(record(42), 1);
+		assertEquals(42, take(reopened));
+	}
+
+	/**
+	 * Segments of the queue still mapped by the process, read from the linux memory maps
+	 */
+	private static int mappedSegments(File directory) throws Exception {
+		int mapped = 0;
+		for (String line : Files.readAllLines(new File("/proc/self/maps").toPath(), Charset.forName("UTF-8"))) {
+			if (line.contains(directory.getPath()))
+				mapped++;
+		}
+		return mapped;
+	}
+
+	@Test
+	public void deletedSegmentsUnmapped() throws Exception {
+		assumeTrue(new File("/proc/self/maps").canRead());
+		File directory = folder.getRoot();
+		SpillQueue queue = new SpillQueue(directory, 4096, null, null);
+		for (int i = 0; i < 10; i++) {
+			queue.append(record(i), 1);
+		}
+		queue.commit();
+		for (int i = 0; i < 6; i++) {
+			take(queue);
+		}
+		for (int i = 0; i < 10; i++) {
+			queue.append(record(i), 1);
+		}
+		queue.rewind();
+		// the head and the tail segments
+		assertEquals(2, mappedSegments(directory));
+
+		queue.close();
+		assertEquals(0, mappedSegments(directory));
+	}
+
+	@Test
+	public void rewindDropsUncommittedRecords() throws Exception {
+		SpillQueue queue = new SpillQueue(folder.getRoot(), 4096, null, null);
+		queue.append(record(1), 1);
+		queue.commit();
+		for (int i = 2; i < 8; i++) {
+			queue.append(record(i), 1);
+		}
+		queue.rewind();
+		assertEquals(1, queue.weight());
+		queue.append(record(9), 1);
+		queue.commit();
+		assertEquals(1, take(queue));
+		assertEquals(9, take(queue));
+		assertNull(queue.peek());
+	}
+}